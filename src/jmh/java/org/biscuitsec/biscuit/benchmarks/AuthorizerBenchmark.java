@@ -0,0 +1,142 @@
+package org.biscuitsec.biscuit.benchmarks;
+
+import org.biscuitsec.biscuit.crypto.KeyPair;
+import org.biscuitsec.biscuit.datalog.RunLimits;
+import org.biscuitsec.biscuit.error.Error;
+import org.biscuitsec.biscuit.token.Authorizer;
+import org.biscuitsec.biscuit.token.Biscuit;
+import org.biscuitsec.biscuit.token.PreparedAuthorizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authorization of a token carrying an increasing number of facts, with different rule shapes:
+ * <ul>
+ *     <li><code>lookup</code>: a check matching the request against the token's rights</li>
+ *     <li><code>join</code>: a rule joining group memberships with group rights</li>
+ *     <li><code>recursive</code>: a transitive closure over a tree of resources</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthorizerBenchmark {
+    /**
+     * number of facts in the authority block
+     */
+    @Param({"10", "100", "1000"})
+    public int facts;
+
+    @Param({"lookup", "join", "recursive"})
+    public String shape;
+
+    private final RunLimits limits = new RunLimits(100_000, 100, Duration.ofSeconds(10));
+
+    private Biscuit token;
+    private List<String> authorizerFacts;
+    private List<String> authorizerRules;
+    private List<String> authorizerChecks;
+    private Authorizer authorizer;
+    private PreparedAuthorizer prepared;
+
+    @Setup
+    public void setup() throws Exception {
+        SecureRandom rng = new SecureRandom();
+        org.biscuitsec.biscuit.token.builder.Biscuit builder = Biscuit.builder(rng, new KeyPair(rng));
+        this.authorizerFacts = new ArrayList<>();
+        this.authorizerRules = new ArrayList<>();
+        this.authorizerChecks = new ArrayList<>();
+
+        switch (this.shape) {
+            case "lookup":
+                for (int i = 0; i < this.facts; i++) {
+                    builder.add_authority_fact("right(\"file" + i + "\", \"" + (i % 2 == 0 ? "read" : "write") + "\")");
+                }
+                this.authorizerFacts.add("resource(\"file" + (this.facts - 2) + "\")");
+                this.authorizerFacts.add("operation(\"read\")");
+                this.authorizerChecks.add("check if resource($file), operation($op), right($file, $op)");
+                break;
+            case "join":
+                int groups = Math.max(1, this.facts / 8);
+                for (int i = 0; i < this.facts / 2; i++) {
+                    builder.add_authority_fact("member(\"user" + i + "\", \"group" + (i % groups) + "\")");
+                    builder.add_authority_fact("group_right(\"group" + (i % groups) + "\", \"file" + i + "\")");
+                }
+                this.authorizerFacts.add("user(\"user0\")");
+                this.authorizerFacts.add("resource(\"file0\")");
+                this.authorizerRules.add("can($user, $file) <- member($user, $group), group_right($group, $file)");
+                this.authorizerChecks.add("check if user($user), resource($file), can($user, $file)");
+                break;
+            case "recursive":
+                for (int i = 1; i < this.facts; i++) {
+                    builder.add_authority_fact("parent(\"node" + i + "\", \"node" + ((i - 1) / 2) + "\")");
+                }
+                this.authorizerFacts.add("resource(\"node" + (this.facts - 1) + "\")");
+                this.authorizerRules.add("ancestor($child, $parent) <- parent($child, $parent)");
+                this.authorizerRules.add("ancestor($child, $ancestor) <- parent($child, $parent), ancestor($parent, $ancestor)");
+                this.authorizerChecks.add("check if resource($node), ancestor($node, \"node0\")");
+                break;
+            default:
+                throw new IllegalArgumentException("unknown rule shape: " + this.shape);
+        }
+
+        this.token = builder.build();
+        this.authorizer = authorizer(this.token.authorizer());
+        this.prepared = authorizer(new Authorizer()).prepare(this.limits);
+    }
+
+    /**
+     * creates the authorizer from the token and the authorizer code, then authorizes
+     */
+    @Benchmark
+    public Long authorize() throws Exception {
+        return authorizer(this.token.authorizer()).authorize(this.limits);
+    }
+
+    /**
+     * authorizes with an authorizer already loaded with the token and the authorizer code
+     */
+    @Benchmark
+    public Long authorize_loaded() throws Exception {
+        return this.authorizer.clone().authorize(this.limits);
+    }
+
+    /**
+     * authorizes with an authorizer created from prepared authorizer code
+     */
+    @Benchmark
+    public Long authorize_prepared() throws Exception {
+        return this.prepared.authorizer(this.token).authorize(this.limits);
+    }
+
+    private Authorizer authorizer(Authorizer authorizer) throws Error.Parser {
+        for (String fact : this.authorizerFacts) {
+            authorizer.add_fact(fact);
+        }
+        for (String rule : this.authorizerRules) {
+            authorizer.add_rule(rule);
+        }
+        for (String check : this.authorizerChecks) {
+            authorizer.add_check(check);
+        }
+        return authorizer.allow();
+    }
+}
@@ -0,0 +1,59 @@
+package org.biscuitsec.biscuit.benchmarks;
+
+import io.vavr.control.Either;
+import org.biscuitsec.biscuit.token.builder.Block;
+import org.biscuitsec.biscuit.token.builder.parser.Error;
+import org.biscuitsec.biscuit.token.builder.parser.Parser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of datalog blocks made of facts, rules and checks
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    /**
+     * number of facts, rules and checks of each kind in the block
+     */
+    @Param({"1", "10", "100"})
+    public int statements;
+
+    private String source;
+
+    @Setup
+    public void setup() {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < this.statements; i++) {
+            source.append("right(\"file").append(i).append("\", \"read\");\n");
+            source.append("member(\"user").append(i).append("\", [\"admin\", \"group").append(i % 10).append("\"]);\n");
+            source.append("can_read").append(i).append("($user, $file) <- member($user, $groups), right($file, \"read\"), ")
+                    .append("$groups.contains(\"admin\"), $file.starts_with(\"file\");\n");
+            source.append("check if resource($file), operation($op), right($file, $op), ")
+                    .append("time($time), $time < 2030-01-01T00:00:00Z, $op == \"read\" || $op == \"write\";\n");
+        }
+        this.source = source.toString();
+    }
+
+    @Benchmark
+    public Either<Map<Integer, List<Error>>, Block> datalog() {
+        return Parser.datalog(0, this.source);
+    }
+}
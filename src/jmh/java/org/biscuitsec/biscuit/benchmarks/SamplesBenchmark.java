@@ -0,0 +1,109 @@
+package org.biscuitsec.biscuit.benchmarks;
+
+import biscuit.format.schema.Schema;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.vavr.control.Either;
+import io.vavr.control.Option;
+import org.biscuitsec.biscuit.crypto.PublicKey;
+import org.biscuitsec.biscuit.error.Error;
+import org.biscuitsec.biscuit.token.Biscuit;
+import org.biscuitsec.biscuit.token.Block;
+import org.biscuitsec.biscuit.token.format.BiscuitDecoder;
+import org.biscuitsec.biscuit.token.format.SerializedBiscuit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Thread.currentThread;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Deserialization, decoding and signature verification of the valid tokens of the samples corpus
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplesBenchmark {
+    @Param({
+            "test001_basic.bc",
+            "test007_scoped_rules.bc",
+            "test013_block_rules.bc",
+            "test017_expressions.bc",
+            "test020_sealed.bc",
+            "test024_third_party.bc",
+            "test026_public_keys_interning.bc",
+            "test028_expressions_v4.bc",
+    })
+    public String sample;
+
+    private PublicKey root;
+    private byte[] data;
+    private SerializedBiscuit serialized;
+
+    @Setup
+    public void setup() throws Exception {
+        try (InputStream inputStream = resource("samples/samples.json")) {
+            JsonObject samples = JsonParser.parseReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8)).getAsJsonObject();
+            this.root = new PublicKey(Schema.PublicKey.Algorithm.Ed25519, samples.get("root_public_key").getAsString());
+        }
+        try (InputStream inputStream = resource("samples/" + this.sample)) {
+            this.data = inputStream.readAllBytes();
+        }
+        this.serialized = SerializedBiscuit.unsafe_deserialize(this.data);
+    }
+
+    @Benchmark
+    public Biscuit from_bytes() throws Exception {
+        return Biscuit.from_bytes(this.data, this.root);
+    }
+
+    @Benchmark
+    public Either<Error, Void> verify() throws Exception {
+        return this.serialized.verify(this.root);
+    }
+
+    @Benchmark
+    public SerializedBiscuit decode() throws Exception {
+        return BiscuitDecoder.decode(ByteBuffer.wrap(this.data));
+    }
+
+    /**
+     * parsing into the generated messages only, {@link #decode()} also builds the token
+     */
+    @Benchmark
+    public Schema.Biscuit parse_generated() throws Exception {
+        return Schema.Biscuit.parseFrom(this.data);
+    }
+
+    @Benchmark
+    public Either<Error.FormatError, Block> decode_authority() {
+        return BiscuitDecoder.decode_block(this.serialized.authority.block, Option.none());
+    }
+
+    @Benchmark
+    public Either<Error.FormatError, Block> deserialize_authority_generated() throws Exception {
+        return Block.deserialize(Schema.Block.parseFrom(this.serialized.authority.block), Option.none());
+    }
+
+    private static InputStream resource(String name) {
+        return requireNonNull(currentThread().getContextClassLoader().getResourceAsStream(name), name + " cannot be found");
+    }
+}
@@ -0,0 +1,100 @@
+package org.biscuitsec.biscuit.benchmarks;
+
+import io.vavr.control.Either;
+import org.biscuitsec.biscuit.crypto.KeyPair;
+import org.biscuitsec.biscuit.crypto.PublicKey;
+import org.biscuitsec.biscuit.error.Error;
+import org.biscuitsec.biscuit.token.Biscuit;
+import org.biscuitsec.biscuit.token.builder.Block;
+import org.biscuitsec.biscuit.token.format.SerializedBiscuit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deserialization, signature verification and attenuation of tokens with an increasing number of blocks
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenBenchmark {
+    /**
+     * number of blocks, including the authority block
+     */
+    @Param({"1", "2", "5", "10"})
+    public int blocks;
+
+    private SecureRandom rng;
+    private PublicKey root;
+    private KeyPair next;
+    private Biscuit token;
+    private byte[] data;
+    private SerializedBiscuit serialized;
+    private Block attenuation;
+
+    @Setup
+    public void setup() throws Exception {
+        this.rng = new SecureRandom();
+        KeyPair root = new KeyPair(this.rng);
+        this.root = root.public_key();
+
+        Biscuit token = Biscuit.builder(this.rng, root)
+                .add_authority_fact("user(\"user-1234\")")
+                .add_authority_fact("right(\"file1\", \"read\")")
+                .add_authority_fact("right(\"file1\", \"write\")")
+                .add_authority_fact("right(\"file2\", \"read\")")
+                .add_authority_rule("can_read($file) <- right($file, \"read\")")
+                .build();
+        for (int i = 1; i < this.blocks; i++) {
+            token = token.attenuate(this.rng, new KeyPair(this.rng), attenuation(i));
+        }
+
+        this.token = token;
+        this.data = token.serialize();
+        this.serialized = SerializedBiscuit.unsafe_deserialize(this.data);
+        this.next = new KeyPair(this.rng);
+        this.attenuation = attenuation(this.blocks);
+    }
+
+    @Benchmark
+    public Biscuit from_bytes() throws Exception {
+        return Biscuit.from_bytes(this.data, this.root);
+    }
+
+    @Benchmark
+    public Either<Error, Void> verify() throws Exception {
+        return this.serialized.verify(this.root);
+    }
+
+    @Benchmark
+    public Biscuit attenuate() throws Exception {
+        return this.token.attenuate(this.rng, this.next, this.attenuation);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+        return this.token.serialize();
+    }
+
+    private static Block attenuation(int index) throws Error.Parser {
+        return new Block()
+                .add_fact("depth(" + index + ")")
+                .add_check("check if operation(\"read\")")
+                .add_check("check if resource($file), can_read($file), $file.starts_with(\"file\")")
+                .add_check("check if time($time), $time < 2030-01-01T00:00:00Z");
+    }
+}
@@ -0,0 +1,146 @@
+package org.biscuitsec.biscuit.datalog;
+
+import org.biscuitsec.biscuit.error.Error;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time and fuel left to an evaluation started with some {@link RunLimits}
+ * <p>
+ * The deadline is computed from {@link System#nanoTime()}, so it does not depend on the wall clock. One unit
+ * of fuel is consumed for each fact read by a join and for each expression evaluated, so the fuel consumed by
+ * an evaluation only depends on its facts and rules. The work is counted by {@link Meter}s, one per thread,
+ * that only check the deadline once they have consumed {@link #CHECK_INTERVAL} units.
+ * <p>
+ * A budget can be cancelled from another thread, the evaluation then stops at the next check like on a timeout.
+ */
+public final class Budget {
+   // fuel consumed by a meter between two checks of the deadline
+   static final long CHECK_INTERVAL = 1024;
+
+   private final long start;
+   private final long timeout;
+   private final long maxFuel;
+   private final AtomicLong consumed = new AtomicLong();
+   private volatile boolean cancelled = false;
+
+   public Budget(RunLimits limits) {
+      this.start = System.nanoTime();
+      long timeout;
+      try {
+         timeout = limits.maxTime.toNanos();
+      } catch (ArithmeticException e) {
+         timeout = Long.MAX_VALUE;
+      }
+      this.timeout = timeout;
+      this.maxFuel = limits.maxFuel;
+   }
+
+   /**
+    * @return the fuel consumed so far
+    */
+   public long consumed() {
+      return this.consumed.get();
+   }
+
+   /**
+    * Stops the evaluations using this budget, they fail with {@link Error.Timeout}
+    */
+   public void cancel() {
+      this.cancelled = true;
+   }
+
+   public boolean cancelled() {
+      return this.cancelled;
+   }
+
+   /**
+    * @return the time left before the deadline, in nanoseconds
+    */
+   public long remaining() {
+      return this.timeout - (System.nanoTime() - this.start);
+   }
+
+   /**
+    * @throws Error.Timeout if the deadline has passed or the budget was cancelled
+    * @throws Error.OutOfFuel if more fuel than allowed was consumed
+    */
+   public void check() throws Error {
+      if (this.consumed.get() > this.maxFuel) {
+         throw new Error.OutOfFuel();
+      }
+      if (this.cancelled || this.remaining() <= 0) {
+         throw new Error.Timeout();
+      }
+   }
+
+   /**
+    * @return a meter counting the work of the calling thread
+    */
+   public Meter meter() {
+      return new Meter();
+   }
+
+   /**
+    * Counts the fuel consumed by one thread, and adds it to the budget at regular intervals
+    * <p>
+    * The fuel limit is checked exactly: the meter is flushed before the budget's remaining fuel runs out.
+    */
+   public final class Meter {
+      private long pending = 0;
+      // pending fuel triggering the next flush
+      private long threshold;
+      private Error exhausted = null;
+
+      private Meter() {
+         this.threshold = threshold(Budget.this.consumed.get());
+      }
+
+      /**
+       * @return false once the budget is exhausted, then {@link #error()} tells which limit was reached
+       */
+      boolean consume(long units) {
+         this.pending += units;
+         if (this.pending < this.threshold) {
+            return true;
+         }
+         return this.flush();
+      }
+
+      /**
+       * adds the pending fuel to the budget, and checks the limits
+       *
+       * @return false once the budget is exhausted
+       */
+      boolean flush() {
+         if (this.exhausted != null) {
+            return false;
+         }
+         final long consumed = Budget.this.consumed.addAndGet(this.pending);
+         this.pending = 0;
+         if (consumed > Budget.this.maxFuel) {
+            this.exhausted = new Error.OutOfFuel();
+            return false;
+         }
+         if (Budget.this.cancelled || Budget.this.remaining() <= 0) {
+            this.exhausted = new Error.Timeout();
+            return false;
+         }
+         this.threshold = threshold(consumed);
+         return true;
+      }
+
+      /**
+       * @return the limit that was reached, null if the budget is not exhausted
+       */
+      Error error() {
+         return this.exhausted;
+      }
+   }
+
+   // pending fuel triggering a flush: the check interval, or less so the meter is flushed as soon as the limit is exceeded
+   private long threshold(long consumed) {
+      final long left = this.maxFuel - consumed;
+      return left >= CHECK_INTERVAL ? CHECK_INTERVAL : Math.max(1, left + 1);
+   }
+}
@@ -0,0 +1,97 @@
+package org.biscuitsec.biscuit.datalog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+
+/**
+ * Facts that may match a rule body predicate, as rows of the relations holding them
+ * <p>
+ * {@link HashJoin} reads their terms from the relations' columns by row, so a {@link Fact} is only
+ * built for the facts a rule produces. The rows are added as lookups on each relation, and only read
+ * when the join needs them, so a join stopping at its first match does not read all of them.
+ */
+final class Candidates {
+   private Relation[] relations;
+   private int[] rows;
+   private int size;
+   // lookups whose rows were not all read yet
+   private final ArrayList<Relation> pending;
+   private final ArrayList<PrimitiveIterator.OfInt> pendingRows;
+   private int current;
+   private long estimate;
+
+   Candidates() {
+      this.relations = new Relation[8];
+      this.rows = new int[8];
+      this.size = 0;
+      this.pending = new ArrayList<>(2);
+      this.pendingRows = new ArrayList<>(2);
+      this.current = 0;
+      this.estimate = 0;
+   }
+
+   /**
+    * @param rows rows of the relation, read by {@link #read()}
+    * @param estimate maximum number of rows
+    */
+   void add(final Relation relation, final PrimitiveIterator.OfInt rows, final int estimate) {
+      this.pending.add(relation);
+      this.pendingRows.add(rows);
+      this.estimate += estimate;
+   }
+
+   /**
+    * @return the maximum number of candidates, known before reading them
+    */
+   long estimate() {
+      return this.estimate;
+   }
+
+   /**
+    * moves the next row that was not read yet to the end of the candidates
+    *
+    * @return false if all the rows were read
+    */
+   boolean read() {
+      while (this.current < this.pending.size()) {
+         final PrimitiveIterator.OfInt rows = this.pendingRows.get(this.current);
+         if (rows.hasNext()) {
+            this.append(this.pending.get(this.current), rows.nextInt());
+            return true;
+         }
+         this.current += 1;
+      }
+      return false;
+   }
+
+   /**
+    * removes the last candidate that was read
+    */
+   void drop() {
+      this.size -= 1;
+      this.relations[this.size] = null;
+   }
+
+   int size() {
+      return this.size;
+   }
+
+   Relation relation(final int i) {
+      return this.relations[i];
+   }
+
+   int row(final int i) {
+      return this.rows[i];
+   }
+
+   private void append(final Relation relation, final int row) {
+      if (this.size == this.rows.length) {
+         this.relations = Arrays.copyOf(this.relations, this.size * 2);
+         this.rows = Arrays.copyOf(this.rows, this.size * 2);
+      }
+      this.relations[this.size] = relation;
+      this.rows[this.size] = row;
+      this.size += 1;
+   }
+}
@@ -5,12 +5,19 @@ import io.vavr.control.Option;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
 
+/**
+ * Nested loops evaluation of a rule body, that rules used before {@link HashJoin}
+ *
+ * @deprecated rules are evaluated by {@link HashJoin}, this is not used anymore
+ */
+@Deprecated
 public final class Combinator implements Serializable, Iterator<Tuple2<Origin, Map<Long, Term>>> {
    private MatchedVariables variables;
-   private final Supplier<Stream<Tuple2<Origin, Fact>>> allFacts;
+   private final List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>> sources;
    private final List<Predicate> predicates;
    private final Iterator<Tuple2<Origin, Fact>> currentFacts;
    private Combinator currentIt;
@@ -111,7 +118,8 @@ public final class Combinator implements Serializable, Iterator<Tuple2<Origin, M
                      this.currentOrigin = currentOrigin;
                      // we found a matching fact, we create a new combinator over the rest of the predicates
                      // no need to copy all the expressions at all levels
-                     this.currentIt = new Combinator(vars, predicates.subList(1, predicates.size()), this.allFacts, this.symbols);
+                     this.currentIt = new Combinator(vars, predicates.subList(1, predicates.size()),
+                             this.sources.subList(1, this.sources.size()), this.symbols);
                   }
                   break;
 
@@ -140,13 +148,48 @@ public final class Combinator implements Serializable, Iterator<Tuple2<Origin, M
 
    public Combinator(final MatchedVariables variables, final List<Predicate> predicates,
                      Supplier<Stream<Tuple2<Origin, Fact>>> all_facts, final SymbolTable symbols) {
+      this(variables, predicates, Collections.nCopies(predicates.size(), p -> all_facts.get()), symbols);
+   }
+
+   /**
+    * creates a combinator where each predicate looks up its facts from its own source
+    *
+    * @param sources one fact lookup per predicate, in the same order as the predicates. A lookup receives
+    *                the predicate with its already bound variables replaced by their values, and can
+    *                return any superset of the matching facts
+    */
+   public Combinator(final MatchedVariables variables, final List<Predicate> predicates,
+                     final List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>> sources, final SymbolTable symbols) {
       this.variables = variables;
-      this.allFacts = all_facts;
+      this.sources = sources;
       this.currentIt = null;
       this.predicates = predicates;
-      this.currentFacts = all_facts.get().filter((tuple) -> tuple._2.match_predicate(predicates.get(0))).iterator();
+      if (predicates.isEmpty()) {
+         this.currentFacts = Collections.emptyIterator();
+      } else {
+         final Predicate predicate = predicates.get(0);
+         this.currentFacts = sources.get(0).apply(bound(predicate, variables))
+                 .filter((tuple) -> tuple._2.match_predicate(predicate)).iterator();
+      }
       this.symbols = symbols;
       this.currentOrigin = null;
       this.nextElement = null;
    }
+
+   private static Predicate bound(final Predicate predicate, final MatchedVariables variables) {
+      Predicate p = null;
+      for (int i = 0; i < predicate.terms().size(); i++) {
+         final Term term = predicate.terms().get(i);
+         if (term instanceof Term.Variable) {
+            final Optional<Term> value = variables.get(((Term.Variable) term).value());
+            if (value != null && value.isPresent()) {
+               if (p == null) {
+                  p = predicate.clone();
+               }
+               p.terms().set(i, value.get());
+            }
+         }
+      }
+      return p == null ? predicate : p;
+   }
 }
@@ -0,0 +1,124 @@
+package org.biscuitsec.biscuit.datalog;
+
+import org.biscuitsec.biscuit.datalog.expressions.CompiledExpression;
+import org.biscuitsec.biscuit.datalog.expressions.Op;
+import org.biscuitsec.biscuit.error.Error;
+import io.vavr.control.Option;
+
+import java.util.*;
+
+/**
+ * Rule whose variables are numbered once, in order of appearance in the body
+ * <p>
+ * The bindings of a match are stored in a <code>Term[]</code> frame indexed by those slot numbers,
+ * filled by {@link HashJoin}. The head terms and the variables of the expressions are resolved to
+ * their slot here, so a match is checked and turned into a fact without building a map of its bindings.
+ * The expressions are compiled to {@link CompiledExpression} trees reading the frame directly.
+ */
+final class CompiledRule {
+   private static final int UNBOUND = -1;
+
+   private final Rule rule;
+   // variable id of each slot
+   final long[] variables;
+   // slot of each head term, UNBOUND for constants and variables missing from the body
+   private final int[] head;
+   private final CompiledExpression[] expressions;
+
+   CompiledRule(final Rule rule) {
+      this.rule = rule;
+      this.variables = variables(rule.body());
+
+      final List<Term> headTerms = rule.head().terms();
+      this.head = new int[headTerms.size()];
+      for (int i = 0; i < headTerms.size(); i++) {
+         this.head[i] = slot(this.variables, headTerms.get(i));
+      }
+
+      this.expressions = new CompiledExpression[rule.expressions().size()];
+      for (int i = 0; i < this.expressions.length; i++) {
+         final List<Op> ops = rule.expressions().get(i).getOps();
+         // slot of the variable of each op, UNBOUND for the other ops
+         final int[] slots = new int[ops.size()];
+         for (int j = 0; j < ops.size(); j++) {
+            final Op op = ops.get(j);
+            slots[j] = op instanceof Op.Value ? slot(this.variables, ((Op.Value) op).getValue()) : UNBOUND;
+         }
+         this.expressions[i] = CompiledExpression.compile(rule.expressions().get(i), slots);
+      }
+   }
+
+   /**
+    * @return the variable ids of the body, in order of appearance
+    */
+   static long[] variables(final List<Predicate> body) {
+      final LinkedHashSet<Long> variables = new LinkedHashSet<>();
+      for (final Predicate predicate : body) {
+         for (final Term term : predicate.terms()) {
+            if (term instanceof Term.Variable) {
+               variables.add(((Term.Variable) term).value());
+            }
+         }
+      }
+      return variables.stream().mapToLong(Long::longValue).toArray();
+   }
+
+   static int slot(final long[] variables, final long variable) {
+      for (int i = 0; i < variables.length; i++) {
+         if (variables[i] == variable) {
+            return i;
+         }
+      }
+      return UNBOUND;
+   }
+
+   private static int slot(final long[] variables, final Term term) {
+      if (term instanceof Term.Variable) {
+         return slot(variables, ((Term.Variable) term).value());
+      }
+      return UNBOUND;
+   }
+
+   Term[] frame() {
+      return new Term[this.variables.length];
+   }
+
+   /**
+    * @param meter consumes one unit of fuel per expression evaluated, can be null
+    * @return true if all the expressions evaluate to true with the frame's bindings
+    */
+   boolean check_expressions(final Term[] frame, final SymbolTable symbols, final Budget.Meter meter) throws Error {
+      final TemporarySymbolTable temporarySymbols = new TemporarySymbolTable(symbols);
+      for (final CompiledExpression expression : this.expressions) {
+         if (meter != null && !meter.consume(1)) {
+            throw meter.error();
+         }
+         final Term term = expression.evaluate(frame, temporarySymbols);
+         if (!(term instanceof Term.Bool)) {
+            throw new Error.InvalidType();
+         }
+         if (!((Term.Bool) term).value()) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * @return the head with the frame's bindings, none if a head variable does not appear in the body
+    */
+   Option<Predicate> head(final Term[] frame) {
+      final Predicate head = this.rule.head();
+      final List<Term> terms = new ArrayList<>(this.head.length);
+      for (int i = 0; i < this.head.length; i++) {
+         if (this.head[i] != UNBOUND) {
+            terms.add(frame[this.head[i]]);
+         } else if (head.terms().get(i) instanceof Term.Variable) {
+            return Option.none();
+         } else {
+            terms.add(head.terms().get(i));
+         }
+      }
+      return Option.some(new Predicate(head.name(), terms));
+   }
+}
@@ -3,79 +3,220 @@ package org.biscuitsec.biscuit.datalog;
 import io.vavr.Tuple2;
 
 import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
+/**
+ * Facts grouped by origin
+ * <p>
+ * The facts are stored in one {@link Relation} per predicate name and arity, as columns of primitive values,
+ * and are only turned back into {@link Fact} objects when they are read.
+ */
 public class FactSet {
-    private final HashMap<Origin, HashSet<Fact>> facts;
+    // predicate name -> arity -> facts
+    private final HashMap<Long, HashMap<Integer, Relation>> relations;
+    // facts shared with other fact sets, that are not modified anymore
+    private FactSet base;
+    private int size;
 
     public FactSet() {
-        facts = new HashMap<>();
+        relations = new HashMap<>();
+        base = null;
+    }
+
+    /**
+     * Creates a fact set containing the facts of <code>base</code>, without copying them.
+     * New facts are only added to this fact set, so the base can be shared by multiple
+     * fact sets (and threads), as long as it is not modified anymore
+     */
+    public FactSet(FactSet base) {
+        relations = new HashMap<>();
+        this.base = base;
     }
 
     public FactSet(Origin o, HashSet<Fact> factSet) {
-        facts = new HashMap<>();
-        facts.put(o, factSet);
+        relations = new HashMap<>();
+        base = null;
+        for (Fact fact : factSet) {
+            add(o, fact);
+        }
     }
 
+    /**
+     * The facts grouped by origin. This is a copy that cannot be modified: the methods changing the map
+     * or its sets throw {@link UnsupportedOperationException}
+     *
+     * @deprecated the facts are not stored in this map anymore, use {@link #byOrigin()} to read them
+     * grouped by origin, or {@link #entries()} and {@link #add(Origin, Fact)}
+     */
+    @Deprecated
     public HashMap<Origin, HashSet<Fact>> facts() {
-        return this.facts;
+        HashMap<Origin, HashSet<Fact>> facts = new HashMap<>();
+        for (Map.Entry<Origin, Set<Fact>> entry : this.byOrigin().entrySet()) {
+            facts.put(entry.getKey(), new ReadOnlySet<>(entry.getValue()));
+        }
+        return new ReadOnlyMap<>(facts);
     }
 
-    public void add(Origin origin, Fact fact) {
-        if(!facts.containsKey(origin)) {
-            facts.put(origin, new HashSet<>());
+    /**
+     * @return the facts grouped by origin, in a map that cannot be modified
+     */
+    public Map<Origin, Set<Fact>> byOrigin() {
+        HashMap<Origin, Set<Fact>> facts = new HashMap<>();
+        for (Iterator<Tuple2<Origin, Fact>> it = this.entries().iterator(); it.hasNext(); ) {
+            Tuple2<Origin, Fact> t = it.next();
+            facts.computeIfAbsent(t._1, k -> new HashSet<>()).add(t._2);
+        }
+        for (Map.Entry<Origin, Set<Fact>> entry : facts.entrySet()) {
+            entry.setValue(Collections.unmodifiableSet(entry.getValue()));
         }
-        facts.get(origin).add(fact);
+        return Collections.unmodifiableMap(facts);
     }
 
-    public int size() {
-        int size = 0;
-        for(HashSet<Fact> h: facts.values()) {
-            size += h.size();
+    public boolean contains(Origin origin, Fact fact) {
+        Relation relation = relation(fact.predicate());
+        if (relation != null && relation.contains(origin, fact)) {
+            return true;
         }
+        return base != null && base.contains(origin, fact);
+    }
+
+    /**
+     * @return true if the fact was not already present for this origin
+     */
+    public boolean add(Origin origin, Fact fact) {
+        if (base != null && base.contains(origin, fact)) {
+            return false;
+        }
+        boolean inserted = relations.computeIfAbsent(fact.predicate().name(), k -> new HashMap<>())
+                .computeIfAbsent(fact.predicate().terms().size(), arity -> new Relation(fact.predicate().name(), arity))
+                .add(origin, fact);
+        if (inserted) {
+            size += 1;
+        }
+        return inserted;
+    }
 
+    /**
+     * Removes the fact for this origin. If it comes from the base, the base facts are first copied
+     * to this fact set, since the base is shared
+     *
+     * @return true if the fact was present for this origin
+     */
+    public boolean remove(Origin origin, Fact fact) {
+        if (base != null && base.contains(origin, fact)) {
+            FactSet shared = base;
+            base = null;
+            merge(shared);
+        }
+        Relation relation = relation(fact.predicate());
+        if (relation != null && relation.remove(origin, fact)) {
+            size -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    public void clear() {
+        relations.clear();
+        base = null;
+        size = 0;
+    }
+
+    public int size() {
+        if (base != null) {
+            return size + base.size();
+        }
         return size;
     }
 
     public FactSet clone() {
-        FactSet newFacts = new FactSet();
+        FactSet newFacts = new FactSet(this.base);
 
-        for(Map.Entry<Origin, HashSet<Fact>> entry: this.facts.entrySet()) {
-            HashSet<Fact> h = new HashSet<>(entry.getValue());
-            newFacts.facts.put(entry.getKey(), h);
+        for (Map.Entry<Long, HashMap<Integer, Relation>> entry : this.relations.entrySet()) {
+            HashMap<Integer, Relation> byArity = new HashMap<>();
+            for (Map.Entry<Integer, Relation> relation : entry.getValue().entrySet()) {
+                byArity.put(relation.getKey(), relation.getValue().copy());
+            }
+            newFacts.relations.put(entry.getKey(), byArity);
         }
+        newFacts.size = this.size;
 
         return newFacts;
     }
 
     public void merge(FactSet other) {
-        for(Map.Entry<Origin, HashSet<Fact>> entry: other.facts.entrySet()) {
-            if(!facts.containsKey(entry.getKey())) {
-                facts.put(entry.getKey(), entry.getValue());
-            } else {
-                facts.get(entry.getKey()).addAll(entry.getValue());
-            }
+        for (Iterator<Tuple2<Origin, Fact>> it = other.entries().iterator(); it.hasNext(); ) {
+            Tuple2<Origin, Fact> t = it.next();
+            add(t._1, t._2);
+        }
+    }
+
+    /**
+     * @return all the facts, with their origin
+     */
+    public Stream<Tuple2<Origin, Fact>> entries() {
+        Stream<Tuple2<Origin, Fact>> stream = relations().flatMap(Relation::stream);
+        if (base != null) {
+            stream = Stream.concat(base.entries(), stream);
+        }
+        return stream;
+    }
+
+    public Stream<Tuple2<Origin, Fact>> stream(TrustedOrigins blockIds) {
+        Stream<Tuple2<Origin, Fact>> stream = relations().flatMap(relation -> relation.stream(blockIds));
+        if (base != null) {
+            return Stream.concat(base.stream(blockIds), stream);
+        }
+        return stream;
+    }
+
+    /**
+     * Returns the facts with the predicate's name and arity, from the trusted origins.
+     * Constant terms of the predicate are used to narrow the lookup, but the returned
+     * facts still have to be matched against the predicate
+     */
+    public Stream<Tuple2<Origin, Fact>> stream(TrustedOrigins blockIds, Predicate predicate) {
+        Stream<Tuple2<Origin, Fact>> stream = Stream.empty();
+        Relation relation = relation(predicate);
+        if (relation != null) {
+            stream = relation.candidates(predicate, blockIds);
+        }
+        if (base != null) {
+            stream = Stream.concat(base.stream(blockIds, predicate), stream);
         }
+        return stream;
     }
-    public Stream stream(TrustedOrigins blockIds) {
-        return facts.entrySet()
-                .stream()
-                .filter(entry -> {
-                    Origin o = entry.getKey();
-                    return blockIds.contains(o);
-                })
-                .flatMap(entry -> entry.getValue()
-                        .stream()
-                        .map(fact -> new Tuple2<>(entry.getKey(), fact)));
+
+    /**
+     * Adds the rows of the facts returned by {@link #stream(TrustedOrigins, Predicate)}
+     */
+    void candidates(TrustedOrigins blockIds, Predicate predicate, Candidates into) {
+        if (base != null) {
+            base.candidates(blockIds, predicate, into);
+        }
+        Relation relation = relation(predicate);
+        if (relation != null) {
+            relation.candidates(predicate, blockIds, into);
+        }
     }
 
     public Stream<Fact> stream() {
-        return facts.entrySet()
-                .stream()
-                .flatMap(entry -> entry.getValue()
-                        .stream());
+        return entries().map(t -> t._2);
     }
 
+    private Stream<Relation> relations() {
+        return relations.values().stream().flatMap(byArity -> byArity.values().stream());
+    }
+
+    private Relation relation(Predicate predicate) {
+        HashMap<Integer, Relation> byArity = relations.get(predicate.name());
+        if (byArity == null) {
+            return null;
+        }
+        return byArity.get(predicate.terms().size());
+    }
 
     @Override
     public boolean equals(Object o) {
@@ -84,18 +225,32 @@ public class FactSet {
 
         FactSet factSet = (FactSet) o;
 
-        return facts.equals(factSet.facts);
+        // each fact is looked up in the other set's relations
+        if (size() != factSet.size()) return false;
+        for (Iterator<Tuple2<Origin, Fact>> it = this.entries().iterator(); it.hasNext(); ) {
+            Tuple2<Origin, Fact> t = it.next();
+            if (!factSet.contains(t._1, t._2)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
     public int hashCode() {
-        return facts.hashCode();
+        // does not depend on the order of the relations and rows
+        int hash = 0;
+        for (Iterator<Tuple2<Origin, Fact>> it = this.entries().iterator(); it.hasNext(); ) {
+            Tuple2<Origin, Fact> t = it.next();
+            hash += t._1.hashCode() ^ t._2.hashCode();
+        }
+        return hash;
     }
 
     @Override
     public String toString() {
         StringBuilder res = new StringBuilder("FactSet {");
-        for(Map.Entry<Origin, HashSet<Fact>> entry: this.facts.entrySet()) {
+        for(Map.Entry<Origin, Set<Fact>> entry: this.byOrigin().entrySet()) {
             res.append("\n\t").append(entry.getKey()).append("[");
             for(Fact fact: entry.getValue()) {
                 res.append("\n\t\t").append(fact);
@@ -106,5 +261,140 @@ public class FactSet {
 
         return res.toString();
     }
-}
 
+    /**
+     * HashMap returned by {@link #facts()}, filled by the constructor then read only
+     */
+    private static final class ReadOnlyMap<K, V> extends HashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        ReadOnlyMap(Map<K, V> m) {
+            super(m);
+        }
+
+        @Override
+        public V put(K key, V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void putAll(Map<? extends K, ? extends V> m) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public V putIfAbsent(K key, V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public V remove(Object key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean remove(Object key, Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public V replace(K key, V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean replace(K key, V oldValue, V newValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<K> keySet() {
+            return Collections.unmodifiableSet(super.keySet());
+        }
+
+        @Override
+        public Collection<V> values() {
+            return Collections.unmodifiableCollection(super.values());
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            return Collections.unmodifiableSet(super.entrySet());
+        }
+    }
+
+    /**
+     * HashSet returned in the map of {@link #facts()}, filled by the constructor then read only
+     */
+    private static final class ReadOnlySet<E> extends HashSet<E> {
+        private static final long serialVersionUID = 1L;
+
+        ReadOnlySet(Collection<? extends E> c) {
+            super(c.size() * 2);
+            for (E e : c) {
+                super.add(e);
+            }
+        }
+
+        @Override
+        public boolean add(E e) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            Iterator<E> it = super.iterator();
+            return new Iterator<E>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public E next() {
+                    return it.next();
+                }
+            };
+        }
+    }
+}
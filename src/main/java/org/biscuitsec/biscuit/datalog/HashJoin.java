@@ -0,0 +1,514 @@
+package org.biscuitsec.biscuit.datalog;
+
+import io.vavr.Tuple2;
+import io.vavr.control.Option;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Evaluates a rule body as a pipeline of hash joins
+ * <p>
+ * The predicates are ordered starting from the smallest relation, each next one being the predicate
+ * sharing the most variables with those already joined, using the number of candidate facts each lookup
+ * can return. Each relation after the first is indexed on those shared variables, so a partial set of
+ * bindings is extended with a hash lookup instead of a scan over all the facts. The candidates of a step
+ * are only read when the join first reaches it, and those of the first step as the join goes through them,
+ * so finding a single match can stop early.
+ * <p>
+ * It produces the same (origin, variables) pairs as the nested loops evaluation it replaced, in a different order.
+ * The candidates are read by row from their {@link Relation}'s columns, and the bindings are kept
+ * encoded the same way in a frame with one slot per variable: {@link #advance()} moves to the next match
+ * without copying them, and only builds the terms of the matches, while the iterator copies them to a map
+ * for each match.
+ * <p>
+ * With a {@link Budget.Meter}, each candidate fact read and each index probe consume one unit of fuel,
+ * and the join stops once the budget is exhausted.
+ */
+public final class HashJoin implements Iterator<Tuple2<Origin, Map<Long, Term>>> {
+   private final List<Predicate> body;
+   private final List<Source> sources;
+
+   // the following are set up on the first call to getNext, all indexed by join step
+   private Candidates[] relations;
+   // term positions holding variables bound by a previous step, used as the index key
+   private int[][] keyPositions;
+   private int[][] keySlots;
+   // term positions of the variables this step binds
+   private int[][] bindPositions;
+   private int[][] bindSlots;
+   // pairs of positions holding the same variable
+   private int[][] repeated;
+   private Index[] indexes;
+   // next candidate to read at each step, or in the index chain when the step has a key
+   private int[] cursors;
+   private int[] keyHashes;
+
+   private Origin[] origins;
+   // variable id of each slot of the frame
+   private final long[] variables;
+   // bindings, as read from the relations' columns
+   private final byte[] kinds;
+   private final long[] values;
+   private final Term[] complex;
+   private final Term[] frame;
+   // null if the work is not counted
+   private final Budget.Meter meter;
+   private int step;
+   private boolean done;
+   // set when reading the candidates exhausted the budget
+   private boolean exhausted;
+
+   private Option<Tuple2<Origin, Map<Long, Term>>> nextElement;
+
+   /**
+    * Adds the lookups of the candidate facts of a predicate, having its name and arity and the same terms at
+    * its constant positions
+    */
+   interface Source {
+      void candidates(Predicate predicate, Candidates into);
+   }
+
+   /**
+    * @param body the rule's predicates
+    * @param sources one fact lookup per predicate, in the same order as the predicates
+    */
+   public HashJoin(final List<Predicate> body, final List<Function<Predicate, Stream<Tuple2<Origin, Fact>>>> sources) {
+      this(body, sources.stream().map(HashJoin::source).collect(Collectors.toList()), CompiledRule.variables(body), null);
+   }
+
+   /**
+    * @param variables variable id of each slot of the frame, covering all the variables of the body
+    * @param meter counts the work of the join, can be null
+    */
+   HashJoin(final List<Predicate> body, final List<Source> sources, final long[] variables, final Budget.Meter meter) {
+      this.body = body;
+      this.sources = sources;
+      this.variables = variables;
+      this.meter = meter;
+      this.kinds = new byte[variables.length];
+      this.values = new long[variables.length];
+      this.complex = new Term[variables.length];
+      this.frame = new Term[variables.length];
+      this.step = -1;
+      this.done = false;
+      this.nextElement = null;
+   }
+
+   /**
+    * a source reading the facts of a lookup, that are copied to a relation when the join starts
+    */
+   static Source source(final Function<Predicate, Stream<Tuple2<Origin, Fact>>> facts) {
+      return (predicate, into) -> {
+         final Relation relation = new Relation(predicate.name(), predicate.terms().size());
+         for (Iterator<Tuple2<Origin, Fact>> it = facts.apply(predicate).iterator(); it.hasNext(); ) {
+            final Tuple2<Origin, Fact> t = it.next();
+            if (t._2.match_predicate(predicate)) {
+               relation.add(t._1, t._2);
+            }
+         }
+         into.add(relation, IntStream.range(0, relation.size()).iterator(), relation.size());
+      };
+   }
+
+   /**
+    * a source reading the facts of a fact set, from the trusted origins
+    */
+   static Source source(final FactSet facts, final TrustedOrigins scope) {
+      return (predicate, into) -> facts.candidates(scope, predicate, into);
+   }
+
+   @Override
+   public boolean hasNext() {
+      if (this.nextElement != null && this.nextElement.isDefined()) {
+         return true;
+      }
+      this.nextElement = getNext();
+      return this.nextElement.isDefined();
+   }
+
+   @Override
+   public Tuple2<Origin, Map<Long, Term>> next() {
+      if (this.nextElement == null || !this.nextElement.isDefined()) {
+         this.nextElement = getNext();
+      }
+      if (this.nextElement == null || !this.nextElement.isDefined()) {
+         throw new NoSuchElementException();
+      } else {
+         Tuple2<Origin, Map<Long, Term>> t = this.nextElement.get();
+         this.nextElement = Option.none();
+         return t;
+      }
+   }
+
+   public Option<Tuple2<Origin, Map<Long, Term>>> getNext() {
+      final Origin origin = this.advance();
+      if (origin == null) {
+         return Option.none();
+      }
+
+      final Map<Long, Term> bindings = new HashMap<>();
+      for (int i = 0; i < this.variables.length; i++) {
+         bindings.put(this.variables[i], this.frame[i]);
+      }
+      return Option.some(new Tuple2<>(origin, bindings));
+   }
+
+   /**
+    * the frame holding the bindings of the current match, overwritten by the next call to {@link #advance()}
+    */
+   Term[] frame() {
+      return this.frame;
+   }
+
+   /**
+    * moves to the next match, and fills the frame with its bindings
+    *
+    * @return the origin of the match, or null if there are no more matches or the budget is exhausted
+    */
+   Origin advance() {
+      if (this.done) {
+         return null;
+      }
+
+      if (this.step == -1) {
+         // a rule without predicates matches once
+         if (this.body.isEmpty()) {
+            this.done = true;
+            return new Origin();
+         }
+
+         if (!plan()) {
+            this.done = true;
+            return null;
+         }
+         this.step = 0;
+         this.cursors[0] = 0;
+      }
+
+      final int last = this.relations.length - 1;
+      while (this.step >= 0) {
+         final int candidate = next(this.step);
+         if (candidate < 0) {
+            if (this.exhausted) {
+               break;
+            }
+            this.step -= 1;
+            continue;
+         }
+
+         if (this.meter != null && !this.meter.consume(1)) {
+            break;
+         }
+         final Relation relation = this.relations[this.step].relation(candidate);
+         final int row = this.relations[this.step].row(candidate);
+         final int[] positions = this.bindPositions[this.step];
+         final int[] slots = this.bindSlots[this.step];
+         // values bound by the previous fact at this step are simply overwritten: the slots of
+         // the next steps are only read once those steps have bound them, so backtracking needs no undo
+         for (int i = 0; i < positions.length; i++) {
+            this.kinds[slots[i]] = relation.kind(positions[i], row);
+            this.values[slots[i]] = relation.value(positions[i], row);
+            this.complex[slots[i]] = relation.complex(positions[i], row);
+         }
+
+         final Origin origin = relation.origin(row);
+         if (this.step == last) {
+            for (int i = 0; i < this.frame.length; i++) {
+               this.frame[i] = Relation.term(this.kinds[i], this.values[i], this.complex[i]);
+            }
+            // the caller owns the origin of a match, and adds the rule's origin to it
+            return this.step == 0 ? origin.clone() : this.origins[this.step - 1].union(origin);
+         }
+         // the origins of the other steps are only read by the next steps, so they are updated in place
+         if (this.step == 0) {
+            this.origins[0] = origin;
+         } else {
+            this.origins[this.step - 1].unionInto(origin, this.origins[this.step]);
+         }
+
+         this.step += 1;
+         if (this.meter != null && !this.meter.consume(1)) {
+            break;
+         }
+         if (!probe(this.step)) {
+            break;
+         }
+      }
+
+      this.done = true;
+      return null;
+   }
+
+   /**
+    * looks up the candidate facts and chooses the join order
+    *
+    * @return false if a predicate has no candidate facts, so the body cannot match
+    */
+   private boolean plan() {
+      final int size = this.body.size();
+      final List<Candidates> candidates = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+         final Candidates facts = new Candidates();
+         this.sources.get(i).candidates(this.body.get(i), facts);
+         if (facts.estimate() == 0) {
+            return false;
+         }
+         candidates.add(facts);
+      }
+
+      this.relations = new Candidates[size];
+      this.keyPositions = new int[size][];
+      this.keySlots = new int[size][];
+      this.bindPositions = new int[size][];
+      this.bindSlots = new int[size][];
+      this.repeated = new int[size][];
+      this.indexes = new Index[size];
+      this.cursors = new int[size];
+      this.keyHashes = new int[size];
+      this.origins = new Origin[size];
+      for (int step = 1; step < size - 1; step++) {
+         this.origins[step] = new Origin();
+      }
+
+      final Set<Long> bound = new HashSet<>();
+      final boolean[] joined = new boolean[size];
+      for (int step = 0; step < size; step++) {
+         // most shared variables first, then smallest relation
+         int best = -1;
+         int bestShared = -1;
+         for (int i = 0; i < size; i++) {
+            if (joined[i]) {
+               continue;
+            }
+            int shared = (int) variables(this.body.get(i)).stream().filter(bound::contains).count();
+            if (shared > bestShared || (shared == bestShared && candidates.get(i).estimate() < candidates.get(best).estimate())) {
+               best = i;
+               bestShared = shared;
+            }
+         }
+         joined[best] = true;
+
+         final List<Term> terms = this.body.get(best).terms();
+         final ArrayList<Integer> keyPositions = new ArrayList<>();
+         final ArrayList<Integer> bindPositions = new ArrayList<>();
+         final Set<Long> newlyBound = new HashSet<>();
+         for (int i = 0; i < terms.size(); i++) {
+            if (terms.get(i) instanceof Term.Variable) {
+               long variable = ((Term.Variable) terms.get(i)).value();
+               if (bound.contains(variable)) {
+                  keyPositions.add(i);
+               } else if (newlyBound.add(variable)) {
+                  bindPositions.add(i);
+               }
+            }
+         }
+         bound.addAll(newlyBound);
+
+         this.relations[step] = candidates.get(best);
+         this.keyPositions[step] = keyPositions.stream().mapToInt(Integer::intValue).toArray();
+         this.keySlots[step] = keyPositions.stream().mapToInt(i -> slot(terms.get(i))).toArray();
+         this.bindPositions[step] = bindPositions.stream().mapToInt(Integer::intValue).toArray();
+         this.bindSlots[step] = bindPositions.stream().mapToInt(i -> slot(terms.get(i))).toArray();
+         this.repeated[step] = repeated(this.body.get(best));
+      }
+
+      return true;
+   }
+
+   /**
+    * starts reading the candidates of the step that match the bindings of the previous steps
+    *
+    * @return false if the budget is exhausted
+    */
+   private boolean probe(final int step) {
+      final int[] slots = this.keySlots[step];
+      if (slots.length == 0) {
+         this.cursors[step] = 0;
+         return true;
+      }
+
+      final Index index = index(step);
+      if (index == null) {
+         return false;
+      }
+      int hash = 0;
+      for (int slot : slots) {
+         hash = hash * 31 + Relation.hash(this.kinds[slot], this.values[slot], this.complex[slot]);
+      }
+      this.keyHashes[step] = hash;
+      this.cursors[step] = index.first(hash);
+      return true;
+   }
+
+   /**
+    * @return the next candidate of the step matching the bindings, or -1
+    */
+   private int next(final int step) {
+      final Candidates candidates = this.relations[step];
+      int candidate = this.cursors[step];
+      if (this.keySlots[step].length == 0) {
+         // read the first time the step goes through its candidates
+         while (candidate >= candidates.size()) {
+            if (!read(step)) {
+               return -1;
+            }
+         }
+         this.cursors[step] = candidate + 1;
+         return candidate;
+      }
+
+      final Index index = this.indexes[step];
+      while (candidate >= 0 && !(index.hashes[candidate] == this.keyHashes[step] && matchesKey(step, candidate))) {
+         candidate = index.next[candidate];
+      }
+      this.cursors[step] = candidate < 0 ? -1 : index.next[candidate];
+      return candidate;
+   }
+
+   /**
+    * reads one more candidate of the step, that is dropped if it does not match the predicate's repeated variables
+    *
+    * @return false if all the candidates were read, or if the budget is exhausted
+    */
+   private boolean read(final int step) {
+      final Candidates candidates = this.relations[step];
+      if (!candidates.read()) {
+         return false;
+      }
+      if (this.meter != null && !this.meter.consume(1)) {
+         this.exhausted = true;
+         return false;
+      }
+      final int last = candidates.size() - 1;
+      if (!consistent(this.repeated[step], candidates.relation(last), candidates.row(last))) {
+         candidates.drop();
+      }
+      return true;
+   }
+
+   private boolean matchesKey(final int step, final int candidate) {
+      final Relation relation = this.relations[step].relation(candidate);
+      final int row = this.relations[step].row(candidate);
+      final int[] positions = this.keyPositions[step];
+      final int[] slots = this.keySlots[step];
+      for (int i = 0; i < positions.length; i++) {
+         if (!Relation.same(this.kinds[slots[i]], this.values[slots[i]], this.complex[slots[i]],
+                 relation.kind(positions[i], row), relation.value(positions[i], row), relation.complex(positions[i], row))) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   // built the first time the step is reached, returns null if the budget is exhausted
+   private Index index(final int step) {
+      Index index = this.indexes[step];
+      if (index == null) {
+         boolean more = true;
+         while (more) {
+            more = read(step);
+         }
+         if (this.exhausted) {
+            return null;
+         }
+         final Candidates candidates = this.relations[step];
+         final int[] positions = this.keyPositions[step];
+         index = new Index(candidates.size());
+         // added from the end so that each chain lists the candidates in order
+         for (int c = candidates.size() - 1; c >= 0; c--) {
+            final Relation relation = candidates.relation(c);
+            final int row = candidates.row(c);
+            int hash = 0;
+            for (int position : positions) {
+               hash = hash * 31 + Relation.hash(relation.kind(position, row), relation.value(position, row),
+                       relation.complex(position, row));
+            }
+            index.add(c, hash);
+         }
+         this.indexes[step] = index;
+      }
+      return index;
+   }
+
+   private int slot(final Term variable) {
+      final int slot = CompiledRule.slot(this.variables, ((Term.Variable) variable).value());
+      if (slot < 0) {
+         throw new IllegalArgumentException("no slot for variable " + variable);
+      }
+      return slot;
+   }
+
+   private static Set<Long> variables(final Predicate predicate) {
+      final Set<Long> variables = new HashSet<>();
+      for (Term term : predicate.terms()) {
+         if (term instanceof Term.Variable) {
+            variables.add(((Term.Variable) term).value());
+         }
+      }
+      return variables;
+   }
+
+   /**
+    * @return pairs of positions holding the same variable, each variable position after the first one
+    * being paired with the first one
+    */
+   private static int[] repeated(final Predicate predicate) {
+      final List<Term> terms = predicate.terms();
+      final ArrayList<Integer> pairs = new ArrayList<>();
+      for (int i = 0; i < terms.size(); i++) {
+         if (terms.get(i) instanceof Term.Variable) {
+            for (int j = 0; j < i; j++) {
+               if (terms.get(i).equals(terms.get(j))) {
+                  pairs.add(i);
+                  pairs.add(j);
+                  break;
+               }
+            }
+         }
+      }
+      return pairs.stream().mapToInt(Integer::intValue).toArray();
+   }
+
+   // a variable appearing several times in the predicate must have the same value everywhere
+   private static boolean consistent(final int[] repeated, final Relation relation, final int row) {
+      for (int i = 0; i < repeated.length; i += 2) {
+         if (!relation.same(row, repeated[i], repeated[i + 1])) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * the candidates of a step chained by the hash of their key, without boxing
+    */
+   private static final class Index {
+      // first candidate of each bucket, or -1
+      final int[] heads;
+      final int[] next;
+      final int[] hashes;
+
+      Index(final int size) {
+         int buckets = Integer.highestOneBit(Math.max(size, 1)) * 2;
+         this.heads = new int[buckets];
+         Arrays.fill(this.heads, -1);
+         this.next = new int[size];
+         this.hashes = new int[size];
+      }
+
+      void add(final int candidate, final int hash) {
+         final int bucket = hash & (this.heads.length - 1);
+         this.hashes[candidate] = hash;
+         this.next[candidate] = this.heads[bucket];
+         this.heads[bucket] = candidate;
+      }
+
+      int first(final int hash) {
+         return this.heads[hash & (this.heads.length - 1)];
+      }
+   }
+}
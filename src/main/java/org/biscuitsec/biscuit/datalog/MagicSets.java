@@ -0,0 +1,273 @@
+package org.biscuitsec.biscuit.datalog;
+
+import io.vavr.Tuple2;
+
+import java.util.*;
+
+/**
+ * Magic set rewriting of a rule set, so the rules only derive the facts that can match a list of queries
+ * <p>
+ * Each body predicate of a query that is produced by rules becomes a goal, with the positions holding a constant
+ * as bound positions. A goal has a demand predicate, holding the values requested for the bound positions, seeded
+ * with the constants of the query. For each goal, the rules producing its predicate get the demand predicate
+ * prepended to their body, and each body predicate produced by rules becomes a goal in turn, bound at the positions
+ * holding a constant or a variable bound by the head or by the predicates before it. Its demand is derived by a rule
+ * joining the rule's demand and these predicates, in the rule's scope.
+ * <p>
+ * Demand predicates have negative names, so they cannot collide with symbols, and their facts have an empty origin:
+ * they are visible to all the rules, and do not change the origins of the facts derived with them.
+ * <p>
+ * A rewriting can be extended with more rules and queries, reusing the goals it already rewrote, as long as the new
+ * rules do not produce a predicate it already needed without finding rules for it.
+ */
+public final class MagicSets {
+   // head predicate -> rules producing it, with their scope
+   private final HashMap<Long, List<Tuple2<TrustedOrigins, Tuple2<Long, Rule>>>> producers;
+   // rules of the producers, by identity
+   private final Set<Rule> sources;
+   private int size;
+   private final HashMap<Goal, Long> goals;
+   // predicates of the queries and goals' rules that no rule produced
+   private final Set<Long> skipped;
+   private final Deque<Goal> pending = new ArrayDeque<>();
+   private final RuleSet rewritten;
+   private final FactSet seeds;
+
+   private MagicSets(RuleSet rules) {
+      this.producers = new HashMap<>();
+      this.sources = Collections.newSetFromMap(new IdentityHashMap<>());
+      this.goals = new HashMap<>();
+      this.skipped = new HashSet<>();
+      this.rewritten = new RuleSet();
+      this.seeds = new FactSet();
+      for (Map.Entry<TrustedOrigins, List<Tuple2<Long, Rule>>> entry : rules.rules.entrySet()) {
+         for (Tuple2<Long, Rule> rule : entry.getValue()) {
+            this.produce(entry.getKey(), rule);
+         }
+      }
+   }
+
+   // shares the rewritten rules and seeds of the base, that is not modified anymore
+   private MagicSets(MagicSets base) {
+      this.producers = new HashMap<>();
+      for (Map.Entry<Long, List<Tuple2<TrustedOrigins, Tuple2<Long, Rule>>>> entry : base.producers.entrySet()) {
+         this.producers.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+      }
+      this.sources = Collections.newSetFromMap(new IdentityHashMap<>());
+      this.sources.addAll(base.sources);
+      this.size = base.size;
+      this.goals = new HashMap<>(base.goals);
+      this.skipped = new HashSet<>(base.skipped);
+      this.rewritten = new RuleSet(base.rewritten);
+      this.seeds = new FactSet(base.seeds);
+   }
+
+   /**
+    * Rewrites the rules for the queries
+    */
+   public static MagicSets of(RuleSet rules, List<Rule> queries) {
+      MagicSets magic = new MagicSets(rules);
+      magic.seed(queries);
+      magic.complete();
+      return magic;
+   }
+
+   /**
+    * @return a world reading the facts of <code>world</code>, with the rules rewritten for the queries
+    */
+   static World rewrite(World world, List<Rule> queries) {
+      return of(world.rules(), queries).world(world);
+   }
+
+   /**
+    * Rewrites <code>rules</code> for the queries of this rewriting and <code>queries</code>, only rewriting
+    * the goals for the rules that this rewriting does not have. This rewriting is not modified.
+    *
+    * @param rules the rules of this rewriting, and the new ones
+    * @param queries the new queries
+    * @return the rewriting, or null if <code>rules</code> lacks rules of this rewriting, or if a new rule produces a
+    * predicate that this rewriting needed without finding rules for it, then the rules must be rewritten with {@link #of(RuleSet, List)}
+    */
+   public MagicSets extend(RuleSet rules, List<Rule> queries) {
+      final MagicSets magic = new MagicSets(this);
+      final List<Tuple2<TrustedOrigins, Tuple2<Long, Rule>>> added = new ArrayList<>();
+      int known = 0;
+      for (Map.Entry<TrustedOrigins, List<Tuple2<Long, Rule>>> entry : rules.rules.entrySet()) {
+         for (Tuple2<Long, Rule> rule : entry.getValue()) {
+            if (this.sources.contains(rule._2)) {
+               known += 1;
+            } else if (this.skipped.contains(rule._2.head().name())) {
+               return null;
+            } else {
+               added.add(magic.produce(entry.getKey(), rule));
+            }
+         }
+      }
+      if (known != this.size) {
+         return null;
+      }
+
+      for (Tuple2<TrustedOrigins, Tuple2<Long, Rule>> producer : added) {
+         final List<Goal> goals = new ArrayList<>();
+         for (Goal goal : this.goals.keySet()) {
+            if (goal.name == producer._2._2.head().name()) {
+               goals.add(goal);
+            }
+         }
+         for (Goal goal : goals) {
+            magic.rewrite(goal, producer);
+         }
+      }
+      magic.seed(queries);
+      magic.complete();
+      return magic;
+   }
+
+   /**
+    * @return a world reading the facts of <code>world</code>, with the rewritten rules. The facts derived from
+    * facts removed since the last run of <code>world</code> are not read
+    */
+   World world(World world) {
+      World rewritten = new World(new FactSet(world.valid_facts()), this.rewritten, new HashSet<>(this.goals.values()));
+      for (Iterator<Tuple2<Origin, Fact>> it = this.seeds.entries().iterator(); it.hasNext(); ) {
+         Tuple2<Origin, Fact> t = it.next();
+         rewritten.add_fact(t._1, t._2);
+      }
+      return rewritten;
+   }
+
+   private Tuple2<TrustedOrigins, Tuple2<Long, Rule>> produce(TrustedOrigins scope, Tuple2<Long, Rule> rule) {
+      final Tuple2<TrustedOrigins, Tuple2<Long, Rule>> producer = new Tuple2<>(scope, rule);
+      this.producers.computeIfAbsent(rule._2.head().name(), n -> new ArrayList<>()).add(producer);
+      this.sources.add(rule._2);
+      this.size += 1;
+      return producer;
+   }
+
+   private void seed(List<Rule> queries) {
+      for (Rule query : queries) {
+         for (Predicate predicate : query.body()) {
+            if (!this.producers.containsKey(predicate.name())) {
+               this.skipped.add(predicate.name());
+               continue;
+            }
+            boolean[] bound = new boolean[predicate.terms().size()];
+            for (int i = 0; i < bound.length; i++) {
+               bound[i] = !(predicate.terms().get(i) instanceof Term.Variable);
+            }
+            Goal goal = new Goal(predicate.name(), bound);
+            this.seeds.add(new Origin(), new Fact(new Predicate(this.demand(goal), goal.boundTerms(predicate))));
+         }
+      }
+   }
+
+   private void complete() {
+      while (!this.pending.isEmpty()) {
+         final Goal goal = this.pending.poll();
+         for (Tuple2<TrustedOrigins, Tuple2<Long, Rule>> producer : this.producers.get(goal.name)) {
+            this.rewrite(goal, producer);
+         }
+      }
+   }
+
+   // name of the goal's demand predicate, the goal is rewritten if it is new
+   private long demand(Goal goal) {
+      Long name = this.goals.get(goal);
+      if (name == null) {
+         name = -(long) this.goals.size() - 1;
+         this.goals.put(goal, name);
+         this.pending.add(goal);
+      }
+      return name;
+   }
+
+   private void rewrite(Goal goal, Tuple2<TrustedOrigins, Tuple2<Long, Rule>> producer) {
+      final long demand = this.goals.get(goal);
+      final Rule rule = producer._2._2;
+      final Predicate head = rule.head();
+      if (head.terms().size() != goal.bound.length) {
+         return;
+      }
+
+      final Predicate ruleDemand = new Predicate(demand, goal.boundTerms(head));
+      final Set<Long> boundVariables = new HashSet<>();
+      variables(ruleDemand, boundVariables);
+
+      final List<Predicate> body = new ArrayList<>();
+      body.add(ruleDemand);
+      body.addAll(rule.body());
+      this.rewritten.add(producer._2._1, producer._1, new Rule(head, body, rule.expressions(), rule.scopes()));
+
+      for (int i = 0; i < rule.body().size(); i++) {
+         final Predicate predicate = rule.body().get(i);
+         if (this.producers.containsKey(predicate.name())) {
+            final boolean[] bound = new boolean[predicate.terms().size()];
+            for (int j = 0; j < bound.length; j++) {
+               final Term term = predicate.terms().get(j);
+               bound[j] = !(term instanceof Term.Variable) || boundVariables.contains(((Term.Variable) term).value());
+            }
+            final Goal subgoal = new Goal(predicate.name(), bound);
+            final Predicate subgoalDemand = new Predicate(this.demand(subgoal), subgoal.boundTerms(predicate));
+
+            final List<Predicate> demandBody = new ArrayList<>();
+            demandBody.add(ruleDemand);
+            demandBody.addAll(rule.body().subList(0, i));
+            this.rewritten.add(producer._2._1, producer._1, new Rule(subgoalDemand, demandBody, new ArrayList<>(), rule.scopes()));
+         } else {
+            this.skipped.add(predicate.name());
+         }
+         variables(predicate, boundVariables);
+      }
+   }
+
+   private static void variables(Predicate predicate, Set<Long> variables) {
+      for (Term term : predicate.terms()) {
+         if (term instanceof Term.Variable) {
+            variables.add(((Term.Variable) term).value());
+         }
+      }
+   }
+
+   /**
+    * Predicate requested with values for some of its positions
+    */
+   private static final class Goal {
+      final long name;
+      final boolean[] bound;
+
+      Goal(long name, boolean[] bound) {
+         this.name = name;
+         this.bound = bound;
+      }
+
+      /**
+       * @return the terms of the predicate at the bound positions
+       */
+      List<Term> boundTerms(Predicate predicate) {
+         List<Term> terms = new ArrayList<>();
+         for (int i = 0; i < this.bound.length; i++) {
+            if (this.bound[i]) {
+               terms.add(predicate.terms().get(i));
+            }
+         }
+         return terms;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (this == o) return true;
+         if (o == null || getClass() != o.getClass()) return false;
+
+         Goal goal = (Goal) o;
+
+         return name == goal.name && Arrays.equals(bound, goal.bound);
+      }
+
+      @Override
+      public int hashCode() {
+         int result = Long.hashCode(name);
+         result = 31 * result + Arrays.hashCode(bound);
+         return result;
+      }
+   }
+}
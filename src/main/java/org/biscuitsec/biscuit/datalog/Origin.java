@@ -2,46 +2,155 @@ package org.biscuitsec.biscuit.datalog;
 
 import java.util.*;
 
+/**
+ * Set of block ids a fact was generated from
+ * <p>
+ * Block ids below 64 are stored as bits of a <code>long</code>, and the authorizer
+ * (<code>Long.MAX_VALUE</code>) has its own bit, so containment and union are bit operations.
+ * Larger block ids go to a {@link BitSet}, allocated only for tokens with more blocks.
+ */
 public class Origin {
-    public HashSet<Long> inner;
+    private static final long AUTHORIZER = Long.MAX_VALUE;
+    private static final int MASK_SIZE = Long.SIZE;
+
+    private long blocks;
+    private boolean authorizer;
+    private BitSet overflow;
 
     public Origin() {
-        inner = new HashSet<>();
     }
 
-    private Origin(HashSet<Long> inner) {
-        this.inner = inner;
+    private Origin(long blocks, boolean authorizer, BitSet overflow) {
+        this.blocks = blocks;
+        this.authorizer = authorizer;
+        this.overflow = overflow;
     }
 
     public Origin(Long i) {
-        this.inner = new HashSet<>();
-        this.inner.add(i);
+        this.add((long) i);
     }
 
     public Origin(int i) {
-        this.inner = new HashSet<>();
-        this.inner.add((long)i);
+        this.add(i);
     }
 
     public static Origin authorizer() {
-        return new Origin(Long.MAX_VALUE);
+        return new Origin(AUTHORIZER);
     }
+
     public void add(int i) {
-        inner.add((long) i);
+        this.add((long) i);
     }
+
+    /**
+     * @param i block index in the token, or <code>Long.MAX_VALUE</code> for the authorizer
+     * @throws IllegalArgumentException if <code>i</code> is negative, or above <code>Integer.MAX_VALUE</code>
+     * without being the authorizer id
+     */
     public void add(long i) {
-        inner.add(i);
+        if (i >= 0 && i < MASK_SIZE) {
+            this.blocks |= 1L << i;
+        } else if (i == AUTHORIZER) {
+            this.authorizer = true;
+        } else if (i >= 0 && i <= Integer.MAX_VALUE) {
+            if (this.overflow == null) {
+                this.overflow = new BitSet();
+            }
+            this.overflow.set((int) i);
+        } else {
+            throw new IllegalArgumentException("invalid block id in origin: " + i);
+        }
     }
 
     public Origin union(Origin other) {
-        Origin o = this.clone();
-        o.inner.addAll(other.inner);
-        return o;
+        BitSet overflow = this.overflow;
+        if (other.overflow != null) {
+            overflow = (BitSet) other.overflow.clone();
+            if (this.overflow != null) {
+                overflow.or(this.overflow);
+            }
+        } else if (overflow != null) {
+            overflow = (BitSet) overflow.clone();
+        }
+        return new Origin(this.blocks | other.blocks, this.authorizer || other.authorizer, overflow);
+    }
+
+    /**
+     * Sets <code>into</code> to the union of this origin and the other one, like {@link #union(Origin)}, but
+     * reusing <code>into</code> instead of allocating an origin, for joins that combine origins for every
+     * candidate fact
+     *
+     * @param into an origin that is neither this one nor the other one, its block ids are replaced
+     */
+    public void unionInto(Origin other, Origin into) {
+        into.blocks = this.blocks | other.blocks;
+        into.authorizer = this.authorizer || other.authorizer;
+        if (this.overflow == null && other.overflow == null) {
+            into.overflow = null;
+            return;
+        }
+        if (into.overflow == null) {
+            into.overflow = new BitSet();
+        } else {
+            into.overflow.clear();
+        }
+        if (this.overflow != null) {
+            into.overflow.or(this.overflow);
+        }
+        if (other.overflow != null) {
+            into.overflow.or(other.overflow);
+        }
+    }
+
+    /**
+     * @return true if all the block ids of the other origin are in this one
+     */
+    public boolean containsAll(Origin other) {
+        if ((other.blocks & ~this.blocks) != 0 || (other.authorizer && !this.authorizer)) {
+            return false;
+        }
+        if (other.overflow == null) {
+            return true;
+        }
+        if (this.overflow == null) {
+            return false;
+        }
+        BitSet missing = (BitSet) other.overflow.clone();
+        missing.andNot(this.overflow);
+        return missing.isEmpty();
+    }
+
+    /**
+     * @return the block ids in increasing order, the authorizer being <code>Long.MAX_VALUE</code>
+     */
+    public List<Long> blockIds() {
+        List<Long> ids = new ArrayList<>();
+        for (long mask = this.blocks; mask != 0; mask &= mask - 1) {
+            ids.add((long) Long.numberOfTrailingZeros(mask));
+        }
+        if (this.overflow != null) {
+            for (int i = this.overflow.nextSetBit(0); i >= 0; i = this.overflow.nextSetBit(i + 1)) {
+                ids.add((long) i);
+            }
+        }
+        if (this.authorizer) {
+            ids.add(AUTHORIZER);
+        }
+        return ids;
+    }
+
+    /**
+     * @return a copy of the block ids
+     * @deprecated the block ids are not stored in a set anymore, the <code>inner</code> field was replaced by
+     * this method, use {@link #blockIds()}
+     */
+    @Deprecated
+    public HashSet<Long> inner() {
+        return new HashSet<>(this.blockIds());
     }
 
     public Origin clone() {
-        final HashSet<Long> newInner = new HashSet<>(this.inner);
-        return new Origin(newInner);
+        return new Origin(this.blocks, this.authorizer, this.overflow == null ? null : (BitSet) this.overflow.clone());
     }
 
     @Override
@@ -51,18 +160,21 @@ public class Origin {
 
         Origin origin = (Origin) o;
 
-        return Objects.equals(inner, origin.inner);
+        return blocks == origin.blocks && authorizer == origin.authorizer && Objects.equals(overflow, origin.overflow);
     }
 
     @Override
     public int hashCode() {
-        return inner != null ? inner.hashCode() : 0;
+        int result = Long.hashCode(blocks);
+        result = 31 * result + Boolean.hashCode(authorizer);
+        result = 31 * result + (overflow != null ? overflow.hashCode() : 0);
+        return result;
     }
 
     @Override
     public String toString() {
         return "Origin{" +
-                "inner=" + inner +
+                "inner=" + blockIds() +
                 '}';
     }
 }
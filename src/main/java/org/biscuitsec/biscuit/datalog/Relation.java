@@ -0,0 +1,551 @@
+package org.biscuitsec.biscuit.datalog;
+
+import io.vavr.Tuple2;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Facts sharing the same predicate name and arity, across all origins
+ * <p>
+ * The facts are stored as columns of primitive values, one per term position, with a column of
+ * term kinds and a column of origins. Symbols, integers, dates and booleans are stored directly,
+ * while byte arrays and sets are stored once in a side table and referenced by their index, so
+ * two terms are equal if they have the same kind and value. Origins are stored the same way.
+ * Duplicates are detected with an open addressing hash table over the rows.
+ * <p>
+ * Secondary indexes on a term position are built the first time a lookup
+ * has a constant at that position, then kept up to date on insertion. Lookups on a
+ * relation that is not modified anymore can run concurrently.
+ */
+final class Relation {
+    private static final byte INTEGER = 0;
+    private static final byte STR = 1;
+    private static final byte DATE = 2;
+    private static final byte BOOL = 3;
+    private static final byte BYTES = 4;
+    private static final byte SET = 5;
+    private static final byte VARIABLE = 6;
+
+    private static final int INITIAL_CAPACITY = 8;
+    private static final Rows NONE = new Rows();
+
+    private final long name;
+    private final int arity;
+    private int size;
+    // [term position][row]
+    private long[][] values;
+    private byte[][] kinds;
+    private int[] origins;
+
+    // byte arrays and sets, referenced by their index in the values column
+    private final ArrayList<Term> terms;
+    private final HashMap<Term, Integer> termIds;
+    private final ArrayList<Origin> originTable;
+    private final HashMap<Origin, Integer> originIds;
+
+    // row + 1 for each used slot, 0 for empty slots, the length is a power of two
+    private int[] table;
+    // term position -> value -> rows, the kind is checked when reading the rows
+    private final Map<Integer, HashMap<Long, Rows>> columns;
+
+    Relation(final long name, final int arity) {
+        this.name = name;
+        this.arity = arity;
+        this.size = 0;
+        this.values = new long[arity][INITIAL_CAPACITY];
+        this.kinds = new byte[arity][INITIAL_CAPACITY];
+        this.origins = new int[INITIAL_CAPACITY];
+        this.terms = new ArrayList<>();
+        this.termIds = new HashMap<>();
+        this.originTable = new ArrayList<>();
+        this.originIds = new HashMap<>();
+        this.table = new int[INITIAL_CAPACITY * 2];
+        this.columns = new ConcurrentHashMap<>();
+    }
+
+    private Relation(final Relation other) {
+        this.name = other.name;
+        this.arity = other.arity;
+        this.size = other.size;
+        this.values = new long[other.arity][];
+        this.kinds = new byte[other.arity][];
+        for (int i = 0; i < other.arity; i++) {
+            this.values[i] = other.values[i].clone();
+            this.kinds[i] = other.kinds[i].clone();
+        }
+        this.origins = other.origins.clone();
+        this.terms = new ArrayList<>(other.terms);
+        this.termIds = new HashMap<>(other.termIds);
+        this.originTable = new ArrayList<>(other.originTable);
+        this.originIds = new HashMap<>(other.originIds);
+        this.table = other.table.clone();
+        // rebuilt on demand
+        this.columns = new ConcurrentHashMap<>();
+    }
+
+    Relation copy() {
+        return new Relation(this);
+    }
+
+    /**
+     * @return true if the fact was not already present for this origin
+     */
+    boolean add(final Origin origin, final Fact fact) {
+        final byte[] kinds = new byte[this.arity];
+        final long[] values = new long[this.arity];
+        encode(fact, kinds, values, true);
+        final int originId = this.originIds.computeIfAbsent(origin, o -> {
+            this.originTable.add(o);
+            return this.originTable.size() - 1;
+        });
+
+        final int hash = hash(kinds, values, originId);
+        int slot = find(hash, kinds, values, originId);
+        if (this.table[slot] != 0) {
+            return false;
+        }
+
+        if (this.size == this.origins.length) {
+            grow();
+        }
+        final int row = this.size;
+        for (int i = 0; i < this.arity; i++) {
+            this.kinds[i][row] = kinds[i];
+            this.values[i][row] = values[i];
+        }
+        this.origins[row] = originId;
+        this.size += 1;
+
+        if (this.size * 2 > this.table.length) {
+            rehash(this.table.length * 2);
+        } else {
+            this.table[slot] = row + 1;
+        }
+
+        for (Map.Entry<Integer, HashMap<Long, Rows>> entry : this.columns.entrySet()) {
+            entry.getValue().computeIfAbsent(values[entry.getKey()], k -> new Rows()).add(row);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the fact by moving the last row in its place, so the secondary indexes are dropped and
+     * rebuilt on the next lookup
+     *
+     * @return true if the fact was present for this origin
+     */
+    boolean remove(final Origin origin, final Fact fact) {
+        final Integer originId = this.originIds.get(origin);
+        if (originId == null) {
+            return false;
+        }
+        final byte[] kinds = new byte[this.arity];
+        final long[] values = new long[this.arity];
+        if (!encode(fact, kinds, values, false)) {
+            return false;
+        }
+        final int slot = find(hash(kinds, values, originId), kinds, values, originId);
+        if (this.table[slot] == 0) {
+            return false;
+        }
+
+        final int row = this.table[slot] - 1;
+        delete(slot);
+        final int last = this.size - 1;
+        if (row != last) {
+            this.table[slotOf(last)] = row + 1;
+            for (int i = 0; i < this.arity; i++) {
+                this.kinds[i][row] = this.kinds[i][last];
+                this.values[i][row] = this.values[i][last];
+            }
+            this.origins[row] = this.origins[last];
+        }
+        this.size -= 1;
+        this.columns.clear();
+        return true;
+    }
+
+    boolean contains(final Origin origin, final Fact fact) {
+        final Integer originId = this.originIds.get(origin);
+        if (originId == null) {
+            return false;
+        }
+        final byte[] kinds = new byte[this.arity];
+        final long[] values = new long[this.arity];
+        if (!encode(fact, kinds, values, false)) {
+            return false;
+        }
+        return this.table[find(hash(kinds, values, originId), kinds, values, originId)] != 0;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * @return all the facts, with their origin
+     */
+    Stream<Tuple2<Origin, Fact>> stream() {
+        return IntStream.range(0, this.size).mapToObj(this::get);
+    }
+
+    /**
+     * @return the facts from the trusted origins
+     */
+    Stream<Tuple2<Origin, Fact>> stream(final TrustedOrigins blockIds) {
+        final boolean[] trusted = trusted(blockIds);
+        return IntStream.range(0, this.size).filter(row -> trusted(trusted, row)).mapToObj(this::get);
+    }
+
+    /**
+     * Returns the facts from the trusted origins that may match the predicate: when the predicate has
+     * constants, the facts having the same terms at the constant positions are returned, found through the
+     * most selective constant position. The caller still has to check that each fact matches.
+     */
+    Stream<Tuple2<Origin, Fact>> candidates(final Predicate predicate, final TrustedOrigins blockIds) {
+        final byte[] kinds = new byte[this.arity];
+        final long[] values = new long[this.arity];
+        final Rows index = index(predicate, kinds, values);
+        if (index == NONE) {
+            return Stream.empty();
+        }
+        return rows(predicate, blockIds, kinds, values, index).mapToObj(this::get);
+    }
+
+    /**
+     * Adds the rows of {@link #candidates(Predicate, TrustedOrigins)}, that are read when the candidates need them
+     */
+    void candidates(final Predicate predicate, final TrustedOrigins blockIds, final Candidates into) {
+        final byte[] kinds = new byte[this.arity];
+        final long[] values = new long[this.arity];
+        final Rows index = index(predicate, kinds, values);
+        if (index == NONE) {
+            return;
+        }
+        into.add(this, rows(predicate, blockIds, kinds, values, index).iterator(), index == null ? this.size : index.size);
+    }
+
+    /**
+     * @param kinds encoded constants of the predicate
+     * @param values encoded constants of the predicate
+     * @param candidates rows found by {@link #index(Predicate, byte[], long[])}
+     */
+    private IntStream rows(final Predicate predicate, final TrustedOrigins blockIds, final byte[] kinds, final long[] values,
+                           final Rows candidates) {
+        final List<Term> terms = predicate.terms();
+        final boolean[] constant = new boolean[this.arity];
+        for (int i = 0; i < this.arity; i++) {
+            constant[i] = !(terms.get(i) instanceof Term.Variable);
+        }
+
+        final boolean[] trusted = trusted(blockIds);
+        final IntStream rows = candidates == null ? IntStream.range(0, this.size) : Arrays.stream(candidates.rows, 0, candidates.size);
+        return rows.filter(row -> {
+            if (!trusted(trusted, row)) {
+                return false;
+            }
+            for (int i = 0; i < this.arity; i++) {
+                if (constant[i] && (this.kinds[i][row] != kinds[i] || this.values[i][row] != values[i])) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Encodes the constants of the predicate, and finds the rows of the most selective one
+     *
+     * @return the rows having the same term at one of the constant positions, null if the predicate has no constants,
+     * or {@link #NONE} if no fact can match
+     */
+    private Rows index(final Predicate predicate, final byte[] kinds, final long[] values) {
+        final List<Term> terms = predicate.terms();
+        Rows candidates = null;
+        for (int i = 0; i < this.arity; i++) {
+            Term term = terms.get(i);
+            if (term instanceof Term.Variable) {
+                continue;
+            }
+            if (!encode(term, kinds, values, i, false)) {
+                return NONE;
+            }
+
+            Rows rows = column(i).get(values[i]);
+            if (rows == null) {
+                return NONE;
+            }
+            if (candidates == null || rows.size < candidates.size) {
+                candidates = rows;
+            }
+        }
+        return candidates;
+    }
+
+    Origin origin(final int row) {
+        return this.originTable.get(this.origins[row]);
+    }
+
+    byte kind(final int position, final int row) {
+        return this.kinds[position][row];
+    }
+
+    long value(final int position, final int row) {
+        return this.values[position][row];
+    }
+
+    /**
+     * @return the byte array or set at this position, or null for the terms stored as a value
+     */
+    Term complex(final int position, final int row) {
+        final byte kind = this.kinds[position][row];
+        return kind == BYTES || kind == SET ? this.terms.get((int) this.values[position][row]) : null;
+    }
+
+    /**
+     * @return true if the row has the same term at both positions
+     */
+    boolean same(final int row, final int position, final int other) {
+        return this.kinds[position][row] == this.kinds[other][row] && this.values[position][row] == this.values[other][row];
+    }
+
+    /**
+     * Compares terms read from any relation with {@link #kind(int, int)}, {@link #value(int, int)} and
+     * {@link #complex(int, int)}: the values of byte arrays and sets are only meaningful in their relation
+     */
+    static boolean same(final byte kind, final long value, final Term complex,
+                        final byte otherKind, final long otherValue, final Term otherComplex) {
+        if (kind != otherKind) {
+            return false;
+        }
+        return complex == null ? value == otherValue : complex.equals(otherComplex);
+    }
+
+    /**
+     * hash of a term read from any relation, equal for terms that are {@link #same(byte, long, Term, byte, long, Term)}
+     */
+    static int hash(final byte kind, final long value, final Term complex) {
+        if (complex != null) {
+            return complex.hashCode();
+        }
+        final long h = (kind * 31 + value) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    static Term term(final byte kind, final long value, final Term complex) {
+        return complex != null ? complex : decodeValue(kind, value);
+    }
+
+    private Tuple2<Origin, Fact> get(final int row) {
+        final List<Term> terms = new ArrayList<>(this.arity);
+        for (int i = 0; i < this.arity; i++) {
+            terms.add(decode(this.kinds[i][row], this.values[i][row]));
+        }
+        return new Tuple2<>(this.originTable.get(this.origins[row]), new Fact(this.name, terms));
+    }
+
+    private boolean[] trusted(final TrustedOrigins blockIds) {
+        final boolean[] trusted = new boolean[this.originTable.size()];
+        for (int i = 0; i < trusted.length; i++) {
+            trusted[i] = blockIds.contains(this.originTable.get(i));
+        }
+        return trusted;
+    }
+
+    // origins added after the lookup started are not trusted
+    private boolean trusted(final boolean[] trusted, final int row) {
+        final int origin = this.origins[row];
+        return origin < trusted.length && trusted[origin];
+    }
+
+    private boolean encode(final Fact fact, final byte[] kinds, final long[] values, final boolean insert) {
+        final List<Term> terms = fact.predicate().terms();
+        for (int i = 0; i < this.arity; i++) {
+            if (!encode(terms.get(i), kinds, values, i, insert)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param insert adds byte arrays and sets missing from the side table, otherwise they are not encoded
+     * @return false if the term could not be encoded
+     */
+    private boolean encode(final Term term, final byte[] kinds, final long[] values, final int position, final boolean insert) {
+        if (term instanceof Term.Str) {
+            kinds[position] = STR;
+            values[position] = ((Term.Str) term).value();
+        } else if (term instanceof Term.Integer) {
+            kinds[position] = INTEGER;
+            values[position] = ((Term.Integer) term).value();
+        } else if (term instanceof Term.Date) {
+            kinds[position] = DATE;
+            values[position] = ((Term.Date) term).value();
+        } else if (term instanceof Term.Bool) {
+            kinds[position] = BOOL;
+            values[position] = ((Term.Bool) term).value() ? 1 : 0;
+        } else if (term instanceof Term.Variable) {
+            kinds[position] = VARIABLE;
+            values[position] = ((Term.Variable) term).value();
+        } else {
+            kinds[position] = term instanceof Term.Bytes ? BYTES : SET;
+            Integer id = this.termIds.get(term);
+            if (id == null) {
+                if (!insert) {
+                    return false;
+                }
+                this.terms.add(term);
+                id = this.terms.size() - 1;
+                this.termIds.put(term, id);
+            }
+            values[position] = id;
+        }
+        return true;
+    }
+
+    private Term decode(final byte kind, final long value) {
+        if (kind == BYTES || kind == SET) {
+            return this.terms.get((int) value);
+        }
+        return decodeValue(kind, value);
+    }
+
+    private static Term decodeValue(final byte kind, final long value) {
+        switch (kind) {
+            case INTEGER:
+                return new Term.Integer(value);
+            case STR:
+                return new Term.Str(value);
+            case DATE:
+                return new Term.Date(value);
+            case BOOL:
+                return new Term.Bool(value != 0);
+            case VARIABLE:
+                return new Term.Variable(value);
+            default:
+                throw new IllegalArgumentException("no value for kind " + kind);
+        }
+    }
+
+    private int hash(final byte[] kinds, final long[] values, final int origin) {
+        long h = origin;
+        for (int i = 0; i < kinds.length; i++) {
+            h = h * 31 + kinds[i];
+            h = h * 0x9E3779B97F4A7C15L + values[i];
+        }
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int hash(final int row) {
+        long h = this.origins[row];
+        for (int i = 0; i < this.arity; i++) {
+            h = h * 31 + this.kinds[i][row];
+            h = h * 0x9E3779B97F4A7C15L + this.values[i][row];
+        }
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return the slot holding the row, or the empty slot where it would be inserted
+     */
+    private int find(final int hash, final byte[] kinds, final long[] values, final int origin) {
+        final int mask = this.table.length - 1;
+        int slot = hash & mask;
+        while (this.table[slot] != 0) {
+            final int row = this.table[slot] - 1;
+            if (this.origins[row] == origin && sameRow(row, kinds, values)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean sameRow(final int row, final byte[] kinds, final long[] values) {
+        for (int i = 0; i < this.arity; i++) {
+            if (this.kinds[i][row] != kinds[i] || this.values[i][row] != values[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int slotOf(final int row) {
+        final int mask = this.table.length - 1;
+        int slot = hash(row) & mask;
+        while (this.table[slot] != row + 1) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Empties the slot, moving back the following rows of the probe sequence so they can still be found
+     */
+    private void delete(final int slot) {
+        final int mask = this.table.length - 1;
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (this.table[next] == 0) {
+                break;
+            }
+            final int home = hash(this.table[next] - 1) & mask;
+            // the row can move to the hole if the hole is between its home slot and its current slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                this.table[hole] = this.table[next];
+                hole = next;
+            }
+        }
+        this.table[hole] = 0;
+    }
+
+    private void grow() {
+        final int capacity = this.origins.length * 2;
+        for (int i = 0; i < this.arity; i++) {
+            this.values[i] = Arrays.copyOf(this.values[i], capacity);
+            this.kinds[i] = Arrays.copyOf(this.kinds[i], capacity);
+        }
+        this.origins = Arrays.copyOf(this.origins, capacity);
+    }
+
+    private void rehash(final int length) {
+        this.table = new int[length];
+        final int mask = length - 1;
+        for (int row = 0; row < this.size; row++) {
+            int slot = hash(row) & mask;
+            while (this.table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            this.table[slot] = row + 1;
+        }
+    }
+
+    private HashMap<Long, Rows> column(final int position) {
+        return this.columns.computeIfAbsent(position, p -> {
+            HashMap<Long, Rows> column = new HashMap<>();
+            final long[] values = this.values[p];
+            for (int row = 0; row < this.size; row++) {
+                column.computeIfAbsent(values[row], k -> new Rows()).add(row);
+            }
+            return column;
+        });
+    }
+
+    private static final class Rows {
+        int[] rows = new int[4];
+        int size = 0;
+
+        void add(final int row) {
+            if (this.size == this.rows.length) {
+                this.rows = Arrays.copyOf(this.rows, this.size * 2);
+            }
+            this.rows[this.size++] = row;
+        }
+    }
+}
@@ -2,16 +2,16 @@ package org.biscuitsec.biscuit.datalog;
 
 import biscuit.format.schema.Schema;
 import org.biscuitsec.biscuit.datalog.expressions.Expression;
+import org.biscuitsec.biscuit.datalog.expressions.Op;
 import org.biscuitsec.biscuit.error.Error;
 import io.vavr.Tuple2;
-import io.vavr.Tuple3;
 import io.vavr.control.Either;
 import io.vavr.control.Option;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.function.Function;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -23,6 +23,10 @@ public final class Rule implements Serializable {
    private final List<Predicate> body;
    private final List<Expression> expressions;
    private final List<Scope> scopes;
+   // built on first use
+   private transient volatile CompiledRule compiled;
+   // result of validate_variables, computed on first use
+   private transient volatile Boolean validVariables;
 
    public final Predicate head() {
       return this.head;
@@ -40,83 +44,185 @@ public final class Rule implements Serializable {
       return scopes;
    }
 
+   CompiledRule compiled() {
+      CompiledRule compiled = this.compiled;
+      if (compiled == null) {
+         compiled = new CompiledRule(this);
+         this.compiled = compiled;
+      }
+      return compiled;
+   }
+
+   /**
+    * @param factsSupplier all the facts visible to the rule, read once for each predicate
+    * @deprecated reads all the facts for each predicate, use {@link #apply(Function, Long, SymbolTable)} with a
+    * lookup that only returns the facts having the predicate's name
+    */
+   @Deprecated
    public Stream<Either<Error, Tuple2<Origin, Fact>>> apply(
            final Supplier<Stream<Tuple2<Origin, Fact>>> factsSupplier, Long ruleOrigin, SymbolTable symbols) {
-      MatchedVariables variables = variablesSet();
-
-      Combinator combinator = new Combinator(variables, this.body, factsSupplier, symbols);
-      Spliterator<Tuple2<Origin, Map<Long, Term>>> splitItr = Spliterators
-              .spliteratorUnknownSize(combinator, Spliterator.ORDERED);
-      Stream<Tuple2<Origin, Map<Long, Term>>> stream = StreamSupport.stream(splitItr, false);
-
-      //somehow we have inference errors when writing this as a lambda
-      return stream.map(t -> {
-                 Origin origin = t._1;
-                 Map<Long, Term> generatedVariables = t._2;
-                 TemporarySymbolTable temporarySymbols = new TemporarySymbolTable(symbols);
-                 for (Expression e : this.expressions) {
-                    try {
-                       Term term = e.evaluate(generatedVariables, temporarySymbols);
-
-                       if (term instanceof Term.Bool) {
-                          Term.Bool b = (Term.Bool) term;
-                          if (!b.value()) {
-                             return Either.right(new Tuple3<>(origin, generatedVariables, false));
-                          }
-                          // continue evaluating if true
-                       } else {
-                          return Either.left(new Error.InvalidType());
-                       }
-                    } catch(Error error) {
-                       return Either.left(error);
-                    }
-
-                 }
-                 return Either.right(new Tuple3<>(origin, generatedVariables, true));
-              })
-              // sometimes we need to make the compiler happy
-              .filter((java.util.function.Predicate<? super Either<? extends Object, ? extends Object>>)
-                      res -> res.isRight() & ((Tuple3<Origin, Map<Long, Term>, Boolean>) res.get())._3).map(res -> {
-                 Tuple3<Origin, Map<Long, Term>, Boolean> t = (Tuple3<Origin, Map<Long, Term>, Boolean>) res.get();
-                 Origin origin = t._1;
-                 Map<Long, Term> generatedVariables = t._2;
-
-                 Predicate p = this.head.clone();
-                 for (int index = 0; index < p.terms().size(); index++) {
-                    if (p.terms().get(index) instanceof Term.Variable) {
-                       Term.Variable var = (Term.Variable) p.terms().get(index);
-                       if (!generatedVariables.containsKey(var.value())) {
-                          //throw new Error("variables that appear in the head should appear in the body as well");
-                          return Either.left(new Error.InternalError());
-                       }
-                       p.terms().set(index, generatedVariables.get(var.value()));
-                    }
-                 }
-
-                 origin.add(ruleOrigin);
-                 return Either.right(new Tuple2<Origin, Fact>(origin, new Fact(p)));
-              });
+      return this.apply(HashJoin.source(p -> factsSupplier.get()), ruleOrigin, symbols, null);
+   }
+
+   public Stream<Either<Error, Tuple2<Origin, Fact>>> apply(
+           final Function<Predicate, Stream<Tuple2<Origin, Fact>>> facts, Long ruleOrigin, SymbolTable symbols) {
+      return this.apply(HashJoin.source(facts), ruleOrigin, symbols, null);
+   }
+
+   /**
+    * @param meter counts the work of the rule, can be null. Once the budget is exhausted, the stream
+    *              ends with the error of the limit that was reached
+    */
+   Stream<Either<Error, Tuple2<Origin, Fact>>> apply(
+           final HashJoin.Source facts, Long ruleOrigin, SymbolTable symbols, final Budget.Meter meter) {
+      HashJoin join = new HashJoin(this.body, Collections.nCopies(this.body.size(), facts), this.compiled().variables, meter);
+      return this.apply(join, ruleOrigin, symbols, meter);
+   }
+
+   /**
+    * Semi-naive application: only produces the facts whose derivation uses at least one fact
+    * from the delta. Each body predicate in turn is matched against the delta while the other
+    * ones are matched against the full fact set, so a rule without predicates produces nothing.
+    *
+    * @param facts lookup of the facts visible to the rule, delta included
+    * @param delta lookup of the facts that were derived in the previous iteration
+    */
+   public Stream<Either<Error, Tuple2<Origin, Fact>>> apply(
+           final Function<Predicate, Stream<Tuple2<Origin, Fact>>> facts,
+           final Function<Predicate, Stream<Tuple2<Origin, Fact>>> delta, Long ruleOrigin, SymbolTable symbols) {
+      return this.apply(HashJoin.source(facts), HashJoin.source(delta), ruleOrigin, symbols, null);
+   }
+
+   Stream<Either<Error, Tuple2<Origin, Fact>>> apply(final HashJoin.Source facts, final HashJoin.Source delta,
+                                                     Long ruleOrigin, SymbolTable symbols, final Budget.Meter meter) {
+      Stream<Either<Error, Tuple2<Origin, Fact>>> stream = Stream.empty();
+
+      for (int i = 0; i < this.body.size(); i++) {
+         List<HashJoin.Source> sources = new ArrayList<>(Collections.nCopies(this.body.size(), facts));
+         sources.set(i, delta);
+
+         HashJoin join = new HashJoin(this.body, sources, this.compiled().variables, meter);
+         stream = Stream.concat(stream, this.apply(join, ruleOrigin, symbols, meter));
+      }
+
+      return stream;
+   }
+
+   private Stream<Either<Error, Tuple2<Origin, Fact>>> apply(final HashJoin join, final Long ruleOrigin, final SymbolTable symbols,
+                                                            final Budget.Meter meter) {
+      final CompiledRule compiled = this.compiled();
+      final Term[] frame = join.frame();
+      Iterator<Either<Error, Tuple2<Origin, Fact>>> generated = new Iterator<Either<Error, Tuple2<Origin, Fact>>>() {
+         private Either<Error, Tuple2<Origin, Fact>> next;
+         private boolean exhausted = false;
+
+         @Override
+         public boolean hasNext() {
+            while (this.next == null) {
+               if (this.exhausted) {
+                  return false;
+               }
+               Origin origin = join.advance();
+               if (origin == null) {
+                  if (meter == null || meter.error() == null) {
+                     return false;
+                  }
+                  this.exhausted = true;
+                  this.next = Either.left(meter.error());
+                  return true;
+               }
+               this.next = generate(compiled, origin, frame, ruleOrigin, symbols, meter);
+            }
+            return true;
+         }
+
+         @Override
+         public Either<Error, Tuple2<Origin, Fact>> next() {
+            if (!this.hasNext()) {
+               throw new NoSuchElementException();
+            }
+            Either<Error, Tuple2<Origin, Fact>> next = this.next;
+            this.next = null;
+            return next;
+         }
+      };
+
+      return StreamSupport.stream(Spliterators.spliteratorUnknownSize(generated, Spliterator.ORDERED), false);
    }
 
-   private MatchedVariables variablesSet() {
-      final Set<Long> variables_set = new HashSet<>();
+   // the fact generated by a match, or null if an expression is false
+   private static Either<Error, Tuple2<Origin, Fact>> generate(final CompiledRule compiled, final Origin origin,
+                                                               final Term[] frame, final Long ruleOrigin, final SymbolTable symbols,
+                                                               final Budget.Meter meter) {
+      try {
+         if (!compiled.check_expressions(frame, symbols, meter)) {
+            return null;
+         }
+      } catch (Error error) {
+         return Either.left(error);
+      }
+
+      Option<Predicate> head = compiled.head(frame);
+      if (head.isEmpty()) {
+         //throw new Error("variables that appear in the head should appear in the body as well");
+         return Either.left(new Error.InternalError());
+      }
+
+      origin.add(ruleOrigin);
+      return Either.right(new Tuple2<Origin, Fact>(origin, new Fact(head.get())));
+   }
 
-      for (final Predicate pred : this.body) {
-         variables_set.addAll(pred.terms().stream().filter((id) -> id instanceof Term.Variable).map((id) -> ((Term.Variable) id).value()).collect(Collectors.toSet()));
+   /**
+    * checks that the variables of the head and expressions all appear in the body's predicates
+    */
+   public boolean validate_variables() {
+      Boolean valid = this.validVariables;
+      if (valid == null) {
+         valid = this.free_variables().isEmpty();
+         this.validVariables = valid;
       }
-      return new MatchedVariables(variables_set);
+      return valid;
+   }
+
+   private Set<Long> free_variables() {
+      final Set<Long> free_variables = new HashSet<>();
+      for (Term term : this.head.terms()) {
+         if (term instanceof Term.Variable) {
+            free_variables.add(((Term.Variable) term).value());
+         }
+      }
+      for (Expression e : this.expressions) {
+         for (Op op : e.getOps()) {
+            if (op instanceof Op.Value && ((Op.Value) op).getValue() instanceof Term.Variable) {
+               free_variables.add(((Term.Variable) ((Op.Value) op).getValue()).value());
+            }
+         }
+      }
+
+      for (Predicate p : this.body) {
+         for (Term term : p.terms()) {
+            if (term instanceof Term.Variable) {
+               free_variables.remove(((Term.Variable) term).value());
+            }
+         }
+      }
+
+      return free_variables;
    }
 
    // do not produce new facts, only find one matching set of facts
    public boolean find_match(final FactSet facts, Long origin, TrustedOrigins scope, SymbolTable symbols) throws Error {
-      MatchedVariables variables = variablesSet();
+      return this.find_match(facts, origin, scope, symbols, null);
+   }
 
+   boolean find_match(final FactSet facts, Long origin, TrustedOrigins scope, SymbolTable symbols,
+                      final Budget.Meter meter) throws Error {
       if(this.body.isEmpty()) {
-         return variables.check_expressions(this.expressions, symbols).isDefined();
+         return this.compiled().check_expressions(new Term[0], symbols, meter);
       }
 
-      Supplier<Stream<Tuple2<Origin, Fact>>> factsSupplier = () -> facts.stream(scope);
-      Stream<Either<Error, Tuple2<Origin, Fact>>> stream = this.apply(factsSupplier, origin, symbols);
+      HashJoin.Source lookup = HashJoin.source(facts, scope);
+      Stream<Either<Error, Tuple2<Origin, Fact>>> stream = this.apply(lookup, origin, symbols, meter);
 
       Iterator<Either<Error, Tuple2<Origin, Fact>>> it = stream.iterator();
 
@@ -134,36 +240,30 @@ public final class Rule implements Serializable {
 
    // verifies that the expressions return true for every matching set of facts
    public boolean check_match_all(final FactSet facts, TrustedOrigins scope, SymbolTable symbols) throws Error {
-      MatchedVariables variables = variablesSet();
+      return this.check_match_all(facts, scope, symbols, null);
+   }
+
+   boolean check_match_all(final FactSet facts, TrustedOrigins scope, SymbolTable symbols,
+                           final Budget.Meter meter) throws Error {
+      CompiledRule compiled = this.compiled();
 
       if(this.body.isEmpty()) {
-         return variables.check_expressions(this.expressions, symbols).isDefined();
+         return compiled.check_expressions(new Term[0], symbols, meter);
       }
 
-      Supplier<Stream<Tuple2<Origin, Fact>>> factsSupplier = () -> facts.stream(scope);
-      Combinator combinator = new Combinator(variables, this.body, factsSupplier, symbols);
+      HashJoin.Source lookup = HashJoin.source(facts, scope);
+      HashJoin join = new HashJoin(this.body, Collections.nCopies(this.body.size(), lookup), compiled.variables, meter);
       boolean found = false;
 
-       for (Combinator it = combinator; it.hasNext(); ) {
-           Tuple2<Origin, Map<Long, Term>> t = it.next();
-           Map<Long, Term> generatedVariables = t._2;
-           found = true;
-
-           TemporarySymbolTable temporarySymbols = new TemporarySymbolTable(symbols);
-           for (Expression e : this.expressions) {
-
-              Term term = e.evaluate(generatedVariables, temporarySymbols);
-              if (term instanceof Term.Bool) {
-                 Term.Bool b = (Term.Bool) term;
-                 if (!b.value()) {
-                    return false;
-                 }
-                 // continue evaluating if true
-              } else {
-                 throw new Error.InvalidType();
-              }
-           }
-       }
+      while (join.advance() != null) {
+         found = true;
+         if (!compiled.check_expressions(join.frame(), symbols, meter)) {
+            return false;
+         }
+      }
+      if (meter != null && meter.error() != null) {
+         throw meter.error();
+      }
       return found;
    }
 
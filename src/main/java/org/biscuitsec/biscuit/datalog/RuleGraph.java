@@ -0,0 +1,118 @@
+package org.biscuitsec.biscuit.datalog;
+
+import io.vavr.Tuple2;
+
+import java.util.*;
+
+/**
+ * Dependency graph of the predicates produced by a {@link RuleSet}
+ * <p>
+ * A rule makes its head predicate depend on each predicate of its body. The graph is split in strongly
+ * connected components, returned in topological order: the rules of a component only read facts from
+ * the components before it, or from their own component if it is recursive. Predicates are identified
+ * by name, so predicates with the same name and a different arity are in the same component.
+ */
+final class RuleGraph {
+   /**
+    * Rules producing the predicates of a strongly connected component, grouped by scope like in {@link RuleSet}
+    */
+   static final class Component {
+      final Map<TrustedOrigins, List<Tuple2<Long, Rule>>> rules = new HashMap<>();
+      // true if a rule of the component reads a predicate of the component
+      boolean recursive = false;
+
+      void add(TrustedOrigins scope, Tuple2<Long, Rule> rule) {
+         this.rules.computeIfAbsent(scope, s -> new ArrayList<>()).add(rule);
+      }
+
+      int size() {
+         return this.rules.values().stream().mapToInt(List::size).sum();
+      }
+   }
+
+   // head predicate -> rules producing it, with their scope
+   private final LinkedHashMap<Long, List<Tuple2<TrustedOrigins, Tuple2<Long, Rule>>>> producers = new LinkedHashMap<>();
+
+   // Tarjan's algorithm state
+   private final HashMap<Long, Integer> index = new HashMap<>();
+   private final HashMap<Long, Integer> lowLink = new HashMap<>();
+   private final Deque<Long> stack = new ArrayDeque<>();
+   private final HashSet<Long> onStack = new HashSet<>();
+   private final List<Component> components = new ArrayList<>();
+
+   private RuleGraph(RuleSet rules) {
+      for (Map.Entry<TrustedOrigins, List<Tuple2<Long, Rule>>> entry : rules.rules.entrySet()) {
+         for (Tuple2<Long, Rule> rule : entry.getValue()) {
+            this.producers.computeIfAbsent(rule._2.head().name(), n -> new ArrayList<>())
+                    .add(new Tuple2<>(entry.getKey(), rule));
+         }
+      }
+   }
+
+   /**
+    * @return the components of the rule set, each one after the components it reads facts from
+    */
+   static List<Component> components(RuleSet rules) {
+      RuleGraph graph = new RuleGraph(rules);
+      for (Long predicate : graph.producers.keySet()) {
+         if (!graph.index.containsKey(predicate)) {
+            graph.connect(predicate);
+         }
+      }
+      return graph.components;
+   }
+
+   // the dependencies of a predicate are visited first, so its component is added after theirs
+   private void connect(Long predicate) {
+      int i = this.index.size();
+      this.index.put(predicate, i);
+      this.lowLink.put(predicate, i);
+      this.stack.push(predicate);
+      this.onStack.add(predicate);
+
+      for (Long dependency : this.dependencies(predicate)) {
+         if (!this.index.containsKey(dependency)) {
+            this.connect(dependency);
+            this.lowLink.put(predicate, Math.min(this.lowLink.get(predicate), this.lowLink.get(dependency)));
+         } else if (this.onStack.contains(dependency)) {
+            this.lowLink.put(predicate, Math.min(this.lowLink.get(predicate), this.index.get(dependency)));
+         }
+      }
+
+      if (this.lowLink.get(predicate).equals(this.index.get(predicate))) {
+         HashSet<Long> members = new HashSet<>();
+         Long member;
+         do {
+            member = this.stack.pop();
+            this.onStack.remove(member);
+            members.add(member);
+         } while (!member.equals(predicate));
+
+         Component component = new Component();
+         for (Long head : members) {
+            for (Tuple2<TrustedOrigins, Tuple2<Long, Rule>> rule : this.producers.get(head)) {
+               component.add(rule._1, rule._2);
+               for (Predicate p : rule._2._2.body()) {
+                  if (members.contains(p.name())) {
+                     component.recursive = true;
+                  }
+               }
+            }
+         }
+         this.components.add(component);
+      }
+   }
+
+   // body predicates produced by rules, the other ones only come from facts
+   private Set<Long> dependencies(Long predicate) {
+      LinkedHashSet<Long> dependencies = new LinkedHashSet<>();
+      for (Tuple2<TrustedOrigins, Tuple2<Long, Rule>> rule : this.producers.get(predicate)) {
+         for (Predicate p : rule._2._2.body()) {
+            if (this.producers.containsKey(p.name())) {
+               dependencies.add(p.name());
+            }
+         }
+      }
+      return dependencies;
+   }
+}
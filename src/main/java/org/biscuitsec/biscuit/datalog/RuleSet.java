@@ -7,17 +7,32 @@ import java.util.stream.Stream;
 
 public class RuleSet {
     public final HashMap<TrustedOrigins, List<Tuple2<Long, Rule>>> rules;
+    // lists of <code>rules</code> created by this rule set, the other ones are shared and copied before adding to them
+    private final Set<List<Tuple2<Long, Rule>>> owned;
 
     public RuleSet() {
         rules = new HashMap<>();
+        owned = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    /**
+     * Creates a rule set containing the rules of <code>base</code>, without copying them. The rules
+     * added to this rule set are not seen by the base, so it can be shared by multiple rule sets
+     * (and threads), as long as it is not modified anymore
+     */
+    public RuleSet(RuleSet base) {
+        rules = new HashMap<>(base.rules);
+        owned = Collections.newSetFromMap(new IdentityHashMap<>());
     }
 
     public void add(Long origin, TrustedOrigins scope, Rule rule) {
-        if (!rules.containsKey(scope)) {
-            rules.put(scope, List.of(new Tuple2<>(origin, rule)));
-        } else {
-            rules.get(scope).add(new Tuple2<>(origin, rule));
+        List<Tuple2<Long, Rule>> l = rules.get(scope);
+        if (l == null || !owned.contains(l)) {
+            l = l == null ? new ArrayList<>() : new ArrayList<>(l);
+            rules.put(scope, l);
+            owned.add(l);
         }
+        l.add(new Tuple2<>(origin, rule));
     }
 
     public RuleSet clone() {
@@ -26,6 +41,7 @@ public class RuleSet {
         for (Map.Entry<TrustedOrigins, List<Tuple2<Long, Rule>>> entry : this.rules.entrySet()) {
             List<Tuple2<Long, Rule>> l = new ArrayList<>(entry.getValue());
             newRules.rules.put(entry.getKey(), l);
+            newRules.owned.add(l);
         }
 
         return newRules;
@@ -41,5 +57,6 @@ public class RuleSet {
 
     public void clear() {
         rules.clear();
+        owned.clear();
     }
 }
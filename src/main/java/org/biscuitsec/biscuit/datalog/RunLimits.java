@@ -1,18 +1,80 @@
 package org.biscuitsec.biscuit.datalog;
 
 import java.time.Duration;
+import java.util.concurrent.Executor;
 
 public class RunLimits {
     public int maxFacts = 1000;
     public int maxIterations = 100;
     public Duration maxTime = Duration.ofMillis(5);
+    /**
+     * Work allowed to an evaluation, one unit for each fact read by a join and each expression evaluated.
+     * Unlike the time limit, it gives the same result on every machine.
+     *
+     * @see Budget
+     * @see #withMaxFuel(long)
+     */
+    public final long maxFuel;
+    /**
+     * When set, the rules of an iteration are applied concurrently on this executor. The caller keeps
+     * ownership of the executor, a <code>ForkJoinPool</code> can be used.
+     * <p>
+     * The thread running the evaluation applies rules too, and never waits for a rule that the executor
+     * has not started, so this can be the executor given to <code>Authorizer.authorize_async</code>. Rules
+     * rejected by the executor are applied by the evaluating thread.
+     *
+     * @see #withExecutor(Executor)
+     */
+    public final Executor executor;
+    /**
+     * When set, authorizations only derive the facts that can match their checks and policies, instead of
+     * running all the rules to their fixpoint. The results are the same.
+     *
+     * @see World#for_queries(java.util.List)
+     * @see #withGoalDirected(boolean)
+     */
+    public final boolean goalDirected;
 
     public RunLimits() {
+        this.maxFuel = Long.MAX_VALUE;
+        this.executor = null;
+        this.goalDirected = false;
     }
 
     public RunLimits(int maxFacts, int maxIterations, Duration maxTime) {
+        this();
         this.maxFacts = maxFacts;
         this.maxIterations = maxIterations;
         this.maxTime = maxTime;
     }
+
+    private RunLimits(RunLimits limits, long maxFuel, Executor executor, boolean goalDirected) {
+        this.maxFacts = limits.maxFacts;
+        this.maxIterations = limits.maxIterations;
+        this.maxTime = limits.maxTime;
+        this.maxFuel = maxFuel;
+        this.executor = executor;
+        this.goalDirected = goalDirected;
+    }
+
+    /**
+     * @return a copy of these limits, with the fuel limit
+     */
+    public RunLimits withMaxFuel(long maxFuel) {
+        return new RunLimits(this, maxFuel, this.executor, this.goalDirected);
+    }
+
+    /**
+     * @return a copy of these limits, applying the rules on the executor, or on the calling thread if it is null
+     */
+    public RunLimits withExecutor(Executor executor) {
+        return new RunLimits(this, this.maxFuel, executor, this.goalDirected);
+    }
+
+    /**
+     * @return a copy of these limits, with goal directed authorizations or not
+     */
+    public RunLimits withGoalDirected(boolean goalDirected) {
+        return new RunLimits(this, this.maxFuel, this.executor, goalDirected);
+    }
 }
@@ -0,0 +1,138 @@
+package org.biscuitsec.biscuit.datalog;
+
+import org.biscuitsec.biscuit.datalog.expressions.Expression;
+import org.biscuitsec.biscuit.datalog.expressions.Op;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.biscuitsec.biscuit.datalog.SymbolTable.DEFAULT_SYMBOLS_OFFSET;
+
+/**
+ * Rewrites datalog elements from a block's symbol table to another symbol table
+ * <p>
+ * Each symbol and public key index is translated once, through a table filled the first time
+ * it is used, so the elements are converted without going through their builder form.
+ * The result is the same as converting to the builder form with the block's symbols,
+ * then back to datalog with the target symbols.
+ */
+public final class SymbolRemapper {
+    private static final long UNKNOWN = -1;
+
+    private final SymbolTable from;
+    private final SymbolTable to;
+    private final long[] symbols;
+    private final long[] publicKeys;
+
+    public SymbolRemapper(SymbolTable from, SymbolTable to) {
+        this.from = from;
+        this.to = to;
+        this.symbols = new long[from.symbols.size()];
+        Arrays.fill(this.symbols, UNKNOWN);
+        this.publicKeys = new long[from.publicKeys().size()];
+        Arrays.fill(this.publicKeys, UNKNOWN);
+    }
+
+    public long symbol(long i) {
+        if (i >= 0 && i < SymbolTable.defaultSymbols.size()) {
+            return i;
+        }
+
+        int index = (int) (i - DEFAULT_SYMBOLS_OFFSET);
+        if (i < DEFAULT_SYMBOLS_OFFSET || index >= this.symbols.length) {
+            // not in the block's table: inserted under its printed form, like the builder conversion does
+            return this.to.insert(this.from.print_symbol((int) i));
+        }
+
+        if (this.symbols[index] == UNKNOWN) {
+            this.symbols[index] = this.to.insert(this.from.symbols.get(index));
+        }
+        return this.symbols[index];
+    }
+
+    public long publicKey(long i) {
+        if (i < 0 || i >= this.publicKeys.length) {
+            // fails like the builder conversion does
+            return this.to.insert(this.from.get_pk((int) i).get());
+        }
+
+        int index = (int) i;
+        if (this.publicKeys[index] == UNKNOWN) {
+            this.publicKeys[index] = this.to.insert(this.from.publicKeys().get(index));
+        }
+        return this.publicKeys[index];
+    }
+
+    public Term term(Term term) {
+        if (term instanceof Term.Str) {
+            return new Term.Str(this.symbol(((Term.Str) term).value()));
+        } else if (term instanceof Term.Variable) {
+            return new Term.Variable(this.symbol(((Term.Variable) term).value()));
+        } else if (term instanceof Term.Set) {
+            HashSet<Term> values = new HashSet<>();
+            for (Term t : ((Term.Set) term).value()) {
+                values.add(this.term(t));
+            }
+            return new Term.Set(values);
+        } else {
+            return term;
+        }
+    }
+
+    public Predicate predicate(Predicate predicate) {
+        List<Term> terms = new ArrayList<>(predicate.terms().size());
+        for (Term term : predicate.terms()) {
+            terms.add(this.term(term));
+        }
+        return new Predicate(this.symbol(predicate.name()), terms);
+    }
+
+    public Fact fact(Fact fact) {
+        return new Fact(this.predicate(fact.predicate()));
+    }
+
+    public Expression expression(Expression expression) {
+        ArrayList<Op> ops = new ArrayList<>(expression.getOps().size());
+        for (Op op : expression.getOps()) {
+            if (op instanceof Op.Value) {
+                ops.add(new Op.Value(this.term(((Op.Value) op).getValue())));
+            } else {
+                ops.add(op);
+            }
+        }
+        return new Expression(ops);
+    }
+
+    public Scope scope(Scope scope) {
+        if (scope.kind() == Scope.Kind.PublicKey) {
+            return Scope.publicKey(this.publicKey(scope.publicKey()));
+        }
+        return scope;
+    }
+
+    public Rule rule(Rule rule) {
+        List<Predicate> body = new ArrayList<>(rule.body().size());
+        for (Predicate predicate : rule.body()) {
+            body.add(this.predicate(predicate));
+        }
+        List<Expression> expressions = new ArrayList<>(rule.expressions().size());
+        for (Expression expression : rule.expressions()) {
+            expressions.add(this.expression(expression));
+        }
+        List<Scope> scopes = new ArrayList<>(rule.scopes().size());
+        for (Scope scope : rule.scopes()) {
+            scopes.add(this.scope(scope));
+        }
+        return new Rule(this.predicate(rule.head()), body, expressions, scopes);
+    }
+
+    public Check check(Check check) {
+        List<Rule> queries = new ArrayList<>(check.queries().size());
+        for (Rule query : check.queries()) {
+            queries.add(this.rule(query));
+        }
+        return new Check(check.kind(), queries);
+    }
+}
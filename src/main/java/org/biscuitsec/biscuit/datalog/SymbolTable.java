@@ -11,7 +11,9 @@ import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
@@ -60,15 +62,32 @@ public final class SymbolTable implements Serializable {
             "nonce",
             "query"
     );
+    private final static Map<String, Integer> defaultSymbolsIndex = index(defaultSymbols);
+
+    /**
+     * Symbols are only added through {@link #insert(String)}, as the lookup index is kept in sync with this list
+     */
     public final List<String> symbols;
+    // position of each symbol in <code>symbols</code>, to look them up without scanning the list
+    private final HashMap<String, Integer> symbolsIndex;
     private final List<PublicKey> publicKeys;
 
+    private static HashMap<String, Integer> index(List<String> symbols) {
+        HashMap<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < symbols.size(); i++) {
+            // like indexOf, a duplicated symbol resolves to its first position
+            index.putIfAbsent(symbols.get(i), i);
+        }
+        return index;
+    }
+
     public long insert(final String symbol) {
-        int index = this.defaultSymbols.indexOf(symbol);
-        if (index == -1) {
-            index = this.symbols.indexOf(symbol);
-            if (index == -1) {
+        Integer index = defaultSymbolsIndex.get(symbol);
+        if (index == null) {
+            index = this.symbolsIndex.get(symbol);
+            if (index == null) {
                 this.symbols.add(symbol);
+                this.symbolsIndex.put(symbol, this.symbols.size() - 1);
                 return this.symbols.size() - 1 + DEFAULT_SYMBOLS_OFFSET;
             } else {
                 return index + DEFAULT_SYMBOLS_OFFSET;
@@ -105,17 +124,17 @@ public final class SymbolTable implements Serializable {
 
     public Option<Long> get(final String symbol) {
         // looking for symbol in default symbols
-        long index = this.defaultSymbols.indexOf(symbol);
-        if (index == -1) {
+        Integer index = defaultSymbolsIndex.get(symbol);
+        if (index == null) {
             // looking for symbol in usages defined symbols
-            index = this.symbols.indexOf(symbol);
-            if (index == -1) {
+            index = this.symbolsIndex.get(symbol);
+            if (index == null) {
                 return Option.none();
             } else {
-                return Option.some(index + DEFAULT_SYMBOLS_OFFSET);
+                return Option.some((long) index + DEFAULT_SYMBOLS_OFFSET);
             }
         } else {
-            return Option.some(index);
+            return Option.some((long) index);
         }
     }
 
@@ -252,24 +271,28 @@ public final class SymbolTable implements Serializable {
 
     public SymbolTable() {
         this.symbols = new ArrayList<>();
+        this.symbolsIndex = new HashMap<>();
         this.publicKeys = new ArrayList<>();
     }
 
     public SymbolTable(SymbolTable s) {
         this.symbols = new ArrayList<>();
         symbols.addAll(s.symbols);
+        this.symbolsIndex = new HashMap<>(s.symbolsIndex);
         this.publicKeys = new ArrayList<>();
         publicKeys.addAll(s.publicKeys);
     }
 
     public SymbolTable(List<String> symbols) {
         this.symbols = new ArrayList<>(symbols);
+        this.symbolsIndex = index(this.symbols);
         this.publicKeys = new ArrayList<>();
     }
 
     public SymbolTable(List<String> symbols, List<PublicKey> publicKeys) {
         this.symbols = new ArrayList<>();
         this.symbols.addAll(symbols);
+        this.symbolsIndex = index(this.symbols);
         this.publicKeys = new ArrayList<>();
         this.publicKeys.addAll(publicKeys);
     }
@@ -3,6 +3,7 @@ package org.biscuitsec.biscuit.datalog;
 import io.vavr.control.Option;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 import static org.biscuitsec.biscuit.datalog.SymbolTable.DEFAULT_SYMBOLS_OFFSET;
@@ -11,11 +12,13 @@ public class TemporarySymbolTable {
     SymbolTable base;
     int offset;
     List<String> symbols;
+    HashMap<String, Integer> symbolsIndex;
 
     public TemporarySymbolTable(SymbolTable base) {
         this.offset = DEFAULT_SYMBOLS_OFFSET + base.currentOffset();
         this.base = base;
         this.symbols = new ArrayList<>();
+        this.symbolsIndex = new HashMap<>();
     }
 
     public Option<String> get_s(int i) {
@@ -36,11 +39,12 @@ public class TemporarySymbolTable {
             return opt.get();
         }
 
-        int index = this.symbols.indexOf(symbol);
-        if (index != -1) {
+        Integer index = this.symbolsIndex.get(symbol);
+        if (index != null) {
             return (long) (this.offset + index);
         }
         this.symbols.add(symbol);
+        this.symbolsIndex.put(symbol, this.symbols.size() - 1);
         return this.symbols.size() - 1 + this.offset;
     }
 }
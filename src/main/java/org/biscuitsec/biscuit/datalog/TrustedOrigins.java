@@ -66,7 +66,9 @@ public class TrustedOrigins {
                 case PublicKey:
                     List<Long> blockIds = publicKeyToBlockId.get(scope.publicKey());
                     if (blockIds != null) {
-                        origins.inner.inner.addAll(blockIds);
+                        for (Long blockId : blockIds) {
+                            origins.inner.add((long) blockId);
+                        }
                     }
             }
         }
@@ -75,7 +77,7 @@ public class TrustedOrigins {
     }
 
     public boolean contains(Origin factOrigin) {
-        return this.inner.inner.containsAll(factOrigin.inner);
+        return this.inner.containsAll(factOrigin);
     }
 
     @Override
@@ -5,22 +5,71 @@ import io.vavr.Tuple2;
 import io.vavr.control.Either;
 
 import java.io.Serializable;
-import java.time.Instant;
 import java.util.*;
-import java.util.function.Supplier;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Stream;
 
+/**
+ * Facts and rules of an authorization, and the facts derived from them
+ * <p>
+ * Once {@link #run(RunLimits, SymbolTable)} has reached a fixpoint, the world keeps track of the facts and
+ * rules added and the facts removed afterwards, and the next run only computes their consequences. New facts
+ * and rules are propagated from the fixpoint with the semi-naive evaluation. Removed facts are handled like in
+ * the DRed algorithm: every derived fact having a derivation that uses a removed fact is deleted, then the
+ * deleted facts that can still be derived from the remaining facts are added back, and propagated like new facts.
+ * <p>
+ * Only the facts derived by this world can be deleted that way: the facts of a world created from a fact set
+ * are all considered as added facts.
+ */
 public class World implements Serializable {
    private final FactSet facts;
    private final RuleSet rules;
+   // facts produced by the rules, that were not added
+   private final FactSet derived;
+   // true when the facts are a fixpoint of the rules, except for the changes below
+   private boolean saturated;
+   private final FactSet addedFacts;
+   private final Set<Rule> addedRules;
+   private final FactSet removedFacts;
+   // demand predicates of a world rewritten by MagicSets, their facts are stored without origin
+   private final Set<Long> demand;
 
    public void add_fact(final Origin origin, final Fact fact) {
-      this.facts.add(origin, fact);
+      if (this.facts.add(origin, fact)) {
+         if (this.saturated) {
+            this.addedFacts.add(origin, fact);
+         }
+      } else {
+         this.derived.remove(origin, fact);
+      }
+   }
+
+   /**
+    * Removes a fact that was added. The facts derived from it are removed by the next run, unless they
+    * can still be derived from other facts
+    */
+   public void remove_fact(final Origin origin, final Fact fact) {
+      if (!this.facts.remove(origin, fact)) {
+         return;
+      }
+      this.derived.remove(origin, fact);
+      if (!this.saturated) {
+         // the derived facts are computed again by the next run
+         this.invalidate();
+      } else if (!this.addedFacts.remove(origin, fact)) {
+         this.removedFacts.add(origin, fact);
+      }
    }
 
 
    public void add_rule(Long origin, TrustedOrigins scope, Rule rule) {
       this.rules.add(origin, scope, rule);
+      if (this.saturated) {
+         this.addedRules.add(rule);
+      }
    }
 
    public void clearRules() {
@@ -31,38 +80,89 @@ public class World implements Serializable {
       this.run(new RunLimits(), symbols);
    }
 
+   /**
+    * Applies the rules until no new facts are produced
+    * <p>
+    * The rules are evaluated one component of their dependency graph at a time, in topological order,
+    * so a component starts once all the facts it reads from other components are known. A non recursive
+    * component is applied once, a recursive one until it stops producing facts. The iteration limit
+    * applies to each component.
+    * <p>
+    * If the world was already at a fixpoint, only the consequences of the changes made since then are computed.
+    */
    public void run(RunLimits limits, final SymbolTable symbols) throws Error {
+      this.run(limits, new Budget(limits), symbols);
+   }
+
+   /**
+    * @param budget time and fuel left to the run, shared with the queries that follow it
+    */
+   public void run(RunLimits limits, Budget budget, final SymbolTable symbols) throws Error {
+      final boolean incremental = this.saturated;
+      // set again once the fixpoint is reached
+      this.saturated = false;
+
+      try {
+         // facts that are new since the previous fixpoint, read by the rules of each component
+         FactSet changed = null;
+         if (incremental) {
+            changed = this.retract(limits, budget, symbols);
+            changed.merge(this.addedFacts);
+         }
+
+         for (RuleGraph.Component component : RuleGraph.components(this.rules)) {
+            this.run(component, changed, incremental ? this.addedRules : null, limits, budget, symbols);
+         }
+      } catch (Error | RuntimeException e) {
+         if (incremental && this.removedFacts.size() > 0) {
+            // facts derived from the removed ones may be left, the next run starts over
+            this.invalidate();
+         }
+         throw e;
+      }
+
+      this.saturated = true;
+      this.addedFacts.clear();
+      this.addedRules.clear();
+      this.removedFacts.clear();
+   }
+
+   /**
+    * @param changed facts that are new since the previous fixpoint, null to apply the rules to all the facts
+    * @param newRules rules added since the previous fixpoint, that are applied to all the facts
+    */
+   private void run(RuleGraph.Component component, FactSet changed, Set<Rule> newRules, RunLimits limits, Budget budget,
+                    final SymbolTable symbols) throws Error {
       int iterations = 0;
-      Instant limit = Instant.now().plus(limits.maxTime);
+      // facts that appeared during the previous iteration. The first iteration applies the rules
+      // to all the facts, then only the derivations that use at least one new fact are computed
+      FactSet delta = changed;
+      Set<Rule> full = newRules;
+
+      if (changed != null && changed.size() == 0 && component.rules.values().stream()
+              .flatMap(List::stream).noneMatch(t -> newRules.contains(t._2))) {
+         return ;
+      }
 
       while(true) {
-         final FactSet newFacts = new FactSet();
-
-         for(Map.Entry<TrustedOrigins, List<Tuple2<Long, Rule>>> entry: this.rules.rules.entrySet()) {
-            for(Tuple2<Long, Rule> t: entry.getValue()) {
-               Supplier<Stream<Tuple2<Origin, Fact>>> factsSupplier = () -> this.facts.stream(entry.getKey());
-
-               Stream<Either<Error, Tuple2<Origin, Fact>>> stream =  t._2.apply(factsSupplier, t._1, symbols);
-                for (Iterator<Either<Error, Tuple2<Origin, Fact>>> it = stream.iterator(); it.hasNext(); ) {
-                    Either<Error, Tuple2<Origin, Fact>> res = it.next();
-                    if(Instant.now().compareTo(limit) >= 0) {
-                       throw new Error.Timeout();
-                    }
-
-                    if(res.isRight()) {
-                       Tuple2<Origin, Fact> t2 = res.get();
-                       newFacts.add(t2._1, t2._2);
-                    } else {
-                        throw res.getLeft();
-                    }
-                }
+         final FactSet newFacts = this.apply(component, delta, full, limits, budget, symbols);
+         full = null;
+         // the rules only check the deadline at intervals, a short iteration could miss it
+         budget.check();
+
+         delta = new FactSet();
+         for (Iterator<Tuple2<Origin, Fact>> it = newFacts.entries().iterator(); it.hasNext(); ) {
+            Tuple2<Origin, Fact> t = it.next();
+            if (this.facts.add(t._1, t._2)) {
+               delta.add(t._1, t._2);
+               this.derived.add(t._1, t._2);
+               if (changed != null) {
+                  changed.add(t._1, t._2);
+               }
             }
          }
 
-         final int len = this.facts.size();
-         this.facts.merge(newFacts);
-
-         if (this.facts.size() == len) {
+         if (delta.size() == 0) {
             return ;
          }
 
@@ -74,29 +174,319 @@ public class World implements Serializable {
          if(iterations >= limits.maxIterations) {
             throw new Error.TooManyIterations();
          }
+
+         // the new facts cannot match the body of a non recursive component
+         if (!component.recursive) {
+            return ;
+         }
+      }
+   }
+
+   /**
+    * Deletes the derived facts that have a derivation using a removed fact, then adds back the ones that
+    * can still be derived in one step from the remaining facts
+    *
+    * @return the facts added back, to be propagated
+    */
+   private FactSet retract(RunLimits limits, Budget budget, final SymbolTable symbols) throws Error {
+      final FactSet restored = new FactSet();
+      if (this.removedFacts.size() == 0) {
+         return restored;
+      }
+
+      // the facts before the removal, the current ones are not modified until the deletion
+      final FactSet previous = new FactSet(this.facts);
+      previous.merge(this.removedFacts);
+
+      final FactSet deleted = new FactSet();
+      FactSet delta = this.removedFacts;
+      int iterations = 0;
+      while (delta.size() > 0) {
+         final FactSet derivations = new FactSet();
+         for (Map.Entry<TrustedOrigins, List<Tuple2<Long, Rule>>> entry : this.rules.rules.entrySet()) {
+            for (Tuple2<Long, Rule> t : entry.getValue()) {
+               this.apply(previous, entry.getKey(), t, delta, derivations, null, limits, budget, symbols);
+            }
+         }
+
+         delta = new FactSet();
+         for (Iterator<Tuple2<Origin, Fact>> it = derivations.entries().iterator(); it.hasNext(); ) {
+            Tuple2<Origin, Fact> t = it.next();
+            if (this.derived.contains(t._1, t._2) && deleted.add(t._1, t._2)) {
+               delta.add(t._1, t._2);
+            }
+         }
+
+         iterations += 1;
+         if(delta.size() > 0 && iterations >= limits.maxIterations) {
+            throw new Error.TooManyIterations();
+         }
+      }
+
+      for (Iterator<Tuple2<Origin, Fact>> it = deleted.entries().iterator(); it.hasNext(); ) {
+         Tuple2<Origin, Fact> t = it.next();
+         this.facts.remove(t._1, t._2);
+         this.derived.remove(t._1, t._2);
+      }
+
+      // the removed facts are added back too if the rules still produce them
+      final FactSet candidates = new FactSet(deleted);
+      candidates.merge(this.removedFacts);
+      final Set<Long> heads = new HashSet<>();
+      for (Iterator<Tuple2<Origin, Fact>> it = candidates.entries().iterator(); it.hasNext(); ) {
+         heads.add(it.next()._2.predicate().name());
+      }
+
+      final FactSet derivations = new FactSet();
+      for (Map.Entry<TrustedOrigins, List<Tuple2<Long, Rule>>> entry : this.rules.rules.entrySet()) {
+         for (Tuple2<Long, Rule> t : entry.getValue()) {
+            if (heads.contains(t._2.head().name())) {
+               this.apply(this.facts, entry.getKey(), t, null, derivations, null, limits, budget, symbols);
+            }
+         }
+      }
+      for (Iterator<Tuple2<Origin, Fact>> it = derivations.entries().iterator(); it.hasNext(); ) {
+         Tuple2<Origin, Fact> t = it.next();
+         if (candidates.contains(t._1, t._2) && this.facts.add(t._1, t._2)) {
+            this.derived.add(t._1, t._2);
+            restored.add(t._1, t._2);
+         }
+      }
+      return restored;
+   }
+
+   // removes all the derived facts, so the next run applies the rules to all the facts
+   private void invalidate() {
+      for (Iterator<Tuple2<Origin, Fact>> it = this.derived.entries().iterator(); it.hasNext(); ) {
+         Tuple2<Origin, Fact> t = it.next();
+         this.facts.remove(t._1, t._2);
+      }
+      this.derived.clear();
+      this.saturated = false;
+      this.addedFacts.clear();
+      this.addedRules.clear();
+      this.removedFacts.clear();
+   }
+
+   /**
+    * Applies the rules of the component once, on the full fact set if <code>delta</code> is null,
+    * otherwise only the derivations using at least one fact of the delta
+    *
+    * @param full rules applied on the full fact set in any case, can be null
+    * @return the facts produced, including the ones that were already known
+    */
+   private FactSet apply(RuleGraph.Component component, FactSet delta, Set<Rule> full, RunLimits limits, Budget budget,
+                         final SymbolTable symbols) throws Error {
+      if (limits.executor == null || component.size() < 2) {
+         final FactSet newFacts = new FactSet();
+         for(Map.Entry<TrustedOrigins, List<Tuple2<Long, Rule>>> entry: component.rules.entrySet()) {
+            for(Tuple2<Long, Rule> t: entry.getValue()) {
+               FactSet ruleDelta = full != null && full.contains(t._2) ? null : delta;
+               this.apply(this.facts, entry.getKey(), t, ruleDelta, newFacts, null, limits, budget, symbols);
+            }
+         }
+         return newFacts;
+      }
+
+      // each rule writes to its own fact set, merged once all the rules are done. The fact set
+      // and the delta are only read until then
+      final List<Tuple2<TrustedOrigins, Tuple2<Long, Rule>>> tasks = new ArrayList<>();
+      for(Map.Entry<TrustedOrigins, List<Tuple2<Long, Rule>>> entry: component.rules.entrySet()) {
+         for(Tuple2<Long, Rule> t: entry.getValue()) {
+            tasks.add(new Tuple2<>(entry.getKey(), t));
+         }
+      }
+      final FactSet[] results = new FactSet[tasks.size()];
+      final AtomicInteger next = new AtomicInteger();
+      final CountDownLatch done = new CountDownLatch(tasks.size());
+      final AtomicBoolean cancelled = new AtomicBoolean(false);
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      final Runnable worker = () -> {
+         int i;
+         while ((i = next.getAndIncrement()) < results.length) {
+            try {
+               if (!cancelled.get()) {
+                  final Tuple2<TrustedOrigins, Tuple2<Long, Rule>> task = tasks.get(i);
+                  final Tuple2<Long, Rule> t = task._2;
+                  final FactSet newFacts = new FactSet();
+                  final FactSet ruleDelta = full != null && full.contains(t._2) ? null : delta;
+                  this.apply(this.facts, task._1, t, ruleDelta, newFacts, cancelled, limits, budget, symbols);
+                  results[i] = newFacts;
+               }
+            } catch (Throwable e) {
+               // stops the other rules
+               failure.compareAndSet(null, e);
+               cancelled.set(true);
+            } finally {
+               done.countDown();
+            }
+         }
+      };
+
+      // the calling thread applies rules too, and only waits for the ones already started by the executor's
+      // threads, so a busy executor, or one also running this authorization, delays the run but cannot block it
+      for (int h = 1; h < results.length; h++) {
+         try {
+            limits.executor.execute(worker);
+         } catch (RejectedExecutionException e) {
+            break;
+         }
+      }
+      worker.run();
+
+      try {
+         final long remaining = budget.remaining();
+         if (remaining <= 0 || !done.await(remaining, TimeUnit.NANOSECONDS)) {
+            throw new Error.Timeout();
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new Error.Timeout();
+      } finally {
+         cancelled.set(true);
+      }
+
+      final Throwable cause = failure.get();
+      if (cause instanceof Error) {
+         throw (Error) cause;
+      } else if (cause instanceof RuntimeException) {
+         throw (RuntimeException) cause;
+      } else if (cause instanceof java.lang.Error) {
+         throw (java.lang.Error) cause;
+      } else if (cause != null) {
+         throw new IllegalStateException(cause);
+      }
+
+      final FactSet newFacts = new FactSet();
+      for (FactSet result : results) {
+         newFacts.merge(result);
       }
+      return newFacts;
+   }
+
+   /**
+    * @param cancelled set when the rule runs concurrently with others, then the rule stops once it is set, and
+    *                  fails as soon as its own new facts exceed the limit
+    */
+   private void apply(FactSet facts, TrustedOrigins scope, Tuple2<Long, Rule> t, FactSet delta, FactSet newFacts,
+                      AtomicBoolean cancelled, RunLimits limits, Budget budget, final SymbolTable symbols) throws Error {
+      HashJoin.Source factsLookup = HashJoin.source(facts, scope);
+
+      // the deadline and fuel are checked by the rule as it consumes fuel
+      final Budget.Meter meter = budget.meter();
+      Stream<Either<Error, Tuple2<Origin, Fact>>> stream;
+      if (delta == null) {
+         stream = t._2.apply(factsLookup, t._1, symbols, meter);
+      } else {
+         stream = t._2.apply(factsLookup, HashJoin.source(delta, scope), t._1, symbols, meter);
+      }
+
+      try {
+         int added = 0;
+         for (Iterator<Either<Error, Tuple2<Origin, Fact>>> it = stream.iterator(); it.hasNext(); ) {
+            Either<Error, Tuple2<Origin, Fact>> res = it.next();
+
+            if(res.isRight()) {
+               Tuple2<Origin, Fact> t2 = res.get();
+               if (!this.demand.isEmpty() && this.demand.contains(t2._2.predicate().name())) {
+                  t2 = new Tuple2<>(new Origin(), t2._2);
+               }
+               if (cancelled == null) {
+                  newFacts.add(t2._1, t2._2);
+               } else {
+                  if (cancelled.get()) {
+                     return;
+                  }
+                  // these facts alone are enough to reach the limit once merged
+                  if (!facts.contains(t2._1, t2._2) && newFacts.add(t2._1, t2._2)) {
+                     added += 1;
+                     if (facts.size() + added >= limits.maxFacts) {
+                        throw new Error.TooManyFacts();
+                     }
+                  }
+               }
+            } else {
+               throw res.getLeft();
+            }
+         }
+      } finally {
+         meter.flush();
+      }
+   }
+
+   /**
+    * Returns a world with the same facts, whose rules only derive the facts that can match the queries
+    * <p>
+    * The rules are rewritten with the magic set transformation, using the constants of the queries' predicates,
+    * so matching the queries on the new world after a run gives the same results as on this world after a run.
+    * This world's facts are shared and must not be modified while the new world is used.
+    */
+   public World for_queries(List<Rule> queries) {
+      return MagicSets.rewrite(this, queries);
+   }
+
+   /**
+    * Returns a world with the same facts, whose rules were rewritten by {@link MagicSets} from this world's rules,
+    * like {@link #for_queries(List)}
+    */
+   public World for_queries(MagicSets rewriting) {
+      return rewriting.world(this);
    }
 
    public final FactSet facts() {
       return this.facts;
    }
 
+   /**
+    * @return the facts that do not depend on a removed fact. When facts were removed since the last fixpoint,
+    * the facts derived from them are only retracted by the next run, so this only returns the facts that
+    * were added
+    */
+   FactSet valid_facts() {
+      if (this.removedFacts.size() == 0) {
+         return this.facts;
+      }
+      final FactSet added = new FactSet();
+      for (Iterator<Tuple2<Origin, Fact>> it = this.facts.entries().iterator(); it.hasNext(); ) {
+         final Tuple2<Origin, Fact> t = it.next();
+         if (!this.derived.contains(t._1, t._2)) {
+            added.add(t._1, t._2);
+         }
+      }
+      return added;
+   }
+
    public RuleSet rules() { return this.rules; }
 
    public final FactSet query_rule(final Rule rule, Long origin, TrustedOrigins scope, SymbolTable symbols) throws Error {
+      return this.query_rule(rule, origin, scope, symbols, null);
+   }
+
+   /**
+    * @param budget time and fuel left to the query, can be null
+    */
+   public final FactSet query_rule(final Rule rule, Long origin, TrustedOrigins scope, SymbolTable symbols,
+                                   Budget budget) throws Error {
       final FactSet newFacts = new FactSet();
 
-      Supplier<Stream<Tuple2<Origin, Fact>>> factsSupplier = () -> this.facts.stream(scope);
+      HashJoin.Source factsLookup = HashJoin.source(this.facts, scope);
 
-      Stream<Either<Error, Tuple2<Origin, Fact>>> stream = rule.apply(factsSupplier, origin, symbols);
-      for (Iterator<Either<Error, Tuple2<Origin, Fact>>> it = stream.iterator(); it.hasNext(); ) {
-         Either<Error, Tuple2<Origin, Fact>> res = it.next();
+      final Budget.Meter meter = budget == null ? null : budget.meter();
+      try {
+         Stream<Either<Error, Tuple2<Origin, Fact>>> stream = rule.apply(factsLookup, origin, symbols, meter);
+         for (Iterator<Either<Error, Tuple2<Origin, Fact>>> it = stream.iterator(); it.hasNext(); ) {
+            Either<Error, Tuple2<Origin, Fact>> res = it.next();
 
-         if (res.isRight()) {
-            Tuple2<Origin, Fact> t2 = res.get();
-            newFacts.add(t2._1, t2._2);
-         } else {
-             throw res.getLeft();
+            if (res.isRight()) {
+               Tuple2<Origin, Fact> t2 = res.get();
+               newFacts.add(t2._1, t2._2);
+            } else {
+               throw res.getLeft();
+            }
+         }
+      } finally {
+         if (meter != null) {
+            meter.flush();
          }
       }
 
@@ -107,36 +497,95 @@ public class World implements Serializable {
       return rule.find_match(this.facts, origin, scope, symbols);
    }
 
+   /**
+    * @param budget time and fuel left to the query
+    */
+   public final boolean query_match(final Rule rule, Long origin, TrustedOrigins scope, SymbolTable symbols,
+                                    Budget budget) throws Error {
+      final Budget.Meter meter = budget.meter();
+      try {
+         return rule.find_match(this.facts, origin, scope, symbols, meter);
+      } finally {
+         meter.flush();
+      }
+   }
+
    public final boolean query_match_all(final Rule rule, TrustedOrigins scope, SymbolTable symbols) throws Error {
       return rule.check_match_all(this.facts, scope, symbols);
    }
 
+   /**
+    * @param budget time and fuel left to the query
+    */
+   public final boolean query_match_all(final Rule rule, TrustedOrigins scope, SymbolTable symbols,
+                                        Budget budget) throws Error {
+      final Budget.Meter meter = budget.meter();
+      try {
+         return rule.check_match_all(this.facts, scope, symbols, meter);
+      } finally {
+         meter.flush();
+      }
+   }
+
 
    public World() {
-      this.facts = new FactSet();
-      this.rules = new RuleSet();
+      this(new FactSet(), new RuleSet());
    }
 
    public World(FactSet facts) {
-      this.facts = facts.clone();
-      this.rules = new RuleSet();
+      this(facts, new RuleSet());
    }
 
    public World(FactSet facts, RuleSet rules) {
-      this.facts = facts.clone();
-      this.rules = rules.clone();
+      this(facts, rules, Collections.emptySet());
+   }
+
+   World(FactSet facts, RuleSet rules, Set<Long> demand) {
+      this(facts.clone(), rules.clone(), new FactSet(), false, demand);
+   }
+
+   private World(FactSet facts, RuleSet rules, FactSet derived, boolean saturated, Set<Long> demand) {
+      this.facts = facts;
+      this.rules = rules;
+      this.demand = demand;
+      this.derived = derived;
+      this.saturated = saturated;
+      this.addedFacts = new FactSet();
+      this.addedRules = Collections.newSetFromMap(new IdentityHashMap<>());
+      this.removedFacts = new FactSet();
    }
 
    public World(World w) {
       this.facts = w.facts.clone();
       this.rules = w.rules.clone();
+      this.derived = w.derived.clone();
+      this.saturated = w.saturated;
+      this.addedFacts = w.addedFacts.clone();
+      this.addedRules = Collections.newSetFromMap(new IdentityHashMap<>());
+      this.addedRules.addAll(w.addedRules);
+      this.removedFacts = w.removedFacts.clone();
+      this.demand = w.demand;
+   }
+
+   /**
+    * Returns a world containing the facts and rules of this world, without copying them
+    * <p>
+    * This world's facts and rules are shared, so it must not be modified anymore, but the returned world can be
+    * modified, and multiple worlds created that way can be used from different threads. If this world is at a
+    * fixpoint, so is the returned world, and its first run only computes the consequences of its changes.
+    */
+   public World extend() {
+      if (!this.saturated || this.addedFacts.size() > 0 || !this.addedRules.isEmpty() || this.removedFacts.size() > 0) {
+         return new World(this);
+      }
+      return new World(new FactSet(this.facts), new RuleSet(this.rules), new FactSet(this.derived), true, this.demand);
    }
 
    public String print(SymbolTable symbol_table) {
       StringBuilder s = new StringBuilder();
 
       s.append("World {\n\t\tfacts: [");
-      for(Map.Entry<Origin, HashSet<Fact>> entry: this.facts.facts().entrySet()) {
+      for(Map.Entry<Origin, Set<Fact>> entry: this.facts.byOrigin().entrySet()) {
          s.append("\n\t\t\t"+entry.getKey()+":");
          for(Fact f: entry.getValue()) {
             s.append("\n\t\t\t\t");
@@ -0,0 +1,618 @@
+package org.biscuitsec.biscuit.datalog.expressions;
+
+import org.biscuitsec.biscuit.datalog.TemporarySymbolTable;
+import org.biscuitsec.biscuit.datalog.Term;
+import org.biscuitsec.biscuit.error.Error;
+import com.google.re2j.Matcher;
+import com.google.re2j.Pattern;
+import io.vavr.control.Option;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Expression compiled to a tree of evaluator nodes, one per operation, reading the variables from a rule's frame
+ * <p>
+ * Each node checks the types of its operands itself instead of going through the generic {@link Op} evaluation:
+ * booleans are returned as shared constants, and integer operations and comparisons pass <code>long</code>
+ * values between nodes without creating intermediate terms.
+ * <p>
+ * The result is the same as {@link Expression#evaluate(Term[], int[], TemporarySymbolTable)}, including the
+ * errors. The stack based evaluation has no defined result when an operation gets operands of the wrong type,
+ * so in that case the expression is evaluated again by {@link Expression} to get the same result.
+ */
+public final class CompiledExpression {
+    private static final Term.Bool TRUE = new Term.Bool(true);
+    private static final Term.Bool FALSE = new Term.Bool(false);
+
+    private final Expression expression;
+    private final int[] slots;
+    // null if the operations do not form a tree
+    private final Node root;
+
+    private CompiledExpression(Expression expression, int[] slots, Node root) {
+        this.expression = expression;
+        this.slots = slots;
+        this.root = root;
+    }
+
+    /**
+     * @param slots for each op, the slot of its variable in the frame, or a negative value for the other ops
+     */
+    public static CompiledExpression compile(Expression expression, int[] slots) {
+        return new CompiledExpression(expression, slots, tree(expression.getOps(), slots));
+    }
+
+    public Term evaluate(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution {
+        if (this.root != null) {
+            try {
+                return this.root.evaluate(frame, symbols);
+            } catch (Mismatch e) {
+                // evaluated again below
+            }
+        }
+        return this.expression.evaluate(frame, this.slots, symbols);
+    }
+
+    private static Node tree(List<Op> ops, int[] slots) {
+        Deque<Node> stack = new ArrayDeque<>();
+        for (int i = 0; i < ops.size(); i++) {
+            Op op = ops.get(i);
+            if (op instanceof Op.Value) {
+                Term value = ((Op.Value) op).getValue();
+                if (slots[i] >= 0) {
+                    stack.push(new Variable(slots[i]));
+                } else if (value instanceof Term.Variable) {
+                    // unbound variable, the evaluation fails
+                    return null;
+                } else {
+                    stack.push(new Constant(value));
+                }
+            } else if (op instanceof Op.Unary) {
+                if (stack.isEmpty()) {
+                    return null;
+                }
+                Node value = stack.pop();
+                switch (((Op.Unary) op).getOp()) {
+                    case Negate:
+                        stack.push(new Negate(value));
+                        break;
+                    case Parens:
+                        stack.push(value);
+                        break;
+                    case Length:
+                        stack.push(new Length(value));
+                        break;
+                    default:
+                        return null;
+                }
+            } else if (op instanceof Op.Binary) {
+                if (stack.size() < 2) {
+                    return null;
+                }
+                Node right = stack.pop();
+                Node left = stack.pop();
+                Node node = binary(((Op.Binary) op).getOp(), left, right);
+                if (node == null) {
+                    return null;
+                }
+                stack.push(node);
+            } else {
+                return null;
+            }
+        }
+        return stack.size() == 1 ? stack.pop() : null;
+    }
+
+    private static Node binary(Op.BinaryOp op, Node left, Node right) {
+        switch (op) {
+            case LessThan:
+            case GreaterThan:
+            case LessOrEqual:
+            case GreaterOrEqual:
+                return new Compare(op, left, right);
+            case Equal:
+                return new Equal(left, right, false);
+            case NotEqual:
+                return new Equal(left, right, true);
+            case Contains:
+                return new Contains(left, right);
+            case Prefix:
+            case Suffix:
+            case Regex:
+                return new StringTest(op, left, right);
+            case Add:
+                return new Add(left, right);
+            case Sub:
+            case Mul:
+            case Div:
+            case BitwiseAnd:
+            case BitwiseOr:
+            case BitwiseXor:
+                return new Arithmetic(op, left, right);
+            case And:
+                return new Logic(left, right, true);
+            case Or:
+                return new Logic(left, right, false);
+            case Intersection:
+                return new SetOperation(left, right, true);
+            case Union:
+                return new SetOperation(left, right, false);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * thrown when an operand has the wrong type, without stack trace since it is not reported
+     */
+    private static final class Mismatch extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        static final Mismatch INSTANCE = new Mismatch();
+
+        private Mismatch() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static Term.Bool bool(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    private static String string(Term term, TemporarySymbolTable symbols, String message) throws Error.Execution {
+        long index = ((Term.Str) term).value();
+        Option<String> s = symbols.get_s((int) index);
+        if (s.isEmpty()) {
+            throw new Error.Execution(message + index);
+        }
+        return s.get();
+    }
+
+    private abstract static class Node {
+        abstract Term evaluate(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution;
+
+        /**
+         * true if the node can only produce an integer, so {@link #integer} does not create a term
+         */
+        boolean integral() {
+            return false;
+        }
+
+        long integer(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution {
+            Term value = this.evaluate(frame, symbols);
+            if (value instanceof Term.Integer) {
+                return ((Term.Integer) value).value();
+            }
+            throw Mismatch.INSTANCE;
+        }
+
+        boolean test(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution {
+            Term value = this.evaluate(frame, symbols);
+            if (value instanceof Term.Bool) {
+                return ((Term.Bool) value).value();
+            }
+            throw Mismatch.INSTANCE;
+        }
+    }
+
+    private abstract static class BooleanNode extends Node {
+        @Override
+        Term evaluate(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution {
+            return bool(this.test(frame, symbols));
+        }
+
+        @Override
+        abstract boolean test(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution;
+    }
+
+    private abstract static class IntegerNode extends Node {
+        @Override
+        Term evaluate(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution {
+            return new Term.Integer(this.integer(frame, symbols));
+        }
+
+        @Override
+        boolean integral() {
+            return true;
+        }
+
+        @Override
+        abstract long integer(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution;
+    }
+
+    private static final class Constant extends Node {
+        private final Term value;
+
+        Constant(Term value) {
+            this.value = value;
+        }
+
+        @Override
+        Term evaluate(Term[] frame, TemporarySymbolTable symbols) {
+            return this.value;
+        }
+
+        @Override
+        boolean integral() {
+            return this.value instanceof Term.Integer;
+        }
+    }
+
+    private static final class Variable extends Node {
+        private final int slot;
+
+        Variable(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Term evaluate(Term[] frame, TemporarySymbolTable symbols) {
+            return frame[this.slot];
+        }
+    }
+
+    private static final class Negate extends BooleanNode {
+        private final Node value;
+
+        Negate(Node value) {
+            this.value = value;
+        }
+
+        @Override
+        boolean test(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution {
+            return !this.value.test(frame, symbols);
+        }
+    }
+
+    private static final class Length extends IntegerNode {
+        private final Node value;
+
+        Length(Node value) {
+            this.value = value;
+        }
+
+        @Override
+        long integer(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution {
+            Term value = this.value.evaluate(frame, symbols);
+            if (value instanceof Term.Str) {
+                Option<String> s = symbols.get_s((int) ((Term.Str) value).value());
+                if (s.isEmpty()) {
+                    throw new Error.Execution("string not found in symbols for id" + value);
+                }
+                return s.get().getBytes(StandardCharsets.UTF_8).length;
+            } else if (value instanceof Term.Bytes) {
+                return ((Term.Bytes) value).value().length;
+            } else if (value instanceof Term.Set) {
+                return ((Term.Set) value).value().size();
+            }
+            throw Mismatch.INSTANCE;
+        }
+    }
+
+    private static final class Compare extends BooleanNode {
+        private final Op.BinaryOp op;
+        private final Node left;
+        private final Node right;
+        private final boolean integral;
+
+        Compare(Op.BinaryOp op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+            this.integral = left.integral() && right.integral();
+        }
+
+        @Override
+        boolean test(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution {
+            long l;
+            long r;
+            if (this.integral) {
+                l = this.left.integer(frame, symbols);
+                r = this.right.integer(frame, symbols);
+            } else {
+                Term left = this.left.evaluate(frame, symbols);
+                Term right = this.right.evaluate(frame, symbols);
+                if (left instanceof Term.Integer && right instanceof Term.Integer) {
+                    l = ((Term.Integer) left).value();
+                    r = ((Term.Integer) right).value();
+                } else if (left instanceof Term.Date && right instanceof Term.Date) {
+                    l = ((Term.Date) left).value();
+                    r = ((Term.Date) right).value();
+                } else {
+                    throw Mismatch.INSTANCE;
+                }
+            }
+
+            switch (this.op) {
+                case LessThan:
+                    return l < r;
+                case GreaterThan:
+                    return l > r;
+                case LessOrEqual:
+                    return l <= r;
+                default:
+                    return l >= r;
+            }
+        }
+    }
+
+    private static final class Equal extends BooleanNode {
+        private final Node left;
+        private final Node right;
+        private final boolean negated;
+
+        Equal(Node left, Node right, boolean negated) {
+            this.left = left;
+            this.right = right;
+            this.negated = negated;
+        }
+
+        @Override
+        boolean test(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution {
+            Term left = this.left.evaluate(frame, symbols);
+            Term right = this.right.evaluate(frame, symbols);
+
+            if (left instanceof Term.Bool && right instanceof Term.Bool) {
+                // the interpreted != also compares booleans for equality
+                return ((Term.Bool) left).value() == ((Term.Bool) right).value();
+            }
+            boolean equal;
+            if (left instanceof Term.Integer && right instanceof Term.Integer) {
+                equal = ((Term.Integer) left).value() == ((Term.Integer) right).value();
+            } else if (left instanceof Term.Str && right instanceof Term.Str) {
+                equal = ((Term.Str) left).value() == ((Term.Str) right).value();
+            } else if (left instanceof Term.Bytes && right instanceof Term.Bytes) {
+                equal = Arrays.equals(((Term.Bytes) left).value(), ((Term.Bytes) right).value());
+            } else if (left instanceof Term.Date && right instanceof Term.Date) {
+                equal = ((Term.Date) left).value() == ((Term.Date) right).value();
+            } else if (left instanceof Term.Set && right instanceof Term.Set) {
+                Set<Term> leftSet = ((Term.Set) left).value();
+                Set<Term> rightSet = ((Term.Set) right).value();
+                equal = leftSet.size() == rightSet.size() && leftSet.containsAll(rightSet);
+            } else {
+                throw Mismatch.INSTANCE;
+            }
+            return equal != this.negated;
+        }
+    }
+
+    private static final class Contains extends BooleanNode {
+        private final Node left;
+        private final Node right;
+
+        Contains(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean test(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution {
+            Term left = this.left.evaluate(frame, symbols);
+            Term right = this.right.evaluate(frame, symbols);
+
+            if (left instanceof Term.Set) {
+                if (right instanceof Term.Set) {
+                    return ((Term.Set) left).value().containsAll(((Term.Set) right).value());
+                }
+                if (right instanceof Term.Integer || right instanceof Term.Str || right instanceof Term.Bytes
+                        || right instanceof Term.Date || right instanceof Term.Bool) {
+                    return ((Term.Set) left).value().contains(right);
+                }
+            } else if (left instanceof Term.Str && right instanceof Term.Str) {
+                String l = string(left, symbols, "cannot find string in symbols for index ");
+                String r = string(right, symbols, "cannot find string in symbols for index ");
+                return l.contains(r);
+            }
+            throw Mismatch.INSTANCE;
+        }
+    }
+
+    private static final class StringTest extends BooleanNode {
+        private final Op.BinaryOp op;
+        private final Node left;
+        private final Node right;
+        // pattern of a constant right operand, compiled on first use
+        private volatile Literal literal;
+
+        StringTest(Op.BinaryOp op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean test(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution {
+            Term left = this.left.evaluate(frame, symbols);
+            Term right = this.right.evaluate(frame, symbols);
+            if (!(left instanceof Term.Str && right instanceof Term.Str)) {
+                throw Mismatch.INSTANCE;
+            }
+
+            String l = string(left, symbols, "cannot find string in symbols for index ");
+            String r = string(right, symbols, "cannot find string in symbols for index ");
+            switch (this.op) {
+                case Prefix:
+                    return l.startsWith(r);
+                case Suffix:
+                    return l.endsWith(r);
+                default:
+                    Matcher m = this.pattern(r).matcher(l);
+                    return m.find();
+            }
+        }
+
+        /**
+         * the pattern of a string literal is kept by the node, only the patterns from variables are looked up
+         * in the {@link RegexCache}
+         */
+        private Pattern pattern(String regex) {
+            if (!(this.right instanceof Constant)) {
+                return RegexCache.get().compile(regex);
+            }
+            Literal literal = this.literal;
+            if (literal == null || !literal.source.equals(regex)) {
+                literal = new Literal(regex, RegexCache.get().compile(regex));
+                this.literal = literal;
+            }
+            return literal.pattern;
+        }
+    }
+
+    private static final class Literal {
+        final String source;
+        final Pattern pattern;
+
+        Literal(String source, Pattern pattern) {
+            this.source = source;
+            this.pattern = pattern;
+        }
+    }
+
+    private static final class Add extends Node {
+        private final Node left;
+        private final Node right;
+        private final boolean integral;
+
+        Add(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+            this.integral = left.integral() && right.integral();
+        }
+
+        @Override
+        boolean integral() {
+            return this.integral;
+        }
+
+        @Override
+        Term evaluate(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution {
+            if (this.integral) {
+                return new Term.Integer(this.integer(frame, symbols));
+            }
+
+            Term left = this.left.evaluate(frame, symbols);
+            Term right = this.right.evaluate(frame, symbols);
+            if (left instanceof Term.Integer && right instanceof Term.Integer) {
+                return new Term.Integer(add(((Term.Integer) left).value(), ((Term.Integer) right).value()));
+            } else if (left instanceof Term.Str && right instanceof Term.Str) {
+                String l = string(left, symbols, "cannot find string in symbols for index ");
+                String r = string(right, symbols, "cannot find string in symbols for index ");
+                return new Term.Str(symbols.insert(l + r));
+            }
+            throw Mismatch.INSTANCE;
+        }
+
+        @Override
+        long integer(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution {
+            if (!this.integral) {
+                return super.integer(frame, symbols);
+            }
+            long l = this.left.integer(frame, symbols);
+            long r = this.right.integer(frame, symbols);
+            return add(l, r);
+        }
+
+        private static long add(long l, long r) throws Error.Execution {
+            try {
+                return Math.addExact(l, r);
+            } catch (ArithmeticException e) {
+                throw new Error.Execution(Error.Execution.Kind.Overflow, "overflow");
+            }
+        }
+    }
+
+    private static final class Arithmetic extends IntegerNode {
+        private final Op.BinaryOp op;
+        private final Node left;
+        private final Node right;
+
+        Arithmetic(Op.BinaryOp op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        long integer(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution {
+            long l = this.left.integer(frame, symbols);
+            long r = this.right.integer(frame, symbols);
+            try {
+                switch (this.op) {
+                    case Sub:
+                        return Math.subtractExact(l, r);
+                    case Mul:
+                        return Math.multiplyExact(l, r);
+                    case Div:
+                        if (r == 0) {
+                            throw Mismatch.INSTANCE;
+                        }
+                        return l / r;
+                    case BitwiseAnd:
+                        return l & r;
+                    case BitwiseOr:
+                        return l | r;
+                    default:
+                        return l ^ r;
+                }
+            } catch (ArithmeticException e) {
+                throw new Error.Execution(Error.Execution.Kind.Overflow, "overflow");
+            }
+        }
+    }
+
+    private static final class Logic extends BooleanNode {
+        private final Node left;
+        private final Node right;
+        private final boolean and;
+
+        Logic(Node left, Node right, boolean and) {
+            this.left = left;
+            this.right = right;
+            this.and = and;
+        }
+
+        @Override
+        boolean test(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution {
+            // both sides are evaluated, like the interpreter does
+            boolean l = this.left.test(frame, symbols);
+            boolean r = this.right.test(frame, symbols);
+            return this.and ? l && r : l || r;
+        }
+    }
+
+    private static final class SetOperation extends Node {
+        private final Node left;
+        private final Node right;
+        private final boolean intersection;
+
+        SetOperation(Node left, Node right, boolean intersection) {
+            this.left = left;
+            this.right = right;
+            this.intersection = intersection;
+        }
+
+        @Override
+        Term evaluate(Term[] frame, TemporarySymbolTable symbols) throws Error.Execution {
+            Term left = this.left.evaluate(frame, symbols);
+            Term right = this.right.evaluate(frame, symbols);
+            if (!(left instanceof Term.Set && right instanceof Term.Set)) {
+                throw Mismatch.INSTANCE;
+            }
+
+            HashSet<Term> l = ((Term.Set) left).value();
+            HashSet<Term> r = ((Term.Set) right).value();
+            HashSet<Term> result = new HashSet<>();
+            if (this.intersection) {
+                for (Term t : r) {
+                    if (l.contains(t)) {
+                        result.add(t);
+                    }
+                }
+            } else {
+                result.addAll(r);
+                result.addAll(l);
+            }
+            return new Term.Set(result);
+        }
+    }
+}
@@ -14,6 +14,8 @@ import static io.vavr.API.Left;
 import static io.vavr.API.Right;
 
 public class Expression {
+    private static final Map<Long, Term> NO_VARIABLES = Collections.emptyMap();
+
     private final ArrayList<Op> ops;
 
     public Expression(ArrayList<Op> ops) {
@@ -37,6 +39,29 @@ public class Expression {
         }
     }
 
+    /**
+     * Evaluates with the variables of a rule's frame
+     *
+     * @param frame variable values, indexed by slot
+     * @param slots for each op, the slot of its variable, or a negative value for the other ops
+     */
+    public Term evaluate(Term[] frame, int[] slots, TemporarySymbolTable symbols) throws Error.Execution {
+        Deque<Term> stack = new ArrayDeque<Term>(16); //Default value
+        for (int i = 0; i < ops.size(); i++) {
+            if (slots[i] >= 0) {
+                stack.push(frame[slots[i]]);
+            } else {
+                // variables missing from the frame fail like with an empty map
+                ops.get(i).evaluate(stack, NO_VARIABLES, symbols);
+            }
+        }
+        if(stack.size() == 1){
+            return stack.pop();
+        } else {
+            throw new Error.Execution(this, "execution");
+        }
+    }
+
     public Option<String> print(SymbolTable symbols) {
         Deque<String> stack = new ArrayDeque<>();
         for (Op op : ops){
@@ -416,7 +416,7 @@ public abstract class Op {
                             throw new Error.Execution("cannot find string in symbols for index "+((Term.Str) right).value());
                         }
 
-                        Pattern p = Pattern.compile(right_s.get());
+                        Pattern p = RegexCache.get().compile(right_s.get());
                         Matcher m = p.matcher(left_s.get());
                         stack.push(new Term.Bool(m.find()));
                     }
@@ -0,0 +1,97 @@
+package org.biscuitsec.biscuit.datalog.expressions;
+
+import com.google.re2j.Pattern;
+import org.biscuitsec.biscuit.token.LruCache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiled patterns used by the <code>matches</code> operation, keyed by their source string
+ * <p>
+ * The cache is bounded and evicts the patterns that were not used recently, lookups do not take a lock.
+ * It is shared by all the authorizers, and can be resized with {@link #configure(int)}. Compiled expressions
+ * only look up patterns coming from variables, they keep the patterns of their string literals.
+ */
+public final class RegexCache {
+    public final static int DEFAULT_MAX_SIZE = 256;
+
+    private static volatile RegexCache instance = new RegexCache(DEFAULT_MAX_SIZE);
+
+    private final LruCache<String, Pattern> patterns;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    public RegexCache(final int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("negative regex cache size: " + maxSize);
+        }
+        this.patterns = new LruCache<>(maxSize);
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    /**
+     * @return the cache used when evaluating expressions
+     */
+    public static RegexCache get() {
+        return instance;
+    }
+
+    /**
+     * Replaces the cache used when evaluating expressions by an empty one
+     *
+     * @param maxSize maximum number of patterns kept, 0 disables caching
+     */
+    public static void configure(final int maxSize) {
+        instance = new RegexCache(maxSize);
+    }
+
+    /**
+     * Returns the compiled pattern, compiling it if it is not in the cache
+     *
+     * @throws com.google.re2j.PatternSyntaxException if the pattern is invalid
+     */
+    public Pattern compile(final String regex) {
+        Pattern pattern = this.patterns.get(regex);
+        if (pattern != null) {
+            this.hits.incrementAndGet();
+            return pattern;
+        }
+
+        this.misses.incrementAndGet();
+        // another thread may compile the same pattern concurrently
+        pattern = Pattern.compile(regex);
+        this.patterns.put(regex, pattern);
+        return pattern;
+    }
+
+    public long hits() {
+        return this.hits.get();
+    }
+
+    public long misses() {
+        return this.misses.get();
+    }
+
+    public int size() {
+        return this.patterns.size();
+    }
+
+    public int maxSize() {
+        return this.patterns.maxSize();
+    }
+
+    public void clear() {
+        this.patterns.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "RegexCache{" +
+                "size=" + size() +
+                ", maxSize=" + maxSize() +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                '}';
+    }
+}
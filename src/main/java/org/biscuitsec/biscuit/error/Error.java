@@ -532,6 +532,25 @@ public class Error extends Exception {
         }
     }
 
+    public static class OutOfFuel extends Error {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            return o != null && getClass() == o.getClass();
+        }
+
+        @Override
+        public int hashCode() {
+            return getClass().hashCode();
+        }
+        @Override
+        public JsonElement toJson(){
+            return new JsonPrimitive("OutOfFuel");
+        }
+    }
+
     public static class Execution extends Error {
         public enum Kind {
             Execution,
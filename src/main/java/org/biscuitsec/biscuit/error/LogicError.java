@@ -46,6 +46,41 @@ public class LogicError {
 
     }
 
+    /**
+     * A block of the token could not be decoded, when the token's blocks were first read
+     */
+    public static class InvalidBlockFormat extends LogicError {
+        final public String e;
+
+        public InvalidBlockFormat(String e) {
+            this.e = e;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            InvalidBlockFormat other = (InvalidBlockFormat) o;
+            return e.equals(other.e);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(e);
+        }
+
+        @Override
+        public String toString() {
+            return "LogicError.InvalidBlockFormat{ error: "+ e + " }";
+        }
+
+        @Override
+        public JsonElement toJson() {
+            return new JsonPrimitive("InvalidBlockFormat");
+        }
+
+    }
+
     public static class InvalidAmbientFact extends LogicError {
         final public String e;
 
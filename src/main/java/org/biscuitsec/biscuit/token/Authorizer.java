@@ -16,8 +16,10 @@ import org.biscuitsec.biscuit.token.builder.Fact;
 import org.biscuitsec.biscuit.token.builder.Term;
 import org.biscuitsec.biscuit.token.builder.parser.Parser;
 
-import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 
 import static io.vavr.API.Left;
@@ -28,21 +30,33 @@ import static io.vavr.API.Right;
  */
 public class Authorizer {
     Biscuit token;
+    // blocks of the token, decoded when it is added
+    UnverifiedBiscuit.Contents tokenContents;
     List<org.biscuitsec.biscuit.token.builder.Check> checks;
     List<Policy> policies;
     List<Scope> scopes;
     HashMap<Long, List<Long>> publicKeyToBlockId;
     World world;
     SymbolTable symbols;
+    // datalog form of the first checks and policies, when created from a PreparedAuthorizer
+    List<org.biscuitsec.biscuit.datalog.Check> preparedChecks;
+    List<List<org.biscuitsec.biscuit.datalog.Rule>> preparedPolicies;
+    // when created from a PreparedAuthorizer, to reuse its goal directed rewriting
+    PreparedAuthorizer prepared;
+    // fuel consumed by the last authorization or query
+    long fuel = 0;
 
     private Authorizer(Biscuit token, World w) throws Error.FailedLogic {
         this.token = token;
+        this.tokenContents = contents(token);
         this.world = w;
-        this.symbols = new SymbolTable(this.token.symbols);
+        this.symbols = new SymbolTable(this.tokenContents.symbols);
         this.checks = new ArrayList<>();
         this.policies = new ArrayList<>();
         this.scopes = new ArrayList<>();
         this.publicKeyToBlockId = new HashMap<>();
+        this.preparedChecks = Collections.emptyList();
+        this.preparedPolicies = Collections.emptyList();
         update_on_token();
     }
 
@@ -59,17 +73,42 @@ public class Authorizer {
         this.policies = new ArrayList<>();
         this.scopes = new ArrayList<>();
         this.publicKeyToBlockId = new HashMap<>();
+        this.preparedChecks = Collections.emptyList();
+        this.preparedPolicies = Collections.emptyList();
     }
 
-    private Authorizer(Biscuit token, List<org.biscuitsec.biscuit.token.builder.Check> checks, List<Policy> policies,
-                       World world, SymbolTable symbols) {
+    private Authorizer(Biscuit token, UnverifiedBiscuit.Contents tokenContents, List<org.biscuitsec.biscuit.token.builder.Check> checks,
+                       List<Policy> policies, World world, SymbolTable symbols, List<org.biscuitsec.biscuit.datalog.Check> preparedChecks,
+                       List<List<org.biscuitsec.biscuit.datalog.Rule>> preparedPolicies, PreparedAuthorizer prepared) {
         this.token = token;
+        this.tokenContents = tokenContents;
         this.checks = checks;
         this.policies = policies;
         this.world = world;
         this.symbols = symbols;
         this.scopes = new ArrayList<>();
         this.publicKeyToBlockId = new HashMap<>();
+        this.preparedChecks = preparedChecks;
+        this.preparedPolicies = preparedPolicies;
+        this.prepared = prepared;
+    }
+
+    /**
+     * Creates an authorizer from prepared facts, rules, checks and policies
+     * <p>
+     * the prepared facts and rules are not copied, new ones are added on top of them, and the authorizer
+     * rules are not applied again to the prepared facts
+     */
+    Authorizer(PreparedAuthorizer prepared) {
+        this.world = prepared.world.extend();
+        this.symbols = new SymbolTable(prepared.symbols);
+        this.checks = new ArrayList<>(prepared.checks);
+        this.policies = new ArrayList<>(prepared.policies);
+        this.scopes = new ArrayList<>(prepared.scopes);
+        this.publicKeyToBlockId = new HashMap<>();
+        this.preparedChecks = prepared.convertedChecks;
+        this.preparedPolicies = prepared.convertedPolicies;
+        this.prepared = prepared;
     }
 
     /**
@@ -85,14 +124,101 @@ public class Authorizer {
     }
 
     public Authorizer clone() {
-        return new Authorizer(this.token, new ArrayList<>(this.checks), new ArrayList<>(this.policies),
-                new World(this.world), new SymbolTable(this.symbols));
+        return new Authorizer(this.token, this.tokenContents, new ArrayList<>(this.checks), new ArrayList<>(this.policies),
+                new World(this.world), new SymbolTable(this.symbols), this.preparedChecks, this.preparedPolicies,
+                this.prepared);
+    }
+
+    /**
+     * Prepares this authorizer's facts, rules, checks and policies to create the authorizer of each request
+     * <p>
+     * The authorizer rules are run on the authorizer facts, and the checks and policies are converted
+     * to datalog. Changes made to this authorizer afterwards do not affect the prepared authorizer
+     *
+     * @return PreparedAuthorizer
+     */
+    public PreparedAuthorizer prepare() throws Error {
+        return this.prepare(new RunLimits());
+    }
+
+    public PreparedAuthorizer prepare(RunLimits limits) throws Error {
+        if (this.token != null) {
+            throw new Error.FailedLogic(new LogicError.AuthorizerNotEmpty());
+        }
+
+        world.run(limits, symbols);
+
+        List<org.biscuitsec.biscuit.datalog.Check> convertedChecks = new ArrayList<>();
+        for (int i = 0; i < this.checks.size(); i++) {
+            convertedChecks.add(this.check(i));
+        }
+        List<List<org.biscuitsec.biscuit.datalog.Rule>> convertedPolicies = new ArrayList<>();
+        for (int i = 0; i < this.policies.size(); i++) {
+            List<org.biscuitsec.biscuit.datalog.Rule> queries = new ArrayList<>();
+            for (int j = 0; j < this.policies.get(i).queries.size(); j++) {
+                queries.add(this.policyQuery(i, j));
+            }
+            convertedPolicies.add(Collections.unmodifiableList(queries));
+        }
+
+        return new PreparedAuthorizer(new SymbolTable(this.symbols), new World(this.world),
+                new ArrayList<>(this.checks), convertedChecks, new ArrayList<>(this.policies), convertedPolicies,
+                new ArrayList<>(this.scopes));
+    }
+
+    private org.biscuitsec.biscuit.datalog.Check check(int i) {
+        if (i < this.preparedChecks.size()) {
+            return this.preparedChecks.get(i);
+        }
+        return this.checks.get(i).convert(symbols);
+    }
+
+    private org.biscuitsec.biscuit.datalog.Rule policyQuery(int i, int j) {
+        if (i < this.preparedPolicies.size()) {
+            return this.preparedPolicies.get(i).get(j);
+        }
+        return this.policies.get(i).queries.get(j).convert(symbols);
+    }
+
+    /**
+     * @param withPrepared false to leave out the checks and policies of the prepared authorizer
+     * @return queries of all the checks and policies
+     */
+    private List<org.biscuitsec.biscuit.datalog.Rule> queries(boolean withPrepared) {
+        List<org.biscuitsec.biscuit.datalog.Rule> queries = new ArrayList<>();
+        for (int i = withPrepared ? 0 : this.preparedChecks.size(); i < this.checks.size(); i++) {
+            queries.addAll(this.check(i).queries());
+        }
+        for (int i = withPrepared ? 0 : this.preparedPolicies.size(); i < this.policies.size(); i++) {
+            for (int j = 0; j < this.policies.get(i).queries.size(); j++) {
+                queries.add(this.policyQuery(i, j));
+            }
+        }
+
+        if (token != null) {
+            SymbolRemapper tokenRemapper = new SymbolRemapper(tokenContents.symbols, symbols);
+            for (org.biscuitsec.biscuit.datalog.Check check : tokenContents.authority.checks) {
+                queries.addAll(tokenRemapper.check(check).queries());
+            }
+
+            for (org.biscuitsec.biscuit.token.Block b : tokenContents.blocks) {
+                SymbolRemapper blockRemapper = tokenRemapper;
+                if (b.externalKey.isDefined()) {
+                    blockRemapper = new SymbolRemapper(new SymbolTable(b.symbols.symbols, b.publicKeys()), symbols);
+                }
+                for (org.biscuitsec.biscuit.datalog.Check check : b.checks) {
+                    queries.addAll(blockRemapper.check(check).queries());
+                }
+            }
+        }
+        return queries;
     }
 
     public void update_on_token() throws Error.FailedLogic {
         if (token != null) {
-            for(long i =0; i < token.blocks.size(); i++) {
-                Block block = token.blocks.get((int) i);
+            this.tokenContents = contents(token);
+            for(long i =0; i < tokenContents.blocks.size(); i++) {
+                Block block = tokenContents.blocks.get((int) i);
 
                 if (block.externalKey.isDefined()) {
                     PublicKey pk = block.externalKey.get();
@@ -108,23 +234,26 @@ public class Authorizer {
             }
 
             TrustedOrigins authorityTrustedOrigins = TrustedOrigins.fromScopes(
-                    token.authority.scopes,
+                    tokenContents.authority.scopes,
                     TrustedOrigins.defaultOrigins(),
                     0,
                     this.publicKeyToBlockId
             );
 
-            for (org.biscuitsec.biscuit.datalog.Fact fact : token.authority.facts) {
-                org.biscuitsec.biscuit.datalog.Fact converted_fact = org.biscuitsec.biscuit.token.builder.Fact.convert_from(fact, token.symbols).convert(this.symbols);
+            // token symbols are translated directly to the authorizer's, without going through the builder
+            SymbolRemapper tokenRemapper = new SymbolRemapper(tokenContents.symbols, this.symbols);
+
+            for (org.biscuitsec.biscuit.datalog.Fact fact : tokenContents.authority.facts) {
+                org.biscuitsec.biscuit.datalog.Fact converted_fact = tokenRemapper.fact(fact);
                 world.add_fact(new Origin(0), converted_fact);
             }
-            for (org.biscuitsec.biscuit.datalog.Rule rule : token.authority.rules) {
-                org.biscuitsec.biscuit.token.builder.Rule _rule = org.biscuitsec.biscuit.token.builder.Rule.convert_from(rule, token.symbols);
-                org.biscuitsec.biscuit.datalog.Rule converted_rule = _rule.convert(this.symbols);
+            for (org.biscuitsec.biscuit.datalog.Rule rule : tokenContents.authority.rules) {
+                org.biscuitsec.biscuit.datalog.Rule converted_rule = tokenRemapper.rule(rule);
 
-                Either<String, org.biscuitsec.biscuit.token.builder.Rule> res = _rule.validate_variables();
-                if(res.isLeft()){
-                    throw new Error.FailedLogic(new LogicError.InvalidBlockRule(0, token.symbols.print_rule(converted_rule)));
+                // the block's rule keeps the result, and is shared by the tokens carrying the same block. Remapping
+                // can only merge variables, so the converted rule is only checked when the block's rule is invalid
+                if(!rule.validate_variables() && !converted_rule.validate_variables()){
+                    throw new Error.FailedLogic(new LogicError.InvalidBlockRule(0, tokenContents.symbols.print_rule(converted_rule)));
                 }
                 TrustedOrigins ruleTrustedOrigins = TrustedOrigins.fromScopes(
                         converted_rule.scopes(),
@@ -135,8 +264,8 @@ public class Authorizer {
                 world.add_rule((long) 0, ruleTrustedOrigins, converted_rule);
             }
 
-            for(long i =0; i < token.blocks.size(); i++) {
-                Block block = token.blocks.get((int)i);
+            for(long i =0; i < tokenContents.blocks.size(); i++) {
+                Block block = tokenContents.blocks.get((int)i);
                 TrustedOrigins blockTrustedOrigins = TrustedOrigins.fromScopes(
                         block.scopes,
                         TrustedOrigins.defaultOrigins(),
@@ -144,23 +273,21 @@ public class Authorizer {
                         this.publicKeyToBlockId
                 );
 
-                SymbolTable blockSymbols = token.symbols;
+                SymbolRemapper blockRemapper = tokenRemapper;
 
                 if(block.externalKey.isDefined()) {
-                    blockSymbols = new SymbolTable(block.symbols.symbols, block.publicKeys());
+                    blockRemapper = new SymbolRemapper(new SymbolTable(block.symbols.symbols, block.publicKeys()), this.symbols);
                 }
 
                 for (org.biscuitsec.biscuit.datalog.Fact fact : block.facts) {
-                    org.biscuitsec.biscuit.datalog.Fact converted_fact = org.biscuitsec.biscuit.token.builder.Fact.convert_from(fact, blockSymbols).convert(this.symbols);
+                    org.biscuitsec.biscuit.datalog.Fact converted_fact = blockRemapper.fact(fact);
                     world.add_fact(new Origin(i + 1), converted_fact);
                 }
 
                 for (org.biscuitsec.biscuit.datalog.Rule rule : block.rules) {
-                    org.biscuitsec.biscuit.token.builder.Rule _rule = org.biscuitsec.biscuit.token.builder.Rule.convert_from(rule, blockSymbols);
-                    org.biscuitsec.biscuit.datalog.Rule converted_rule = _rule.convert(this.symbols);
+                    org.biscuitsec.biscuit.datalog.Rule converted_rule = blockRemapper.rule(rule);
 
-                    Either<String, org.biscuitsec.biscuit.token.builder.Rule> res = _rule.validate_variables();
-                    if (res.isLeft()) {
+                    if (!rule.validate_variables() && !converted_rule.validate_variables()) {
                         throw new Error.FailedLogic(new LogicError.InvalidBlockRule(0, this.symbols.print_rule(converted_rule)));
                     }
                     TrustedOrigins ruleTrustedOrigins = TrustedOrigins.fromScopes(
@@ -180,11 +307,29 @@ public class Authorizer {
             throw new Error.FailedLogic(new LogicError.AuthorizerNotEmpty());
         }
 
+        // decoded first, so the authorizer stays empty if the token's blocks are invalid
+        contents(token);
         this.token = token;
         update_on_token();
         return this;
     }
 
+    /**
+     * Decodes the token's blocks if they were not decoded yet, a malformed block is reported as
+     * {@link LogicError.InvalidBlockFormat}
+     *
+     * @see Biscuit#decode_blocks()
+     */
+    private static UnverifiedBiscuit.Contents contents(Biscuit token) throws Error.FailedLogic {
+        try {
+            return token.contents();
+        } catch (Error e) {
+            Error.FailedLogic failed = new Error.FailedLogic(new LogicError.InvalidBlockFormat(e.toString()));
+            failed.initCause(e);
+            throw failed;
+        }
+    }
+
     public Authorizer add_fact(org.biscuitsec.biscuit.token.builder.Fact fact) {
         world.add_fact(Origin.authorizer(), fact.convert(symbols));
         return this;
@@ -203,6 +348,28 @@ public class Authorizer {
         return this.add_fact(t._2);
     }
 
+    /**
+     * Removes an authorizer fact. After an authorization or a query, the facts derived from it are
+     * retracted by the next one, without running all the rules again
+     */
+    public Authorizer remove_fact(org.biscuitsec.biscuit.token.builder.Fact fact) {
+        world.remove_fact(Origin.authorizer(), fact.convert(symbols));
+        return this;
+    }
+
+    public Authorizer remove_fact(String s) throws Error.Parser {
+        Either<org.biscuitsec.biscuit.token.builder.parser.Error, Tuple2<String, org.biscuitsec.biscuit.token.builder.Fact>> res =
+                Parser.fact(s);
+
+        if (res.isLeft()) {
+            throw new Error.Parser(res.getLeft());
+        }
+
+        Tuple2<String, org.biscuitsec.biscuit.token.builder.Fact> t = res.get();
+
+        return this.remove_fact(t._2);
+    }
+
     public Authorizer add_rule(org.biscuitsec.biscuit.token.builder.Rule rule) {
        org.biscuitsec.biscuit.datalog.Rule r = rule.convert(symbols);
         TrustedOrigins ruleTrustedOrigins = TrustedOrigins.fromScopes(
@@ -350,7 +517,17 @@ public class Authorizer {
     }
 
     public Set<org.biscuitsec.biscuit.token.builder.Fact> query(org.biscuitsec.biscuit.token.builder.Rule query, RunLimits limits) throws Error {
-        world.run(limits, symbols);
+        Budget budget = new Budget(limits);
+        try {
+            return this.query(query, limits, budget);
+        } finally {
+            this.fuel = budget.consumed();
+        }
+    }
+
+    private Set<org.biscuitsec.biscuit.token.builder.Fact> query(org.biscuitsec.biscuit.token.builder.Rule query, RunLimits limits,
+                                                                 Budget budget) throws Error {
+        world.run(limits, budget, symbols);
 
         org.biscuitsec.biscuit.datalog.Rule rule = query.convert(symbols);
         TrustedOrigins ruleTrustedorigins = TrustedOrigins.fromScopes(
@@ -361,7 +538,7 @@ public class Authorizer {
         );
 
         FactSet facts = world.query_rule(rule, Long.MAX_VALUE,
-                ruleTrustedorigins, symbols);
+                ruleTrustedorigins, symbols, budget);
         Set<org.biscuitsec.biscuit.token.builder.Fact> s = new HashSet<>();
 
         for (Iterator<org.biscuitsec.biscuit.datalog.Fact> it = facts.stream().iterator(); it.hasNext(); ) {
@@ -389,17 +566,82 @@ public class Authorizer {
         return this.authorize(new RunLimits());
     }
 
+    /**
+     * @param limits the time limit applies to the whole authorization, as well as the fuel limit
+     * @see #fuel()
+     */
     public Long authorize(RunLimits limits) throws Error {
-        Instant timeLimit = Instant.now().plus(limits.maxTime);
+        Budget budget = new Budget(limits);
+        try {
+            return this.authorize(limits, budget);
+        } finally {
+            this.fuel = budget.consumed();
+        }
+    }
+
+    /**
+     * Runs the authorization on the executor
+     * <p>
+     * Completing the future before the authorization is done, for example by cancelling it, stops the
+     * authorization at its next check of the limits. The authorizer must not be used until the future is done.
+     *
+     * @param executor runs the authorization, for example an executor creating a virtual thread per task. It
+     *                 can also be the executor of the limits, that applies the rules concurrently
+     * @return the index of the matched allow policy, or the exception thrown by {@link #authorize(RunLimits)}
+     */
+    public CompletableFuture<Long> authorize_async(RunLimits limits, Executor executor) {
+        Budget budget = new Budget(limits);
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        result.whenComplete((policy, e) -> budget.cancel());
+
+        try {
+            executor.execute(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                // the fuel is set before completing, so it is visible once the future is done
+                Long policy;
+                try {
+                    policy = this.authorize(limits, budget);
+                } catch (Throwable e) {
+                    this.fuel = budget.consumed();
+                    result.completeExceptionally(e);
+                    return;
+                }
+                this.fuel = budget.consumed();
+                result.complete(policy);
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    // the rewriting of the prepared authorizer only needs to be extended with the rules and queries added since
+    private World goalDirectedWorld() {
+        if (this.prepared != null) {
+            MagicSets rewriting = this.prepared.rewriting().extend(this.world.rules(), this.queries(false));
+            if (rewriting != null) {
+                return this.world.for_queries(rewriting);
+            }
+        }
+        return this.world.for_queries(this.queries(true));
+    }
+
+    private Long authorize(RunLimits limits, Budget budget) throws Error {
         List<FailedCheck> errors = new LinkedList<>();
         Option<Either<Integer, Integer>> policy_result = Option.none();
 
         TrustedOrigins authorizerTrustedOrigins = this.authorizerTrustedOrigins();
 
-        world.run(limits, symbols);
+        World world = this.world;
+        if (limits.goalDirected) {
+            world = this.goalDirectedWorld();
+        }
+        world.run(limits, budget, symbols);
 
         for (int i = 0; i < this.checks.size(); i++) {
-            org.biscuitsec.biscuit.datalog.Check c = this.checks.get(i).convert(symbols);
+            org.biscuitsec.biscuit.datalog.Check c = this.check(i);
             boolean successful = false;
 
             for (int j = 0; j < c.queries().size(); j++) {
@@ -413,16 +655,14 @@ public class Authorizer {
                 );
                 switch (c.kind()) {
                     case One:
-                        res = world.query_match(query, Long.MAX_VALUE, ruleTrustedOrigins, symbols);
+                        res = world.query_match(query, Long.MAX_VALUE, ruleTrustedOrigins, symbols, budget);
                         break;
                     case All:
-                        res = world.query_match_all(query, ruleTrustedOrigins, symbols);
+                        res = world.query_match_all(query, ruleTrustedOrigins, symbols, budget);
                         break;
                 }
 
-                if (Instant.now().compareTo(timeLimit) >= 0) {
-                    throw new Error.Timeout();
-                }
+                budget.check();
 
                 if (res) {
                     successful = true;
@@ -437,17 +677,18 @@ public class Authorizer {
 
         if (token != null) {
             TrustedOrigins authorityTrustedOrigins = TrustedOrigins.fromScopes(
-                    token.authority.scopes,
+                    tokenContents.authority.scopes,
                     TrustedOrigins.defaultOrigins(),
                     0,
                     this.publicKeyToBlockId
                 );
 
-            for (int j = 0; j < token.authority.checks.size(); j++) {
+            SymbolRemapper tokenRemapper = new SymbolRemapper(tokenContents.symbols, symbols);
+
+            for (int j = 0; j < tokenContents.authority.checks.size(); j++) {
                 boolean successful = false;
 
-                org.biscuitsec.biscuit.token.builder.Check c = org.biscuitsec.biscuit.token.builder.Check.convert_from(token.authority.checks.get(j), token.symbols);
-                org.biscuitsec.biscuit.datalog.Check check = c.convert(symbols);
+                org.biscuitsec.biscuit.datalog.Check check = tokenRemapper.check(tokenContents.authority.checks.get(j));
 
                 for (int k = 0; k < check.queries().size(); k++) {
                     boolean res = false;
@@ -460,16 +701,14 @@ public class Authorizer {
                     );
                     switch (check.kind()) {
                         case One:
-                            res = world.query_match(query, (long)0, ruleTrustedOrigins, symbols);
+                            res = world.query_match(query, (long)0, ruleTrustedOrigins, symbols, budget);
                             break;
                         case All:
-                            res = world.query_match_all(query, ruleTrustedOrigins, symbols);
+                            res = world.query_match_all(query, ruleTrustedOrigins, symbols, budget);
                             break;
                     }
 
-                    if (Instant.now().compareTo(timeLimit) >= 0) {
-                        throw new Error.Timeout();
-                    }
+                    budget.check();
 
                     if (res) {
                         successful = true;
@@ -488,18 +727,16 @@ public class Authorizer {
             Policy policy = this.policies.get(i);
 
             for (int j = 0; j < policy.queries.size(); j++) {
-                org.biscuitsec.biscuit.datalog.Rule query = policy.queries.get(j).convert(symbols);
+                org.biscuitsec.biscuit.datalog.Rule query = this.policyQuery(i, j);
                 TrustedOrigins policyTrustedOrigins = TrustedOrigins.fromScopes(
                         query.scopes(),
                         authorizerTrustedOrigins,
                         Long.MAX_VALUE,
                         this.publicKeyToBlockId
                 );
-                boolean res = world.query_match(query, Long.MAX_VALUE, policyTrustedOrigins, symbols);
+                boolean res = world.query_match(query, Long.MAX_VALUE, policyTrustedOrigins, symbols, budget);
 
-                if (Instant.now().compareTo(timeLimit) >= 0) {
-                    throw new Error.Timeout();
-                }
+                budget.check();
 
                 if (res) {
                     if (this.policies.get(i).kind == Policy.Kind.Allow) {
@@ -513,24 +750,25 @@ public class Authorizer {
         }
 
         if (token != null) {
-            for (int i = 0; i < token.blocks.size(); i++) {
-                org.biscuitsec.biscuit.token.Block b = token.blocks.get(i);
+            SymbolRemapper tokenRemapper = new SymbolRemapper(tokenContents.symbols, symbols);
+
+            for (int i = 0; i < tokenContents.blocks.size(); i++) {
+                org.biscuitsec.biscuit.token.Block b = tokenContents.blocks.get(i);
                 TrustedOrigins blockTrustedOrigins = TrustedOrigins.fromScopes(
                         b.scopes,
                         TrustedOrigins.defaultOrigins(),
                         i+1,
                         this.publicKeyToBlockId
                 );
-                SymbolTable blockSymbols = token.symbols;
+                SymbolRemapper blockRemapper = tokenRemapper;
                 if(b.externalKey.isDefined()) {
-                    blockSymbols = new SymbolTable(b.symbols.symbols, b.publicKeys());
+                    blockRemapper = new SymbolRemapper(new SymbolTable(b.symbols.symbols, b.publicKeys()), symbols);
                 }
 
                 for (int j = 0; j < b.checks.size(); j++) {
                     boolean successful = false;
 
-                    org.biscuitsec.biscuit.token.builder.Check c = org.biscuitsec.biscuit.token.builder.Check.convert_from(b.checks.get(j), blockSymbols);
-                    org.biscuitsec.biscuit.datalog.Check check = c.convert(symbols);
+                    org.biscuitsec.biscuit.datalog.Check check = blockRemapper.check(b.checks.get(j));
 
                     for (int k = 0; k < check.queries().size(); k++) {
                         boolean res = false;
@@ -543,16 +781,14 @@ public class Authorizer {
                         );
                         switch (check.kind()) {
                             case One:
-                                res = world.query_match(query, (long)i+1, ruleTrustedOrigins, symbols);
+                                res = world.query_match(query, (long)i+1, ruleTrustedOrigins, symbols, budget);
                                 break;
                             case All:
-                                res = world.query_match_all(query, ruleTrustedOrigins, symbols);
+                                res = world.query_match_all(query, ruleTrustedOrigins, symbols, budget);
                                 break;
                         }
 
-                        if (Instant.now().compareTo(timeLimit) >= 0) {
-                            throw new Error.Timeout();
-                        }
+                        budget.check();
 
                         if (res) {
                             successful = true;
@@ -585,7 +821,7 @@ public class Authorizer {
 
     public String print_world() {
         StringBuilder facts = new StringBuilder();
-        for(Map.Entry<Origin, HashSet<org.biscuitsec.biscuit.datalog.Fact>> entry: this.world.facts().facts().entrySet()) {
+        for(Map.Entry<Origin, Set<org.biscuitsec.biscuit.datalog.Fact>> entry: this.world.facts().byOrigin().entrySet()) {
             facts.append("\n\t\t"+entry.getKey()+":");
             for(org.biscuitsec.biscuit.datalog.Fact f: entry.getValue()) {
                 facts.append("\n\t\t\t");
@@ -601,14 +837,14 @@ public class Authorizer {
         }
 
         if (this.token != null) {
-            for (int j = 0; j < this.token.authority.checks.size(); j++) {
-                checks.add("Block[0][" + j + "]: " + token.symbols.print_check(this.token.authority.checks.get(j)));
+            for (int j = 0; j < tokenContents.authority.checks.size(); j++) {
+                checks.add("Block[0][" + j + "]: " + tokenContents.symbols.print_check(tokenContents.authority.checks.get(j)));
             }
 
-            for (int i = 0; i < this.token.blocks.size(); i++) {
-                Block b = this.token.blocks.get(i);
+            for (int i = 0; i < tokenContents.blocks.size(); i++) {
+                Block b = tokenContents.blocks.get(i);
 
-                SymbolTable blockSymbols = token.symbols;
+                SymbolTable blockSymbols = tokenContents.symbols;
                 if(b.externalKey.isDefined()) {
                     blockSymbols = new SymbolTable(b.symbols.symbols, b.publicKeys());
                 }
@@ -637,6 +873,16 @@ public class Authorizer {
         return this.world.rules();
     }
 
+    /**
+     * Fuel consumed by the last call to {@link #authorize(RunLimits)} or {@link #query(org.biscuitsec.biscuit.token.builder.Rule, RunLimits)},
+     * including when it failed
+     * <p>
+     * For a successful call, it only depends on the facts, rules, checks and policies, so it can be used to choose a fuel limit.
+     */
+    public long fuel() {
+        return this.fuel;
+    }
+
     public List<Tuple2<Long, List<Check>>> checks() {
         List<Tuple2<Long, List<Check>>> allChecks = new ArrayList<>();
         if(!this.checks.isEmpty()) {
@@ -644,15 +890,15 @@ public class Authorizer {
         }
 
         List<Check> authorityChecks = new ArrayList<>();
-        for(org.biscuitsec.biscuit.datalog.Check check: this.token.authority.checks) {
-            authorityChecks.add(Check.convert_from(check, this.token.symbols));
+        for(org.biscuitsec.biscuit.datalog.Check check: tokenContents.authority.checks) {
+            authorityChecks.add(Check.convert_from(check, tokenContents.symbols));
         }
         if(!authorityChecks.isEmpty()) {
             allChecks.add(new Tuple2<>((long) 0, authorityChecks));
         }
 
         long count = 1;
-        for(Block block: this.token.blocks) {
+        for(Block block: tokenContents.blocks) {
             List<Check> blockChecks = new ArrayList<>();
 
             if(block.externalKey.isDefined()) {
@@ -662,7 +908,7 @@ public class Authorizer {
                 }
             } else {
                 for(org.biscuitsec.biscuit.datalog.Check check: block.checks) {
-                    blockChecks.add(Check.convert_from(check, token.symbols));
+                    blockChecks.add(Check.convert_from(check, tokenContents.symbols));
                 }
             }
             if(!blockChecks.isEmpty()) {
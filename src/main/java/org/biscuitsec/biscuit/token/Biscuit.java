@@ -7,12 +7,15 @@ import org.biscuitsec.biscuit.crypto.PublicKey;
 import org.biscuitsec.biscuit.datalog.SymbolTable;
 import org.biscuitsec.biscuit.error.Error;
 import org.biscuitsec.biscuit.token.format.SerializedBiscuit;
+import org.biscuitsec.biscuit.token.format.SignatureChainCache;
 import io.vavr.Tuple2;
 import io.vavr.control.Either;
 import io.vavr.control.Option;
 
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.Executor;
 
 /**
  * Biscuit auth token
@@ -107,6 +110,11 @@ public class Biscuit extends UnverifiedBiscuit {
         }
     }
 
+    Biscuit(SerializedBiscuit serializedBiscuit, SymbolTable symbols, List<byte[]> revocation_ids,
+            Option<Integer> root_key_id) {
+        super(serializedBiscuit, symbols, revocation_ids, root_key_id);
+    }
+
     Biscuit(Block authority, List<Block> blocks, SymbolTable symbols, SerializedBiscuit serializedBiscuit,
             List<byte[]> revocation_ids) {
         super(authority, blocks, symbols, serializedBiscuit,  revocation_ids);
@@ -169,6 +177,36 @@ public class Biscuit extends UnverifiedBiscuit {
         return Biscuit.from_bytes(Base64.getUrlDecoder().decode(data), delegate);
     }
 
+    /**
+     * Deserializes a Biscuit token from a base64 url (RFC4648_URLSAFE) string, in the remaining bytes of a buffer
+     * <p>
+     * The buffer's position is not modified.
+     * <p>
+     * This method uses the default symbol table
+     *
+     * @param data
+     * @return Biscuit
+     * @see #from_bytes(ByteBuffer, PublicKey)
+     */
+    static public Biscuit from_b64url(ByteBuffer data, PublicKey root) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
+        return Biscuit.from_bytes(Base64.getUrlDecoder().decode(data.duplicate()), root);
+    }
+
+    /**
+     * Deserializes a Biscuit token from a base64 url (RFC4648_URLSAFE) string, in the remaining bytes of a buffer
+     * <p>
+     * The buffer's position is not modified.
+     * <p>
+     * This method uses the default symbol table
+     *
+     * @param data
+     * @return Biscuit
+     * @see #from_bytes(ByteBuffer, KeyDelegate)
+     */
+    static public Biscuit from_b64url(ByteBuffer data, KeyDelegate delegate) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
+        return Biscuit.from_bytes(Base64.getUrlDecoder().decode(data.duplicate()), delegate);
+    }
+
     /**
      * Deserializes a Biscuit token from a byte array
      * <p>
@@ -203,6 +241,126 @@ public class Biscuit extends UnverifiedBiscuit {
         return from_bytes_with_symbols(data, delegate, default_symbol_table());
     }
 
+    /**
+     * Deserializes and verifies a Biscuit token from a byte array, without decoding its blocks
+     * <p>
+     * The blocks are decoded on first access to their contents, so reading the revocation identifiers or the
+     * root key id does not decode the facts, rules and checks. A token with a malformed block is not rejected
+     * here, but by {@link #decode_blocks()} and {@link #authorizer()}, and {@link #checks()} and {@link #context()}
+     * then throw an {@link IllegalStateException}.
+     * <p>
+     * This method uses the default symbol table
+     *
+     * @param data
+     * @return
+     */
+    static public Biscuit from_bytes_lazy(byte[] data, PublicKey root) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
+        SerializedBiscuit ser = SerializedBiscuit.from_bytes(data, root);
+        return Biscuit.from_serialized_biscuit_lazy(ser, default_symbol_table());
+    }
+
+    /**
+     * Deserializes and verifies a Biscuit token from a byte array, without decoding its blocks
+     *
+     * @param data
+     * @return
+     * @see #from_bytes_lazy(byte[], PublicKey)
+     */
+    static public Biscuit from_bytes_lazy(byte[] data, KeyDelegate delegate) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
+        SerializedBiscuit ser = SerializedBiscuit.from_bytes(data, delegate);
+        return Biscuit.from_serialized_biscuit_lazy(ser, default_symbol_table());
+    }
+
+    /**
+     * Deserializes a Biscuit token from the remaining bytes of a buffer
+     * <p>
+     * Direct buffers are parsed in place, without copying the token to an array first. The buffer's
+     * position is not modified, and the token does not keep a reference to the buffer, so a pooled
+     * buffer can be released once this method returns.
+     * <p>
+     * This method uses the default symbol table
+     *
+     * @param data
+     * @return
+     */
+    static public Biscuit from_bytes(ByteBuffer data, PublicKey root) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
+        SerializedBiscuit ser = SerializedBiscuit.from_bytes(data, root);
+        return Biscuit.from_serialized_biscuit(ser, default_symbol_table());
+    }
+
+    /**
+     * Deserializes a Biscuit token from the remaining bytes of a buffer
+     * <p>
+     * This method uses the default symbol table
+     *
+     * @param data
+     * @return
+     * @see #from_bytes(ByteBuffer, PublicKey)
+     */
+    static public Biscuit from_bytes(ByteBuffer data, KeyDelegate delegate) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
+        SerializedBiscuit ser = SerializedBiscuit.from_bytes(data, delegate);
+        return Biscuit.from_serialized_biscuit(ser, default_symbol_table());
+    }
+
+    /**
+     * Deserializes a Biscuit token from a byte array, only verifying the signatures of the blocks
+     * after the longest prefix of its chain that the cache already verified
+     * <p>
+     * This method uses the default symbol table
+     *
+     * @see SignatureChainCache
+     */
+    static public Biscuit from_bytes(byte[] data, PublicKey root, SignatureChainCache cache) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
+        SerializedBiscuit ser = SerializedBiscuit.from_bytes(data, root, cache);
+        return Biscuit.from_serialized_biscuit(ser, default_symbol_table());
+    }
+
+    /**
+     * Deserializes multiple Biscuit tokens with the same root key
+     * <p>
+     * A token that fails to deserialize or verify does not affect the others.
+     * <p>
+     * This method uses the default symbol table
+     *
+     * @param data
+     * @return the token or the error, for each byte array in the same order
+     */
+    static public List<Either<Error, Biscuit>> from_bytes(List<byte[]> data, PublicKey root) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+        return from_serialized_biscuits(SerializedBiscuit.from_bytes(data, root));
+    }
+
+    /**
+     * Deserializes multiple Biscuit tokens with the same root key, verifying their signatures
+     * concurrently on the executor
+     * <p>
+     * A token that fails to deserialize or verify does not affect the others.
+     * <p>
+     * This method uses the default symbol table
+     *
+     * @param data
+     * @return the token or the error, for each byte array in the same order
+     * @see SerializedBiscuit#from_bytes(List, PublicKey, Executor)
+     */
+    static public List<Either<Error, Biscuit>> from_bytes(List<byte[]> data, PublicKey root, Executor executor) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+        return from_serialized_biscuits(SerializedBiscuit.from_bytes(data, root, executor));
+    }
+
+    private static List<Either<Error, Biscuit>> from_serialized_biscuits(List<Either<Error, SerializedBiscuit>> serialized) {
+        List<Either<Error, Biscuit>> results = new ArrayList<>();
+        for (Either<Error, SerializedBiscuit> ser : serialized) {
+            if (ser.isLeft()) {
+                results.add(Either.left(ser.getLeft()));
+                continue;
+            }
+            try {
+                results.add(Either.right(Biscuit.from_serialized_biscuit(ser.get(), default_symbol_table())));
+            } catch (Error e) {
+                results.add(Either.left(e));
+            }
+        }
+        return results;
+    }
+
     /**
      * Deserializes a Biscuit token from a byte array
      * <p>
@@ -242,18 +400,21 @@ public class Biscuit extends UnverifiedBiscuit {
     }
 
     /**
-     * Fills a Biscuit structure from a deserialized token
+     * Fills a Biscuit structure from a deserialized token, and decodes its blocks
      *
      * @return
      */
     static Biscuit from_serialized_biscuit(SerializedBiscuit ser, SymbolTable symbols) throws Error {
-        Tuple2<Block, ArrayList<Block>> t = ser.extractBlocks(symbols);
-        Block authority = t._1;
-        ArrayList<Block> blocks = t._2;
+        return from_serialized_biscuit_lazy(ser, symbols).decode_blocks();
+    }
 
+    /**
+     * Fills a Biscuit structure from a deserialized token, its blocks are decoded on first access
+     */
+    static Biscuit from_serialized_biscuit_lazy(SerializedBiscuit ser, SymbolTable symbols) throws Error {
         List<byte[]> revocation_ids = ser.revocation_identifiers();
 
-        return new Biscuit(authority, blocks, symbols, ser, revocation_ids);
+        return new Biscuit(ser, symbols, revocation_ids, Option.none());
     }
 
     /**
@@ -267,6 +428,20 @@ public class Biscuit extends UnverifiedBiscuit {
         return Authorizer.make(this);
     }
 
+    /**
+     * Decodes the blocks through {@link BlockCache#shared()}, since the signatures were verified
+     */
+    @Override
+    Tuple2<Block, ArrayList<Block>> extractBlocks(SymbolTable symbols) throws Error {
+        return this.serializedBiscuit.extractBlocks(symbols, BlockCache.shared());
+    }
+
+    @Override
+    public Biscuit decode_blocks() throws Error {
+        this.contents();
+        return this;
+    }
+
     /**
      * Serializes a token to a byte array
      *
@@ -305,12 +480,12 @@ public class Biscuit extends UnverifiedBiscuit {
     public Biscuit attenuate(org.biscuitsec.biscuit.token.builder.Block block) throws Error {
         SecureRandom rng = new SecureRandom();
         KeyPair keypair = KeyPair.generate(Schema.PublicKey.Algorithm.Ed25519, rng);
-        SymbolTable builderSymbols = new SymbolTable(this.symbols);
+        SymbolTable builderSymbols = new SymbolTable(this.symbols());
         return attenuate(rng, keypair, block.build(builderSymbols));
     }
 
     public Biscuit attenuate(final SecureRandom rng, final KeyPair keypair, org.biscuitsec.biscuit.token.builder.Block block) throws Error {
-        SymbolTable builderSymbols = new SymbolTable(this.symbols);
+        SymbolTable builderSymbols = new SymbolTable(this.symbols());
         return attenuate(rng, keypair, block.build(builderSymbols));
     }
 
@@ -325,7 +500,7 @@ public class Biscuit extends UnverifiedBiscuit {
     public Biscuit attenuate(final SecureRandom rng, final KeyPair keypair, Block block) throws Error {
         Biscuit copiedBiscuit = this.copy();
 
-        if (!Collections.disjoint(copiedBiscuit.symbols.symbols, block.symbols.symbols)) {
+        if (!Collections.disjoint(copiedBiscuit.symbols().symbols, block.symbols.symbols)) {
             throw new Error.SymbolTableOverlap();
         }
 
@@ -335,7 +510,7 @@ public class Biscuit extends UnverifiedBiscuit {
         }
         SerializedBiscuit container = containerRes.get();
 
-        SymbolTable symbols = new SymbolTable(copiedBiscuit.symbols);
+        SymbolTable symbols = new SymbolTable(copiedBiscuit.symbols());
         for (String s : block.symbols.symbols) {
             symbols.add(s);
         }
@@ -345,14 +520,14 @@ public class Biscuit extends UnverifiedBiscuit {
         }
 
         ArrayList<Block> blocks = new ArrayList<>();
-        for (Block b : copiedBiscuit.blocks) {
+        for (Block b : copiedBiscuit.blocks()) {
             blocks.add(b);
         }
         blocks.add(block);
 
         List<byte[]> revocation_ids = container.revocation_identifiers();
 
-        return new Biscuit(copiedBiscuit.authority, blocks, symbols, container, revocation_ids);
+        return new Biscuit(copiedBiscuit.authority(), blocks, symbols, container, revocation_ids);
     }
 
     /**
@@ -363,27 +538,34 @@ public class Biscuit extends UnverifiedBiscuit {
        UnverifiedBiscuit b = super.appendThirdPartyBlock(externalKey, blockResponse);
 
        // no need to verify again, we are already working from a verified token
-        return Biscuit.from_serialized_biscuit(b.serializedBiscuit, b.symbols);
+        return Biscuit.from_serialized_biscuit(b.serializedBiscuit, b.symbols());
     }
 
     /**
      * Prints a token's content
      */
     public String print() {
+        Contents contents;
+        try {
+            contents = this.contents();
+        } catch (Error e) {
+            return "Biscuit { " + e + " }";
+        }
+
         StringBuilder s = new StringBuilder();
         s.append("Biscuit {\n\tsymbols: ");
-        s.append(this.symbols.getAllSymbols());
+        s.append(contents.symbols.getAllSymbols());
         s.append("\n\tpublic keys: ");
-        s.append(this.symbols.publicKeys());
+        s.append(contents.symbols.publicKeys());
         s.append("\n\tauthority: ");
-        s.append(this.authority.print(this.symbols));
+        s.append(contents.authority.print(contents.symbols));
         s.append("\n\tblocks: [\n");
-        for (Block b : this.blocks) {
+        for (Block b : contents.blocks) {
             s.append("\t\t");
             if(b.externalKey.isDefined()) {
                 s.append(b.print(b.symbols));
             } else {
-                s.append(b.print(this.symbols));
+                s.append(b.print(contents.symbols));
             }
             s.append("\n");
         }
@@ -393,6 +575,6 @@ public class Biscuit extends UnverifiedBiscuit {
     }
 
     public Biscuit copy() throws Error {
-        return Biscuit.from_serialized_biscuit(this.serializedBiscuit, this.symbols);
+        return Biscuit.from_serialized_biscuit(this.serializedBiscuit, this.base_symbols());
     }
 }
@@ -6,8 +6,8 @@ import org.biscuitsec.biscuit.datalog.expressions.Expression;
 import org.biscuitsec.biscuit.datalog.expressions.Op;
 import org.biscuitsec.biscuit.error.Error;
 import org.biscuitsec.biscuit.datalog.*;
+import org.biscuitsec.biscuit.token.format.BiscuitDecoder;
 import org.biscuitsec.biscuit.token.format.SerializedBiscuit;
-import com.google.protobuf.InvalidProtocolBufferException;
 import io.vavr.control.Either;
 import io.vavr.control.Option;
 
@@ -81,6 +81,17 @@ public class Block {
         this.externalKey = Option.some(externalKey);
     }
 
+    /**
+     * @return a block with its own lists and symbol table, sharing the facts, rules, checks and scopes
+     */
+    Block copy() {
+        Block copy = new Block(new SymbolTable(this.symbols), this.context, new ArrayList<>(this.facts),
+                new ArrayList<>(this.rules), new ArrayList<>(this.checks), new ArrayList<>(this.scopes),
+                new ArrayList<>(this.publicKeys), this.externalKey, (int) this.version);
+        copy.version = this.version;
+        return copy;
+    }
+
     /**
      * pretty printing for a block
      *
@@ -353,14 +364,10 @@ public class Block {
      *
      * @param slice
      * @return
+     * @see BiscuitDecoder#decode_block(byte[], Option)
      */
     static public Either<Error.FormatError, Block> from_bytes(byte[] slice, Option<PublicKey> externalKey) {
-        try {
-            Schema.Block data = Schema.Block.parseFrom(slice);
-            return Block.deserialize(data, externalKey);
-        } catch (InvalidProtocolBufferException e) {
-            return Left(new Error.FormatError.DeserializationError(e.toString()));
-        }
+        return BiscuitDecoder.decode_block(slice, externalKey);
     }
 
     public Either<Error.FormatError, byte[]> to_bytes() {
@@ -0,0 +1,126 @@
+package org.biscuitsec.biscuit.token;
+
+import org.biscuitsec.biscuit.crypto.PublicKey;
+import org.biscuitsec.biscuit.error.Error;
+import org.biscuitsec.biscuit.token.format.SignedBlock;
+import io.vavr.control.Either;
+import io.vavr.control.Option;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of deserialized blocks, for tokens carrying the same blocks, like the authority block of tokens
+ * created from the same template
+ * <p>
+ * Blocks are keyed by their signature, and only returned for the same block bytes and external key. Only
+ * tokens whose signatures were verified fill the cache, so a forged token cannot replace the content of a
+ * cached block. The cached blocks are never handed out: each call returns a copy with its own lists and
+ * symbol table, that shares the block's facts, rules, checks and scopes, which are not modified once decoded.
+ * The validation of their rules is computed once, see {@link org.biscuitsec.biscuit.datalog.Rule#validate_variables()}.
+ * <p>
+ * The cache is bounded and evicts the blocks that were not used recently. Verified tokens are decoded through
+ * {@link #shared()}, which is disabled until {@link #configure(int)} is called.
+ */
+public class BlockCache {
+    public final static int DEFAULT_MAX_SIZE = 1024;
+
+    private static volatile BlockCache shared = new BlockCache(0);
+
+    private final LruCache<String, Entry> blocks;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    /**
+     * @param maxSize maximum number of blocks kept, 0 disables the cache
+     */
+    public BlockCache(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("negative block cache size: " + maxSize);
+        }
+        this.blocks = new LruCache<>(maxSize);
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    /**
+     * @return the process wide cache used to decode the blocks of verified tokens
+     */
+    public static BlockCache shared() {
+        return shared;
+    }
+
+    /**
+     * Replaces the cache used to decode the blocks of verified tokens by an empty one
+     *
+     * @param maxSize maximum number of blocks kept, 0 disables caching
+     */
+    public static void configure(int maxSize) {
+        shared = new BlockCache(maxSize);
+    }
+
+    /**
+     * Deserializes a signed block, or copies it from the cache
+     * <p>
+     * The block is added to the cache, so the signature of the block must have been verified
+     *
+     * @see Block#from_bytes(byte[], Option)
+     */
+    public Either<Error.FormatError, Block> from_bytes(SignedBlock signedBlock, Option<PublicKey> externalKey) {
+        if (this.blocks.maxSize() == 0) {
+            return Block.from_bytes(signedBlock.block, externalKey);
+        }
+
+        String key = org.biscuitsec.biscuit.token.builder.Utils.byteArrayToHexString(signedBlock.signature);
+        Entry entry = this.blocks.get(key);
+        if (entry != null && Arrays.equals(entry.bytes, signedBlock.block) && Objects.equals(entry.externalKey, externalKey)) {
+            this.hits.incrementAndGet();
+            return Either.right(entry.block.copy());
+        }
+
+        this.misses.incrementAndGet();
+        Either<Error.FormatError, Block> res = Block.from_bytes(signedBlock.block, externalKey);
+        if (res.isLeft()) {
+            return res;
+        }
+        this.blocks.put(key, new Entry(signedBlock.block.clone(), externalKey, res.get()));
+        return Either.right(res.get().copy());
+    }
+
+    public void clear() {
+        this.blocks.clear();
+    }
+
+    public int size() {
+        return this.blocks.size();
+    }
+
+    public long hits() {
+        return this.hits.get();
+    }
+
+    public long misses() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return number of blocks dropped because the cache was full
+     */
+    public long evictions() {
+        return this.blocks.evictions();
+    }
+
+    private static final class Entry {
+        final byte[] bytes;
+        final Option<PublicKey> externalKey;
+        final Block block;
+
+        Entry(byte[] bytes, Option<PublicKey> externalKey, Block block) {
+            this.bytes = bytes;
+            this.externalKey = externalKey;
+            this.block = block;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.biscuitsec.biscuit.token;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Bounded map evicting the entries that were not used recently, shared by the caches of this library:
+ * {@link BlockCache}, {@link VerifiedBiscuitCache}, {@link org.biscuitsec.biscuit.token.format.SignatureChainCache}
+ * and {@link org.biscuitsec.biscuit.datalog.expressions.RegexCache}
+ * <p>
+ * Lookups do not take a lock, they only mark the entry as used. Insertions and removals are serialized, and
+ * when the map is full they evict the oldest entry that was not used since it was last considered for
+ * eviction (the "second chance" approximation of least recently used).
+ * <p>
+ * It is public because the caches are in different packages, it is not meant to be used by applications.
+ */
+public final class LruCache<K, V> {
+    private final int maxSize;
+    private final ConcurrentHashMap<K, Node<K, V>> entries;
+    // insertion order of the entries, guarded by itself. It can hold nodes that were replaced or removed
+    private final ArrayDeque<Node<K, V>> queue;
+    private final AtomicLong evictions;
+
+    /**
+     * @param maxSize maximum number of entries kept, 0 disables the cache
+     */
+    public LruCache(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("negative cache size: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.entries = new ConcurrentHashMap<>();
+        this.queue = new ArrayDeque<>();
+        this.evictions = new AtomicLong();
+    }
+
+    /**
+     * @return the value, or null if it is not in the cache
+     */
+    public V get(K key) {
+        Node<K, V> node = this.entries.get(key);
+        if (node == null) {
+            return null;
+        }
+        if (!node.used) {
+            node.used = true;
+        }
+        return node.value;
+    }
+
+    public void put(K key, V value) {
+        if (this.maxSize == 0) {
+            return;
+        }
+        Node<K, V> node = new Node<>(key, value);
+        synchronized (this.queue) {
+            this.entries.put(key, node);
+            this.queue.add(node);
+            while (this.entries.size() > this.maxSize) {
+                Node<K, V> eldest = this.queue.poll();
+                if (this.entries.get(eldest.key) != eldest) {
+                    continue;
+                }
+                if (eldest.used) {
+                    eldest.used = false;
+                    this.queue.add(eldest);
+                } else {
+                    this.entries.remove(eldest.key, eldest);
+                    this.evictions.incrementAndGet();
+                }
+            }
+            // drops the replaced and removed nodes, when they make up half of the queue
+            if (this.queue.size() > 2 * this.maxSize) {
+                this.queue.removeIf(n -> this.entries.get(n.key) != n);
+            }
+        }
+    }
+
+    /**
+     * Removes the entry if it still has this value
+     *
+     * @return true if it was removed
+     */
+    public boolean remove(K key, V value) {
+        synchronized (this.queue) {
+            Node<K, V> node = this.entries.get(key);
+            return node != null && node.value == value && this.entries.remove(key, node);
+        }
+    }
+
+    /**
+     * @return the number of entries removed
+     */
+    public int removeIf(Predicate<V> filter) {
+        int removed = 0;
+        synchronized (this.queue) {
+            for (Iterator<Node<K, V>> it = this.entries.values().iterator(); it.hasNext(); ) {
+                if (filter.test(it.next().value)) {
+                    it.remove();
+                    removed += 1;
+                }
+            }
+        }
+        return removed;
+    }
+
+    public void clear() {
+        synchronized (this.queue) {
+            this.entries.clear();
+            this.queue.clear();
+        }
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public int maxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * @return number of entries dropped because the cache was full
+     */
+    public long evictions() {
+        return this.evictions.get();
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        volatile boolean used;
+
+        Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.biscuitsec.biscuit.token;
+
+import org.biscuitsec.biscuit.datalog.MagicSets;
+import org.biscuitsec.biscuit.datalog.Scope;
+import org.biscuitsec.biscuit.datalog.SymbolTable;
+import org.biscuitsec.biscuit.datalog.World;
+import org.biscuitsec.biscuit.error.Error;
+import org.biscuitsec.biscuit.token.builder.Check;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Authorizer facts, rules, checks and policies prepared once, to create the authorizer of each request
+ * <p>
+ * It is created by {@link Authorizer#prepare()}, which converts the checks and policies to their datalog
+ * form and runs the authorizer rules on the authorizer facts. It is not modified afterwards and can be
+ * shared between threads: the authorizers it creates add their facts and rules (including the token's) on
+ * top of the prepared ones instead of copying them, and only compute the facts derived from what they add.
+ */
+public final class PreparedAuthorizer {
+    final SymbolTable symbols;
+    // at the fixpoint of the authorizer rules
+    final World world;
+    final List<Check> checks;
+    final List<org.biscuitsec.biscuit.datalog.Check> convertedChecks;
+    final List<Policy> policies;
+    final List<List<org.biscuitsec.biscuit.datalog.Rule>> convertedPolicies;
+    final List<Scope> scopes;
+    // rewriting of the prepared rules for the prepared checks and policies, made by the first goal directed authorization
+    private volatile MagicSets rewriting;
+
+    PreparedAuthorizer(SymbolTable symbols, World world,
+                       List<Check> checks, List<org.biscuitsec.biscuit.datalog.Check> convertedChecks,
+                       List<Policy> policies, List<List<org.biscuitsec.biscuit.datalog.Rule>> convertedPolicies,
+                       List<Scope> scopes) {
+        this.symbols = symbols;
+        this.world = world;
+        this.checks = Collections.unmodifiableList(checks);
+        this.convertedChecks = Collections.unmodifiableList(convertedChecks);
+        this.policies = Collections.unmodifiableList(policies);
+        this.convertedPolicies = Collections.unmodifiableList(convertedPolicies);
+        this.scopes = Collections.unmodifiableList(scopes);
+    }
+
+    /**
+     * Magic set rewriting of the authorizer rules for the authorizer checks and policies, extended by
+     * each goal directed authorization with the rules and queries it adds
+     */
+    MagicSets rewriting() {
+        MagicSets rewriting = this.rewriting;
+        if (rewriting == null) {
+            List<org.biscuitsec.biscuit.datalog.Rule> queries = new ArrayList<>();
+            for (org.biscuitsec.biscuit.datalog.Check check : this.convertedChecks) {
+                queries.addAll(check.queries());
+            }
+            for (List<org.biscuitsec.biscuit.datalog.Rule> policy : this.convertedPolicies) {
+                queries.addAll(policy);
+            }
+            // computing it twice concurrently gives the same result
+            rewriting = MagicSets.of(this.world.rules(), queries);
+            this.rewriting = rewriting;
+        }
+        return rewriting;
+    }
+
+    /**
+     * Creates an authorizer without token, starting from the prepared facts, rules, checks and policies
+     *
+     * @return Authorizer
+     */
+    public Authorizer authorizer() {
+        return new Authorizer(this);
+    }
+
+    /**
+     * Creates an authorizer for a token, starting from the prepared facts, rules, checks and policies
+     *
+     * @param token
+     * @return Authorizer
+     */
+    public Authorizer authorizer(Biscuit token) throws Error.FailedLogic {
+        return new Authorizer(this).add_token(token);
+    }
+}
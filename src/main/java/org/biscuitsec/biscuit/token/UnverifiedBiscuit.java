@@ -21,36 +21,136 @@ import java.util.stream.Collectors;
 
 /**
  * UnverifiedBiscuit auth token. UnverifiedBiscuit means it's deserialized without checking signatures.
+ * <p>
+ * The blocks of a token deserialized with {@link #from_bytes_lazy(byte[])} are decoded on first access to
+ * their contents, so reading the revocation identifiers or the root key id does not decode the facts, rules
+ * and checks. The other methods decode the blocks when deserializing.
  */
 public class UnverifiedBiscuit {
-    final Block authority;
-    final List<Block> blocks;
-    final SymbolTable symbols;
     final SerializedBiscuit serializedBiscuit;
     final List<byte[]> revocation_ids;
     final Option<Integer> root_key_id;
+    // symbols the blocks are decoded with, when they were not decoded yet
+    final SymbolTable baseSymbols;
+    // decoded blocks, set once
+    volatile Contents contents;
 
     UnverifiedBiscuit(Block authority, List<Block> blocks, SymbolTable symbols, SerializedBiscuit serializedBiscuit,
                        List<byte[]> revocation_ids) {
-        this.authority = authority;
-        this.blocks = blocks;
-        this.symbols = symbols;
-        this.serializedBiscuit = serializedBiscuit;
-        this.revocation_ids = revocation_ids;
-        this.root_key_id = Option.none();
+        this(authority, blocks, symbols, serializedBiscuit, revocation_ids, Option.none());
     }
 
     UnverifiedBiscuit(Block authority, List<Block> blocks, SymbolTable symbols, SerializedBiscuit serializedBiscuit,
                       List<byte[]> revocation_ids,
                       Option<Integer> root_key_id) {
-        this.authority = authority;
-        this.blocks = blocks;
-        this.symbols = symbols;
+        this.contents = new Contents(authority, blocks, symbols);
+        this.baseSymbols = null;
+        this.serializedBiscuit = serializedBiscuit;
+        this.revocation_ids = revocation_ids;
+        this.root_key_id = root_key_id;
+    }
+
+    /**
+     * Creates a token whose blocks are decoded from the serialized token on first access
+     *
+     * @param symbols symbols the blocks are decoded with, they are copied when decoding
+     */
+    UnverifiedBiscuit(SerializedBiscuit serializedBiscuit, SymbolTable symbols, List<byte[]> revocation_ids,
+                      Option<Integer> root_key_id) {
+        this.contents = null;
+        this.baseSymbols = symbols;
         this.serializedBiscuit = serializedBiscuit;
         this.revocation_ids = revocation_ids;
         this.root_key_id = root_key_id;
     }
 
+    /**
+     * Decoded blocks of a token
+     */
+    static final class Contents {
+        final Block authority;
+        final List<Block> blocks;
+        // symbols of the authority and of the blocks without external signature
+        final SymbolTable symbols;
+
+        Contents(Block authority, List<Block> blocks, SymbolTable symbols) {
+            this.authority = authority;
+            this.blocks = blocks;
+            this.symbols = symbols;
+        }
+    }
+
+    /**
+     * Decodes the blocks on the first call, and returns the same contents afterwards
+     * <p>
+     * A decoding error is thrown again on the next call.
+     */
+    Contents contents() throws Error {
+        Contents c = this.contents;
+        if (c == null) {
+            synchronized (this) {
+                c = this.contents;
+                if (c == null) {
+                    SymbolTable symbols = new SymbolTable(this.baseSymbols);
+                    Tuple2<Block, ArrayList<Block>> t = this.extractBlocks(symbols);
+                    c = new Contents(t._1, t._2, symbols);
+                    this.contents = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Decodes the blocks of the serialized token. Its signatures were not verified, so this does not
+     * use the {@link BlockCache}
+     */
+    Tuple2<Block, ArrayList<Block>> extractBlocks(SymbolTable symbols) throws Error {
+        return this.serializedBiscuit.extractBlocks(symbols);
+    }
+
+    /**
+     * Decodes the blocks now instead of on first access
+     * <p>
+     * <code>from_bytes_lazy</code> does not decode the blocks, so a token with a malformed block is only rejected
+     * by the first method reading them. Calling this right after deserializing a token reports the error there.
+     *
+     * @return this token
+     */
+    public UnverifiedBiscuit decode_blocks() throws Error {
+        this.contents();
+        return this;
+    }
+
+    // for the methods that cannot throw a decoding error
+    private Contents decoded() {
+        try {
+            return this.contents();
+        } catch (Error e) {
+            throw new IllegalStateException("invalid token block: " + e, e);
+        }
+    }
+
+    Block authority() throws Error {
+        return this.contents().authority;
+    }
+
+    List<Block> blocks() throws Error {
+        return this.contents().blocks;
+    }
+
+    SymbolTable symbols() throws Error {
+        return this.contents().symbols;
+    }
+
+    /**
+     * @return symbols to decode the blocks of this token again, without decoding them now
+     */
+    SymbolTable base_symbols() {
+        Contents c = this.contents;
+        return c != null ? c.symbols : this.baseSymbols;
+    }
+
     /**
      * Deserializes a Biscuit token from a base64 url (RFC4648_URLSAFE) string
      * <p>
@@ -86,19 +186,72 @@ public class UnverifiedBiscuit {
         return UnverifiedBiscuit.from_serialized_biscuit(ser, symbols);
     }
 
+    /**
+     * Deserializes a Biscuit token from a byte array, without decoding its blocks
+     * <p>
+     * The blocks are decoded on first access to their contents. A token with a malformed block is not rejected
+     * here, but by {@link #decode_blocks()}, and {@link #checks()} and {@link #context()} then throw an
+     * {@link IllegalStateException}.
+     * <p>
+     * This method uses the default symbol table
+     *
+     * @param data
+     * @return UnverifiedBiscuit
+     */
+    static public UnverifiedBiscuit from_bytes_lazy(byte[] data) throws Error {
+        SerializedBiscuit ser = SerializedBiscuit.unsafe_deserialize(data);
+        return new UnverifiedBiscuit(ser, default_symbol_table(), ser.revocation_identifiers(), Option.none());
+    }
+
+    /**
+     * Deserializes a Biscuit token from a base64 url (RFC4648_URLSAFE) string, in the remaining bytes of a buffer
+     * <p>
+     * The buffer's position is not modified.
+     * <p>
+     * This method uses the default symbol table
+     *
+     * @param data
+     * @return Biscuit
+     */
+    static public UnverifiedBiscuit from_b64url(ByteBuffer data) throws Error {
+        return UnverifiedBiscuit.from_bytes(Base64.getUrlDecoder().decode(data.duplicate()));
+    }
+
+    /**
+     * Deserializes a Biscuit token from the remaining bytes of a buffer
+     * <p>
+     * Direct buffers are parsed in place. The buffer's position is not modified, and the token
+     * does not keep a reference to the buffer.
+     * <p>
+     * This method uses the default symbol table
+     *
+     * @param data
+     * @return
+     */
+    static public UnverifiedBiscuit from_bytes(ByteBuffer data) throws Error {
+        return UnverifiedBiscuit.from_bytes_with_symbols(data, default_symbol_table());
+    }
+
+    /**
+     * Deserializes a UnverifiedBiscuit from the remaining bytes of a buffer
+     *
+     * @param data
+     * @return UnverifiedBiscuit
+     */
+    static public UnverifiedBiscuit from_bytes_with_symbols(ByteBuffer data, SymbolTable symbols) throws Error {
+        SerializedBiscuit ser = SerializedBiscuit.unsafe_deserialize(data);
+        return UnverifiedBiscuit.from_serialized_biscuit(ser, symbols);
+    }
+
     /**
      * Fills a UnverifiedBiscuit structure from a deserialized token
      *
      * @return UnverifiedBiscuit
      */
     static private UnverifiedBiscuit from_serialized_biscuit(SerializedBiscuit ser, SymbolTable symbols) throws Error {
-        Tuple2<Block, ArrayList<Block>> t = ser.extractBlocks(symbols);
-        Block authority = t._1;
-        ArrayList<Block> blocks = t._2;
-
         List<byte[]> revocation_ids = ser.revocation_identifiers();
 
-        return new UnverifiedBiscuit(authority, blocks, symbols, ser, revocation_ids);
+        return new UnverifiedBiscuit(ser, symbols, revocation_ids, Option.none()).decode_blocks();
     }
 
     /**
@@ -138,12 +291,12 @@ public class UnverifiedBiscuit {
     public UnverifiedBiscuit attenuate(org.biscuitsec.biscuit.token.builder.Block block) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
         SecureRandom rng = new SecureRandom();
         KeyPair keypair = KeyPair.generate(Schema.PublicKey.Algorithm.Ed25519, rng);
-        SymbolTable builderSymbols = new SymbolTable(this.symbols);
+        SymbolTable builderSymbols = new SymbolTable(this.symbols());
         return attenuate(rng, keypair, block.build(builderSymbols));
     }
 
     public UnverifiedBiscuit attenuate(final SecureRandom rng, final KeyPair keypair, org.biscuitsec.biscuit.token.builder.Block block) throws Error {
-        SymbolTable builderSymbols = new SymbolTable(this.symbols);
+        SymbolTable builderSymbols = new SymbolTable(this.symbols());
         return attenuate(rng, keypair, block.build(builderSymbols));
     }
 
@@ -158,7 +311,7 @@ public class UnverifiedBiscuit {
     public UnverifiedBiscuit attenuate(final SecureRandom rng, final KeyPair keypair, Block block) throws Error {
         UnverifiedBiscuit copiedBiscuit = this.copy();
 
-        if (!Collections.disjoint(copiedBiscuit.symbols.symbols, block.symbols.symbols)) {
+        if (!Collections.disjoint(copiedBiscuit.symbols().symbols, block.symbols.symbols)) {
             throw new Error.SymbolTableOverlap();
         }
 
@@ -168,20 +321,20 @@ public class UnverifiedBiscuit {
         }
         SerializedBiscuit container = containerRes.get();
 
-        SymbolTable symbols = new SymbolTable(copiedBiscuit.symbols);
+        SymbolTable symbols = new SymbolTable(copiedBiscuit.symbols());
         for (String s : block.symbols.symbols) {
             symbols.add(s);
         }
 
         ArrayList<Block> blocks = new ArrayList<>();
-        for (Block b : copiedBiscuit.blocks) {
+        for (Block b : copiedBiscuit.blocks()) {
             blocks.add(b);
         }
         blocks.add(block);
 
         List<byte[]> revocation_ids = container.revocation_identifiers();
 
-        return new UnverifiedBiscuit(copiedBiscuit.authority, blocks, symbols, container, revocation_ids);
+        return new UnverifiedBiscuit(copiedBiscuit.authority(), blocks, symbols, container, revocation_ids);
     }
     //FIXME: attenuate 3rd Party
 
@@ -191,26 +344,36 @@ public class UnverifiedBiscuit {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * @throws IllegalStateException if the token was deserialized without decoding its blocks, and a block
+     * is malformed, see {@link #decode_blocks()}
+     */
     public List<List<Check>> checks() {
+        Contents contents = this.decoded();
         ArrayList<List<Check>> l = new ArrayList<>();
-        l.add(new ArrayList<>(this.authority.checks));
+        l.add(new ArrayList<>(contents.authority.checks));
 
-        for (Block b : this.blocks) {
+        for (Block b : contents.blocks) {
             l.add(new ArrayList<>(b.checks));
         }
 
         return l;
     }
 
+    /**
+     * @throws IllegalStateException if the token was deserialized without decoding its blocks, and a block
+     * is malformed, see {@link #decode_blocks()}
+     */
     public List<Option<String>> context() {
+        Contents contents = this.decoded();
         ArrayList<Option<String>> res = new ArrayList<>();
-        if (this.authority.context.isEmpty()) {
+        if (contents.authority.context.isEmpty()) {
             res.add(Option.none());
         } else {
-            res.add(Option.some(this.authority.context));
+            res.add(Option.some(contents.authority.context));
         }
 
-        for (Block b : this.blocks) {
+        for (Block b : contents.blocks) {
             if (b.context.isEmpty()) {
                 res.add(Option.none());
             } else {
@@ -285,31 +448,38 @@ public class UnverifiedBiscuit {
 
         SerializedBiscuit container = containerRes.get();
 
-        SymbolTable symbols = new SymbolTable(copiedBiscuit.symbols);
+        SymbolTable symbols = new SymbolTable(copiedBiscuit.symbols());
 
         ArrayList<Block> blocks = new ArrayList<>();
-        for (Block b : copiedBiscuit.blocks) {
+        for (Block b : copiedBiscuit.blocks()) {
             blocks.add(b);
         }
         blocks.add(block);
 
         List<byte[]> revocation_ids = container.revocation_identifiers();
-        return new UnverifiedBiscuit(copiedBiscuit.authority, blocks, symbols, container, revocation_ids);
+        return new UnverifiedBiscuit(copiedBiscuit.authority(), blocks, symbols, container, revocation_ids);
     }
 
     /**
      * Prints a token's content
      */
     public String print() {
+        Contents contents;
+        try {
+            contents = this.contents();
+        } catch (Error e) {
+            return "UnverifiedBiscuit { " + e + " }";
+        }
+
         StringBuilder s = new StringBuilder();
         s.append("UnverifiedBiscuit {\n\tsymbols: ");
-        s.append(this.symbols.getAllSymbols());
+        s.append(contents.symbols.getAllSymbols());
         s.append("\n\tauthority: ");
-        s.append(this.authority.print(this.symbols));
+        s.append(contents.authority.print(contents.symbols));
         s.append("\n\tblocks: [\n");
-        for (Block b : this.blocks) {
+        for (Block b : contents.blocks) {
             s.append("\t\t");
-            s.append(b.print(this.symbols));
+            s.append(b.print(contents.symbols));
             s.append("\n");
         }
         s.append("\t]\n}");
@@ -336,7 +506,7 @@ public class UnverifiedBiscuit {
     public Biscuit verify(PublicKey publicKey) throws Error, NoSuchAlgorithmException, SignatureException, InvalidKeyException {
         SerializedBiscuit serializedBiscuit = this.serializedBiscuit;
         serializedBiscuit.verify(publicKey);
-        return Biscuit.from_serialized_biscuit(serializedBiscuit, this.symbols);
+        return Biscuit.from_serialized_biscuit(serializedBiscuit, this.base_symbols());
     }
 
     public Biscuit verify(KeyDelegate delegate) throws Error, NoSuchAlgorithmException, SignatureException, InvalidKeyException {
@@ -349,6 +519,6 @@ public class UnverifiedBiscuit {
         }
 
         serializedBiscuit.verify(root.get());
-        return Biscuit.from_serialized_biscuit(serializedBiscuit, this.symbols);
+        return Biscuit.from_serialized_biscuit(serializedBiscuit, this.base_symbols());
     }
 }
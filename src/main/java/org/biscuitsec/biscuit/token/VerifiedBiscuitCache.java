@@ -0,0 +1,190 @@
+package org.biscuitsec.biscuit.token;
+
+import org.biscuitsec.biscuit.crypto.KeyDelegate;
+import org.biscuitsec.biscuit.crypto.PublicKey;
+import org.biscuitsec.biscuit.error.Error;
+import io.vavr.control.Option;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of deserialized and verified tokens, for clients sending the same token with each request
+ * <p>
+ * Tokens are keyed by the SHA-256 hash of their serialized form, and are only returned for the root key
+ * that verified them. The cache is bounded, evicts the tokens that were not used recently, and drops tokens after
+ * their time to live. When a root key is rotated, {@link #invalidate(Option)} drops the tokens verified
+ * with the key id. Lookups through a {@link KeyDelegate} also check that the delegate still returns the
+ * key that verified the cached token.
+ * <p>
+ * The returned tokens are shared, they use the default symbol table.
+ */
+public class VerifiedBiscuitCache {
+    private final Duration ttl;
+    private final Clock clock;
+    private final LruCache<String, Entry> tokens;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong expirations;
+    private final AtomicLong invalidations;
+
+    /**
+     * @param maxSize maximum number of tokens kept
+     * @param ttl time after which a token is verified again
+     */
+    public VerifiedBiscuitCache(int maxSize, Duration ttl) {
+        this(maxSize, ttl, Clock.systemUTC());
+    }
+
+    VerifiedBiscuitCache(int maxSize, Duration ttl, Clock clock) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("negative token cache size: " + maxSize);
+        }
+        this.ttl = ttl;
+        this.clock = clock;
+        this.tokens = new LruCache<>(maxSize);
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.expirations = new AtomicLong();
+        this.invalidations = new AtomicLong();
+    }
+
+    /**
+     * Deserializes and verifies a token, or returns it from the cache if it was already verified with this root key
+     *
+     * @see Biscuit#from_bytes(byte[], PublicKey)
+     */
+    public Biscuit from_bytes(byte[] data, PublicKey root) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
+        String key = hash(data);
+        Entry entry = this.lookup(key);
+        if (entry != null && entry.root.equals(root)) {
+            this.hits.incrementAndGet();
+            return entry.token;
+        }
+
+        this.misses.incrementAndGet();
+        Biscuit token = Biscuit.from_bytes(data, root);
+        this.store(key, new Entry(token, root, token.serializedBiscuit.root_key_id, this.clock.instant().plus(this.ttl)));
+        return token;
+    }
+
+    /**
+     * Deserializes and verifies a token, or returns it from the cache if the delegate still returns the
+     * root key that verified it
+     *
+     * @see Biscuit#from_bytes(byte[], KeyDelegate)
+     */
+    public Biscuit from_bytes(byte[] data, KeyDelegate delegate) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
+        String key = hash(data);
+        Entry entry = this.lookup(key);
+        if (entry != null) {
+            Option<PublicKey> root = delegate.root_key(entry.rootKeyId);
+            if (root.isDefined() && root.get().equals(entry.root)) {
+                this.hits.incrementAndGet();
+                return entry.token;
+            }
+        }
+
+        this.misses.incrementAndGet();
+        Biscuit token = Biscuit.from_bytes(data, delegate);
+        Option<Integer> rootKeyId = token.serializedBiscuit.root_key_id;
+        Option<PublicKey> root = delegate.root_key(rootKeyId);
+        if (root.isDefined()) {
+            this.store(key, new Entry(token, root.get(), rootKeyId, this.clock.instant().plus(this.ttl)));
+        }
+        return token;
+    }
+
+    /**
+     * Drops the tokens verified with this root key id, after a key rotation
+     */
+    public void invalidate(Option<Integer> rootKeyId) {
+        this.invalidations.addAndGet(this.tokens.removeIf(entry -> Objects.equals(entry.rootKeyId, rootKeyId)));
+    }
+
+    /**
+     * Drops the tokens verified with this root key
+     */
+    public void invalidate(PublicKey root) {
+        this.invalidations.addAndGet(this.tokens.removeIf(entry -> entry.root.equals(root)));
+    }
+
+    public void clear() {
+        this.tokens.clear();
+    }
+
+    public int size() {
+        return this.tokens.size();
+    }
+
+    public long hits() {
+        return this.hits.get();
+    }
+
+    public long misses() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return number of tokens dropped because the cache was full
+     */
+    public long evictions() {
+        return this.tokens.evictions();
+    }
+
+    /**
+     * @return number of tokens dropped because their time to live had passed
+     */
+    public long expirations() {
+        return this.expirations.get();
+    }
+
+    /**
+     * @return number of tokens dropped by {@link #invalidate(Option)} and {@link #invalidate(PublicKey)}
+     */
+    public long invalidations() {
+        return this.invalidations.get();
+    }
+
+    private Entry lookup(String key) {
+        Entry entry = this.tokens.get(key);
+        if (entry != null && !this.clock.instant().isBefore(entry.expiresAt)) {
+            if (this.tokens.remove(key, entry)) {
+                this.expirations.incrementAndGet();
+            }
+            return null;
+        }
+        return entry;
+    }
+
+    private void store(String key, Entry entry) {
+        this.tokens.put(key, entry);
+    }
+
+    private static String hash(byte[] data) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        return org.biscuitsec.biscuit.token.builder.Utils.byteArrayToHexString(digest.digest(data));
+    }
+
+    private static final class Entry {
+        final Biscuit token;
+        final PublicKey root;
+        final Option<Integer> rootKeyId;
+        final Instant expiresAt;
+
+        Entry(Biscuit token, PublicKey root, Option<Integer> rootKeyId, Instant expiresAt) {
+            this.token = token;
+            this.root = root;
+            this.rootKeyId = rootKeyId;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,819 @@
+package org.biscuitsec.biscuit.token.format;
+
+import biscuit.format.schema.Schema;
+import org.biscuitsec.biscuit.crypto.KeyPair;
+import org.biscuitsec.biscuit.crypto.PublicKey;
+import org.biscuitsec.biscuit.datalog.*;
+import org.biscuitsec.biscuit.datalog.expressions.Expression;
+import org.biscuitsec.biscuit.datalog.expressions.Op;
+import org.biscuitsec.biscuit.error.Error;
+import org.biscuitsec.biscuit.token.Block;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.vavr.control.Either;
+import io.vavr.control.Option;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static com.google.protobuf.WireFormat.WIRETYPE_LENGTH_DELIMITED;
+import static com.google.protobuf.WireFormat.WIRETYPE_VARINT;
+import static io.vavr.API.Left;
+import static io.vavr.API.Right;
+
+/**
+ * Decodes tokens and blocks from the Protobuf wire format in a single pass
+ * <p>
+ * The fields are read directly into {@link SerializedBiscuit}, {@link Block} and the datalog classes, without
+ * building the generated <code>Schema</code> messages first. The results are the same as the generated parser
+ * followed by {@link SerializedBiscuit#deserialize(Schema.Biscuit)} or {@link Block#deserialize(Schema.Block, Option)}:
+ * the last value of a field wins, unknown fields and unknown enum values are skipped, and the errors are
+ * reported in the same order.
+ * <p>
+ * Inputs the generated parser handles differently are decoded again with it: malformed or truncated data,
+ * missing required fields, too deeply nested terms, and messages repeated in a field that protobuf would merge.
+ * Valid tokens never take that path.
+ */
+public final class BiscuitDecoder {
+    private static final int RECURSION_LIMIT = 100;
+
+    // enum values indexed by their number in the schema
+    private static final Op.UnaryOp[] UNARY_OPS = {
+            Op.UnaryOp.Negate,
+            Op.UnaryOp.Parens,
+            Op.UnaryOp.Length,
+    };
+    private static final Op.BinaryOp[] BINARY_OPS = {
+            Op.BinaryOp.LessThan,
+            Op.BinaryOp.GreaterThan,
+            Op.BinaryOp.LessOrEqual,
+            Op.BinaryOp.GreaterOrEqual,
+            Op.BinaryOp.Equal,
+            Op.BinaryOp.Contains,
+            Op.BinaryOp.Prefix,
+            Op.BinaryOp.Suffix,
+            Op.BinaryOp.Regex,
+            Op.BinaryOp.Add,
+            Op.BinaryOp.Sub,
+            Op.BinaryOp.Mul,
+            Op.BinaryOp.Div,
+            Op.BinaryOp.And,
+            Op.BinaryOp.Or,
+            Op.BinaryOp.Intersection,
+            Op.BinaryOp.Union,
+            Op.BinaryOp.BitwiseAnd,
+            Op.BinaryOp.BitwiseOr,
+            Op.BinaryOp.BitwiseXor,
+            Op.BinaryOp.NotEqual,
+    };
+
+    private final CodedInputStream in;
+    private int depth;
+
+    private BiscuitDecoder(CodedInputStream in) {
+        this.in = in;
+        this.depth = 0;
+    }
+
+    /**
+     * Decodes a token from the remaining bytes of a buffer, without verifying its signatures
+     * <p>
+     * The buffer's position is not modified.
+     *
+     * @param slice
+     * @return the token, with its root key id
+     * @throws Error.FormatError.DeserializationError
+     */
+    static public SerializedBiscuit decode(ByteBuffer slice) throws Error.FormatError.DeserializationError {
+        try {
+            return new BiscuitDecoder(CodedInputStream.newInstance(slice)).biscuit();
+        } catch (Fallback | IOException e) {
+            try {
+                Schema.Biscuit data = Schema.Biscuit.parseFrom(slice);
+                SerializedBiscuit b = SerializedBiscuit.deserialize(data);
+                if (data.hasRootKeyId()) {
+                    b.root_key_id = Option.some(data.getRootKeyId());
+                }
+                return b;
+            } catch (InvalidProtocolBufferException ex) {
+                throw new Error.FormatError.DeserializationError(ex.toString());
+            }
+        }
+    }
+
+    /**
+     * Decodes a block
+     *
+     * @param slice
+     * @param externalKey
+     * @return
+     */
+    static public Either<Error.FormatError, Block> decode_block(byte[] slice, Option<PublicKey> externalKey) {
+        try {
+            return new BiscuitDecoder(CodedInputStream.newInstance(slice)).block(externalKey);
+        } catch (Fallback | IOException e) {
+            try {
+                return Block.deserialize(Schema.Block.parseFrom(slice), externalKey);
+            } catch (InvalidProtocolBufferException ex) {
+                return Left(new Error.FormatError.DeserializationError(ex.toString()));
+            }
+        }
+    }
+
+    private SerializedBiscuit biscuit() throws IOException, Fallback, Error.FormatError.DeserializationError {
+        Option<Integer> rootKeyId = Option.none();
+        RawBlock authority = null;
+        ArrayList<RawBlock> rawBlocks = new ArrayList<>();
+        RawProof rawProof = null;
+
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (tag) {
+                case 1 << 3 | WIRETYPE_VARINT:
+                    rootKeyId = Option.some(in.readUInt32());
+                    break;
+                case 2 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    if (authority != null) {
+                        throw new Fallback();
+                    }
+                    authority = signedBlock();
+                    break;
+                case 3 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    rawBlocks.add(signedBlock());
+                    break;
+                case 4 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    if (rawProof != null) {
+                        throw new Fallback();
+                    }
+                    rawProof = proof();
+                    break;
+                default:
+                    skip(tag);
+            }
+        }
+        if (authority == null || rawProof == null) {
+            throw new Fallback();
+        }
+
+        // keys are built in the same order as SerializedBiscuit.deserialize, so invalid keys fail the same way
+        if (authority.external != null) {
+            throw new Error.FormatError.DeserializationError("the authority block must not contain an external signature");
+        }
+        SignedBlock signedAuthority = new SignedBlock(authority.block, publicKey(authority.key), authority.signature, Option.none());
+
+        ArrayList<SignedBlock> blocks = new ArrayList<>();
+        for (RawBlock b : rawBlocks) {
+            Option<ExternalSignature> external = Option.none();
+            if (b.external != null) {
+                external = Option.some(new ExternalSignature(publicKey(b.external.key), b.external.signature));
+            }
+            blocks.add(new SignedBlock(b.block, publicKey(b.key), b.signature, external));
+        }
+
+        Option<KeyPair> secretKey = Option.none();
+        if (rawProof.nextSecret != null) {
+            secretKey = Option.some(new KeyPair(rawProof.nextSecret));
+        }
+
+        Option<byte[]> signature = Option.none();
+        if (rawProof.finalSignature != null) {
+            signature = Option.some(rawProof.finalSignature);
+        }
+
+        if (secretKey.isEmpty() && signature.isEmpty()) {
+            throw new Error.FormatError.DeserializationError("empty proof");
+        }
+
+        return new SerializedBiscuit(signedAuthority, blocks, new Proof(secretKey, signature), rootKeyId);
+    }
+
+    private RawBlock signedBlock() throws IOException, Fallback {
+        int limit = enter();
+        RawBlock b = new RawBlock();
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (tag) {
+                case 1 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    b.block = in.readByteArray();
+                    break;
+                case 2 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    if (b.key != null) {
+                        throw new Fallback();
+                    }
+                    b.key = publicKeyBytes();
+                    break;
+                case 3 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    b.signature = in.readByteArray();
+                    break;
+                case 4 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    if (b.external != null) {
+                        throw new Fallback();
+                    }
+                    b.external = externalSignature();
+                    break;
+                default:
+                    skip(tag);
+            }
+        }
+        exit(limit);
+
+        if (b.block == null || b.key == null || b.signature == null) {
+            throw new Fallback();
+        }
+        return b;
+    }
+
+    private RawExternal externalSignature() throws IOException, Fallback {
+        int limit = enter();
+        RawExternal e = new RawExternal();
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (tag) {
+                case 1 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    e.signature = in.readByteArray();
+                    break;
+                case 2 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    if (e.key != null) {
+                        throw new Fallback();
+                    }
+                    e.key = publicKeyBytes();
+                    break;
+                default:
+                    skip(tag);
+            }
+        }
+        exit(limit);
+
+        if (e.signature == null || e.key == null) {
+            throw new Fallback();
+        }
+        return e;
+    }
+
+    /**
+     * @return the bytes of an Ed25519 public key
+     */
+    private byte[] publicKeyBytes() throws IOException, Fallback {
+        int limit = enter();
+        boolean algorithm = false;
+        byte[] key = null;
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (tag) {
+                case 1 << 3 | WIRETYPE_VARINT:
+                    if (in.readEnum() == Schema.PublicKey.Algorithm.Ed25519_VALUE) {
+                        algorithm = true;
+                    }
+                    break;
+                case 2 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    key = in.readByteArray();
+                    break;
+                default:
+                    skip(tag);
+            }
+        }
+        exit(limit);
+
+        if (!algorithm || key == null) {
+            throw new Fallback();
+        }
+        return key;
+    }
+
+    private static PublicKey publicKey(byte[] key) {
+        return new PublicKey(Schema.PublicKey.Algorithm.Ed25519, key);
+    }
+
+    private RawProof proof() throws IOException, Fallback {
+        int limit = enter();
+        RawProof p = new RawProof();
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (tag) {
+                case 1 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    p.nextSecret = in.readByteArray();
+                    p.finalSignature = null;
+                    break;
+                case 2 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    p.finalSignature = in.readByteArray();
+                    p.nextSecret = null;
+                    break;
+                default:
+                    skip(tag);
+            }
+        }
+        exit(limit);
+        return p;
+    }
+
+    private Either<Error.FormatError, Block> block(Option<PublicKey> externalKey) throws IOException, Fallback {
+        SymbolTable symbols = new SymbolTable();
+        String context = "";
+        int version = 0;
+        ArrayList<Fact> facts = new ArrayList<>();
+        ArrayList<Rule> rules = new ArrayList<>();
+        ArrayList<Check> checks = new ArrayList<>();
+        ArrayList<Scope> scopes = new ArrayList<>();
+        ArrayList<byte[]> keys = new ArrayList<>();
+        Error.FormatError factError = null;
+        Error.FormatError ruleError = null;
+        Error.FormatError checkError = null;
+        Error.FormatError scopeError = null;
+
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (tag) {
+                case 1 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    symbols.add(in.readString());
+                    break;
+                case 2 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    context = in.readString();
+                    break;
+                case 3 << 3 | WIRETYPE_VARINT:
+                    version = in.readUInt32();
+                    break;
+                case 4 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    factError = add(facts, fact(), factError);
+                    break;
+                case 5 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    ruleError = add(rules, rule(), ruleError);
+                    break;
+                case 6 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    checkError = add(checks, check(), checkError);
+                    break;
+                case 7 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    scopeError = add(scopes, scope(), scopeError);
+                    break;
+                case 8 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    keys.add(publicKeyBytes());
+                    break;
+                default:
+                    skip(tag);
+            }
+        }
+
+        if (version < SerializedBiscuit.MIN_SCHEMA_VERSION || version > SerializedBiscuit.MAX_SCHEMA_VERSION) {
+            return Left(new Error.FormatError.Version(SerializedBiscuit.MIN_SCHEMA_VERSION, SerializedBiscuit.MAX_SCHEMA_VERSION, version));
+        }
+        if (factError != null) {
+            return Left(factError);
+        }
+        if (ruleError != null) {
+            return Left(ruleError);
+        }
+        if (checkError != null) {
+            return Left(checkError);
+        }
+        if (scopeError != null) {
+            return Left(scopeError);
+        }
+
+        ArrayList<PublicKey> publicKeys = new ArrayList<>();
+        for (byte[] key : keys) {
+            PublicKey pk = publicKey(key);
+            publicKeys.add(pk);
+            symbols.publicKeys().add(pk);
+        }
+
+        SchemaVersion schemaVersion = new SchemaVersion(facts, rules, checks, scopes);
+        Either<Error.FormatError, Void> res = schemaVersion.checkCompatibility(version);
+        if (res.isLeft()) {
+            return Left(res.getLeft());
+        }
+
+        return Right(new Block(symbols, context, facts, rules, checks, scopes, publicKeys, externalKey, version));
+    }
+
+    private Either<Error.FormatError, Fact> fact() throws IOException, Fallback {
+        int limit = enter();
+        Either<Error.FormatError, Predicate> predicate = null;
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (tag) {
+                case 1 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    if (predicate != null) {
+                        throw new Fallback();
+                    }
+                    predicate = predicate();
+                    break;
+                default:
+                    skip(tag);
+            }
+        }
+        exit(limit);
+
+        if (predicate == null) {
+            throw new Fallback();
+        }
+        return predicate.map(p -> new Fact(p));
+    }
+
+    private Either<Error.FormatError, Rule> rule() throws IOException, Fallback {
+        int limit = enter();
+        Either<Error.FormatError, Predicate> head = null;
+        ArrayList<Predicate> body = new ArrayList<>();
+        ArrayList<Expression> expressions = new ArrayList<>();
+        ArrayList<Scope> scopes = new ArrayList<>();
+        Error.FormatError bodyError = null;
+        Error.FormatError expressionError = null;
+        Error.FormatError scopeError = null;
+
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (tag) {
+                case 1 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    if (head != null) {
+                        throw new Fallback();
+                    }
+                    head = predicate();
+                    break;
+                case 2 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    bodyError = add(body, predicate(), bodyError);
+                    break;
+                case 3 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    expressionError = add(expressions, expression(), expressionError);
+                    break;
+                case 4 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    scopeError = add(scopes, scope(), scopeError);
+                    break;
+                default:
+                    skip(tag);
+            }
+        }
+        exit(limit);
+
+        if (head == null) {
+            throw new Fallback();
+        }
+        if (bodyError != null) {
+            return Left(bodyError);
+        }
+        if (expressionError != null) {
+            return Left(expressionError);
+        }
+        if (scopeError != null) {
+            return Left(scopeError);
+        }
+        return head.map(h -> new Rule(h, body, expressions, scopes));
+    }
+
+    private Either<Error.FormatError, Check> check() throws IOException, Fallback {
+        int limit = enter();
+        Check.Kind kind = Check.Kind.One;
+        ArrayList<Rule> queries = new ArrayList<>();
+        Error.FormatError error = null;
+
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (tag) {
+                case 1 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    error = add(queries, rule(), error);
+                    break;
+                case 2 << 3 | WIRETYPE_VARINT:
+                    int k = in.readEnum();
+                    if (k == Schema.CheckV2.Kind.One_VALUE) {
+                        kind = Check.Kind.One;
+                    } else if (k == Schema.CheckV2.Kind.All_VALUE) {
+                        kind = Check.Kind.All;
+                    }
+                    break;
+                default:
+                    skip(tag);
+            }
+        }
+        exit(limit);
+
+        if (error != null) {
+            return Left(error);
+        }
+        return Right(new Check(kind, queries));
+    }
+
+    private Either<Error.FormatError, Scope> scope() throws IOException, Fallback {
+        int limit = enter();
+        Scope scope = null;
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (tag) {
+                case 1 << 3 | WIRETYPE_VARINT:
+                    int scopeType = in.readEnum();
+                    if (scopeType == Schema.Scope.ScopeType.Authority_VALUE) {
+                        scope = Scope.authority();
+                    } else if (scopeType == Schema.Scope.ScopeType.Previous_VALUE) {
+                        scope = Scope.previous();
+                    }
+                    break;
+                case 2 << 3 | WIRETYPE_VARINT:
+                    scope = Scope.publicKey(in.readInt64());
+                    break;
+                default:
+                    skip(tag);
+            }
+        }
+        exit(limit);
+
+        if (scope == null) {
+            return Left(new Error.FormatError.DeserializationError("invalid Scope"));
+        }
+        return Right(scope);
+    }
+
+    private Either<Error.FormatError, Predicate> predicate() throws IOException, Fallback {
+        int limit = enter();
+        boolean hasName = false;
+        long name = 0;
+        ArrayList<Term> terms = new ArrayList<>();
+        Error.FormatError error = null;
+
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (tag) {
+                case 1 << 3 | WIRETYPE_VARINT:
+                    name = in.readUInt64();
+                    hasName = true;
+                    break;
+                case 2 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    error = add(terms, term(), error);
+                    break;
+                default:
+                    skip(tag);
+            }
+        }
+        exit(limit);
+
+        if (!hasName) {
+            throw new Fallback();
+        }
+        if (error != null) {
+            return Left(error);
+        }
+        return Right(new Predicate(name, terms));
+    }
+
+    private Either<Error.FormatError, Term> term() throws IOException, Fallback {
+        int limit = enter();
+        // field number of the oneof member that was read last
+        int kind = 0;
+        long value = 0;
+        byte[] bytes = null;
+        Either<Error.FormatError, Term> set = null;
+
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (tag) {
+                case 1 << 3 | WIRETYPE_VARINT:
+                    kind = 1;
+                    value = in.readUInt32();
+                    break;
+                case 2 << 3 | WIRETYPE_VARINT:
+                    kind = 2;
+                    value = in.readInt64();
+                    break;
+                case 3 << 3 | WIRETYPE_VARINT:
+                    kind = 3;
+                    value = in.readUInt64();
+                    break;
+                case 4 << 3 | WIRETYPE_VARINT:
+                    kind = 4;
+                    value = in.readUInt64();
+                    break;
+                case 5 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    kind = 5;
+                    bytes = in.readByteArray();
+                    break;
+                case 6 << 3 | WIRETYPE_VARINT:
+                    kind = 6;
+                    value = in.readBool() ? 1 : 0;
+                    break;
+                case 7 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    // the generated builder keeps the first set and merges the next one into it
+                    if (set != null) {
+                        throw new Fallback();
+                    }
+                    kind = 7;
+                    set = termSet();
+                    break;
+                default:
+                    skip(tag);
+            }
+        }
+        exit(limit);
+
+        switch (kind) {
+            case 1:
+                return Right(new Term.Variable(value));
+            case 2:
+                return Right(new Term.Integer(value));
+            case 3:
+                return Right(new Term.Str(value));
+            case 4:
+                return Right(new Term.Date(value));
+            case 5:
+                return Right(new Term.Bytes(bytes));
+            case 6:
+                return Right(new Term.Bool(value != 0));
+            case 7:
+                return set;
+            default:
+                return Left(new Error.FormatError.DeserializationError("invalid Term kind: term.getKind()"));
+        }
+    }
+
+    private Either<Error.FormatError, Term> termSet() throws IOException, Fallback {
+        int limit = enter();
+        HashSet<Term> values = new HashSet<>();
+        Error.FormatError error = null;
+
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (tag) {
+                case 1 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    Either<Error.FormatError, Term> res = term();
+                    if (error == null) {
+                        if (res.isLeft()) {
+                            error = res.getLeft();
+                        } else if (res.get() instanceof Term.Variable) {
+                            error = new Error.FormatError.DeserializationError("sets cannot contain variables");
+                        } else {
+                            values.add(res.get());
+                        }
+                    }
+                    break;
+                default:
+                    skip(tag);
+            }
+        }
+        exit(limit);
+
+        if (error != null) {
+            return Left(error);
+        }
+        if (values.isEmpty()) {
+            return Left(new Error.FormatError.DeserializationError("invalid Set value"));
+        }
+        return Right(new Term.Set(values));
+    }
+
+    private Either<Error.FormatError, Expression> expression() throws IOException, Fallback {
+        int limit = enter();
+        ArrayList<Op> ops = new ArrayList<>();
+        Error.FormatError error = null;
+
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (tag) {
+                case 1 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    error = add(ops, op(), error);
+                    break;
+                default:
+                    skip(tag);
+            }
+        }
+        exit(limit);
+
+        if (error != null) {
+            return Left(error);
+        }
+        return Right(new Expression(ops));
+    }
+
+    private Either<Error.FormatError, Op> op() throws IOException, Fallback {
+        int limit = enter();
+        // field numbers of the oneof members already read, the generated builder merges a member read again
+        int read = 0;
+        Either<Error.FormatError, Op> op = null;
+
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (tag) {
+                case 1 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    if ((read & 1 << 1) != 0) {
+                        throw new Fallback();
+                    }
+                    read |= 1 << 1;
+                    op = term().map(v -> new Op.Value(v));
+                    break;
+                case 2 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    if ((read & 1 << 2) != 0) {
+                        throw new Fallback();
+                    }
+                    read |= 1 << 2;
+                    op = Right(new Op.Unary(UNARY_OPS[opKind(UNARY_OPS.length)]));
+                    break;
+                case 3 << 3 | WIRETYPE_LENGTH_DELIMITED:
+                    if ((read & 1 << 3) != 0) {
+                        throw new Fallback();
+                    }
+                    read |= 1 << 3;
+                    op = Right(new Op.Binary(BINARY_OPS[opKind(BINARY_OPS.length)]));
+                    break;
+                default:
+                    skip(tag);
+            }
+        }
+        exit(limit);
+
+        if (op == null) {
+            return Left(new Error.FormatError.DeserializationError("invalid unary operation"));
+        }
+        return op;
+    }
+
+    /**
+     * reads the required kind of an OpUnary or OpBinary message
+     *
+     * @param count number of known kinds
+     */
+    private int opKind(int count) throws IOException, Fallback {
+        int limit = enter();
+        int kind = -1;
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (tag) {
+                case 1 << 3 | WIRETYPE_VARINT:
+                    int k = in.readEnum();
+                    if (k >= 0 && k < count) {
+                        kind = k;
+                    }
+                    break;
+                default:
+                    skip(tag);
+            }
+        }
+        exit(limit);
+
+        if (kind == -1) {
+            throw new Fallback();
+        }
+        return kind;
+    }
+
+    /**
+     * adds a deserialized element, unless an element before it failed
+     *
+     * @return the first error
+     */
+    private static <T> Error.FormatError add(List<T> list, Either<Error.FormatError, T> element, Error.FormatError error) {
+        if (error != null) {
+            return error;
+        }
+        if (element.isLeft()) {
+            return element.getLeft();
+        }
+        list.add(element.get());
+        return null;
+    }
+
+    private int enter() throws IOException, Fallback {
+        int length = in.readRawVarint32();
+        if (depth >= RECURSION_LIMIT) {
+            throw new Fallback();
+        }
+        int limit = in.pushLimit(length);
+        depth++;
+        return limit;
+    }
+
+    private void exit(int limit) {
+        depth--;
+        in.popLimit(limit);
+    }
+
+    private void skip(int tag) throws IOException, Fallback {
+        // an end group tag ends the message early, which the generated parser rejects
+        if (!in.skipField(tag)) {
+            throw new Fallback();
+        }
+    }
+
+    private static final class RawBlock {
+        byte[] block;
+        byte[] key;
+        byte[] signature;
+        RawExternal external;
+    }
+
+    private static final class RawExternal {
+        byte[] signature;
+        byte[] key;
+    }
+
+    private static final class RawProof {
+        byte[] nextSecret;
+        byte[] finalSignature;
+    }
+
+    /**
+     * the input must be decoded again by the generated parser
+     */
+    private static final class Fallback extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        Fallback() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -8,8 +8,8 @@ import org.biscuitsec.biscuit.crypto.PublicKey;
 import org.biscuitsec.biscuit.datalog.SymbolTable;
 import org.biscuitsec.biscuit.error.Error;
 import org.biscuitsec.biscuit.token.Block;
+import org.biscuitsec.biscuit.token.BlockCache;
 import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
 import io.vavr.Tuple3;
 import io.vavr.control.Either;
 import io.vavr.control.Option;
@@ -21,6 +21,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.Executor;
 
 import static io.vavr.API.Left;
 import static io.vavr.API.Right;
@@ -44,13 +45,20 @@ public class SerializedBiscuit {
      * @return
      */
     static public SerializedBiscuit from_bytes(byte[] slice, org.biscuitsec.biscuit.crypto.PublicKey root) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
-        try {
-            Schema.Biscuit data = Schema.Biscuit.parseFrom(slice);
+        return from_bytes(ByteBuffer.wrap(slice), root);
+    }
 
-            return from_bytes_inner(data, root);
-        } catch (InvalidProtocolBufferException e) {
-            throw new Error.FormatError.DeserializationError(e.toString());
-        }
+    /**
+     * Deserializes a SerializedBiscuit from the remaining bytes of a buffer
+     * <p>
+     * Direct buffers are parsed in place. The buffer's position is not modified, and the token
+     * does not keep a reference to the buffer, so it can be released once this method returns.
+     *
+     * @param slice
+     * @return
+     */
+    static public SerializedBiscuit from_bytes(ByteBuffer slice, org.biscuitsec.biscuit.crypto.PublicKey root) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
+        return from_bytes_inner(BiscuitDecoder.decode(slice), root);
     }
 
     /**
@@ -60,31 +68,91 @@ public class SerializedBiscuit {
      * @return
      */
     static public SerializedBiscuit from_bytes(byte[] slice, KeyDelegate delegate) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
-        try {
-            Schema.Biscuit data = Schema.Biscuit.parseFrom(slice);
+        return from_bytes(ByteBuffer.wrap(slice), delegate);
+    }
 
-            Option<Integer> root_key_id = Option.none();
-            if (data.hasRootKeyId()) {
-                root_key_id = Option.some(data.getRootKeyId());
-            }
+    /**
+     * Deserializes a SerializedBiscuit from the remaining bytes of a buffer
+     *
+     * @see #from_bytes(ByteBuffer, org.biscuitsec.biscuit.crypto.PublicKey)
+     */
+    static public SerializedBiscuit from_bytes(ByteBuffer slice, KeyDelegate delegate) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
+        SerializedBiscuit b = BiscuitDecoder.decode(slice);
 
-            Option<org.biscuitsec.biscuit.crypto.PublicKey> root = delegate.root_key(root_key_id);
-            if (root.isEmpty()) {
-                throw new InvalidKeyException("unknown root key id");
-            }
+        Option<org.biscuitsec.biscuit.crypto.PublicKey> root = delegate.root_key(b.root_key_id);
+        if (root.isEmpty()) {
+            throw new InvalidKeyException("unknown root key id");
+        }
 
-            return from_bytes_inner(data, root.get());
-        } catch (InvalidProtocolBufferException e) {
-            throw new Error.FormatError.DeserializationError(e.toString());
+        return from_bytes_inner(b, root.get());
+    }
+
+    /**
+     * Deserializes a SerializedBiscuit from a byte array, reusing the signatures the cache already verified
+     *
+     * @see #verify(org.biscuitsec.biscuit.crypto.PublicKey, SignatureChainCache)
+     */
+    static public SerializedBiscuit from_bytes(byte[] slice, org.biscuitsec.biscuit.crypto.PublicKey root, SignatureChainCache cache) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
+        SerializedBiscuit b = BiscuitDecoder.decode(ByteBuffer.wrap(slice));
+
+        Either<Error, Void> res = b.verify(root, cache);
+        if (res.isLeft()) {
+            throw res.getLeft();
         }
+        return b;
     }
 
-    static SerializedBiscuit from_bytes_inner(Schema.Biscuit data, org.biscuitsec.biscuit.crypto.PublicKey root) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
-        SerializedBiscuit b = SerializedBiscuit.deserialize(data);
-        if (data.hasRootKeyId()) {
-            b.root_key_id = Option.some(data.getRootKeyId());
+    /**
+     * Deserializes multiple SerializedBiscuit with the same root key, verifying their signatures on the calling thread
+     * <p>
+     * A token that fails to deserialize or verify does not affect the others
+     *
+     * @param slices
+     * @return the deserialized token or the error, for each slice in the same order
+     */
+    static public List<Either<Error, SerializedBiscuit>> from_bytes(List<byte[]> slices, org.biscuitsec.biscuit.crypto.PublicKey root) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+        return from_bytes_batch(slices, root, Option.none());
+    }
+
+    /**
+     * Deserializes multiple SerializedBiscuit with the same root key, verifying all their signatures
+     * concurrently on the executor
+     *
+     * @param slices
+     * @return the deserialized token or the error, for each slice in the same order
+     * @see SignatureBatch#verify(Executor)
+     */
+    static public List<Either<Error, SerializedBiscuit>> from_bytes(List<byte[]> slices, org.biscuitsec.biscuit.crypto.PublicKey root, Executor executor) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+        return from_bytes_batch(slices, root, Option.some(executor));
+    }
+
+    static List<Either<Error, SerializedBiscuit>> from_bytes_batch(List<byte[]> slices, org.biscuitsec.biscuit.crypto.PublicKey root, Option<Executor> executor) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+        List<Either<Error, SerializedBiscuit>> results = new ArrayList<>();
+        List<SerializedBiscuit> tokens = new ArrayList<>();
+        for (byte[] slice : slices) {
+            try {
+                SerializedBiscuit b = BiscuitDecoder.decode(ByteBuffer.wrap(slice));
+                tokens.add(b);
+                results.add(Right(b));
+            } catch (Error.FormatError.DeserializationError e) {
+                results.add(Left(e));
+            }
         }
 
+        SignatureBatch batch = batch(tokens, root);
+        Iterator<Either<Error, Void>> verified = (executor.isDefined() ? batch.verify(executor.get()) : batch.verify()).iterator();
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i).isRight()) {
+                Either<Error, Void> res = verified.next();
+                if (res.isLeft()) {
+                    results.set(i, Left(res.getLeft()));
+                }
+            }
+        }
+        return results;
+    }
+
+    static SerializedBiscuit from_bytes_inner(SerializedBiscuit b, org.biscuitsec.biscuit.crypto.PublicKey root) throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
         Either<Error, Void> res = b.verify(root);
         if (res.isLeft()) {
             throw res.getLeft();
@@ -102,22 +170,32 @@ public class SerializedBiscuit {
      * @throws Error.FormatError.DeserializationError
      */
     static public SerializedBiscuit unsafe_deserialize(byte[] slice) throws Error.FormatError.DeserializationError {
-        try {
-            Schema.Biscuit data = Schema.Biscuit.parseFrom(slice);
-            return SerializedBiscuit.deserialize(data);
-        } catch (InvalidProtocolBufferException e) {
-            throw new Error.FormatError.DeserializationError(e.toString());
-        }
+        return unsafe_deserialize(ByteBuffer.wrap(slice));
+    }
+
+    /**
+     * Warning: this deserializes without verifying the signature
+     * <p>
+     * The remaining bytes of the buffer are parsed without modifying its position
+     *
+     * @param slice
+     * @return SerializedBiscuit
+     * @throws Error.FormatError.DeserializationError
+     */
+    static public SerializedBiscuit unsafe_deserialize(ByteBuffer slice) throws Error.FormatError.DeserializationError {
+        return BiscuitDecoder.decode(slice);
     }
 
     /**
      * Warning: this deserializes without verifying the signature
+     * <p>
+     * Tokens are decoded by {@link BiscuitDecoder}, which falls back to this method for the inputs it does not handle
      *
      * @param data
      * @return SerializedBiscuit
      * @throws Error.FormatError.DeserializationError
      */
-    static private SerializedBiscuit deserialize(Schema.Biscuit data) throws Error.FormatError.DeserializationError {
+    static SerializedBiscuit deserialize(Schema.Biscuit data) throws Error.FormatError.DeserializationError {
         if(data.getAuthority().hasExternalSignature()) {
             throw new Error.FormatError.DeserializationError("the authority block must not contain an external signature");
         }
@@ -303,7 +381,6 @@ public class SerializedBiscuit {
 
     public Either<Error, Void> verify(org.biscuitsec.biscuit.crypto.PublicKey root) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
         org.biscuitsec.biscuit.crypto.PublicKey current_key = root;
-        ByteBuffer algo_buf = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
         {
             Either<Error, org.biscuitsec.biscuit.crypto.PublicKey> res = verifyBlockSignature(this.authority, current_key);
             if(res.isRight()) {
@@ -324,6 +401,46 @@ public class SerializedBiscuit {
 
         //System.out.println("signatures verified, checking proof");
 
+        return this.verifyProof(current_key);
+    }
+
+    /**
+     * Verifies the token, skipping the signatures of the longest prefix of its chain that the cache already verified
+     * <p>
+     * The prefixes verified here are added to the cache, the final proof is always verified.
+     */
+    public Either<Error, Void> verify(org.biscuitsec.biscuit.crypto.PublicKey root, SignatureChainCache cache) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        List<SignedBlock> chain = new ArrayList<>();
+        chain.add(this.authority);
+        chain.addAll(this.blocks);
+        String[] hashes = SignatureChainCache.hashes(root, chain);
+
+        org.biscuitsec.biscuit.crypto.PublicKey current_key = root;
+        Tuple2<Integer, org.biscuitsec.biscuit.crypto.PublicKey> resumed = cache.resume(hashes);
+        if (resumed._1 > 0) {
+            current_key = resumed._2;
+        }
+
+        for (int i = resumed._1; i < chain.size(); i++) {
+            Either<Error, org.biscuitsec.biscuit.crypto.PublicKey> res = verifyBlockSignature(chain.get(i), current_key);
+            if(res.isRight()) {
+                current_key = res.get();
+                cache.store(hashes[i], current_key);
+            } else {
+                return Left(res.getLeft());
+            }
+        }
+
+        return this.verifyProof(current_key);
+    }
+
+    /**
+     * verifies the final proof, once the signatures are verified
+     *
+     * @param current_key the next key of the last block
+     */
+    private Either<Error, Void> verifyProof(org.biscuitsec.biscuit.crypto.PublicKey current_key) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        ByteBuffer algo_buf = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
         if (!this.proof.secretKey.isEmpty()) {
             //System.out.println("checking secret key");
             //System.out.println("current key: "+current_key.toHex());
@@ -373,6 +490,90 @@ public class SerializedBiscuit {
         }
     }
 
+    /**
+     * Verifies the token with its signatures checked concurrently on the executor
+     * <p>
+     * The result is the same as {@link #verify(org.biscuitsec.biscuit.crypto.PublicKey)}. As each signature is
+     * only a fraction of a millisecond, this is worth it for long chains or with {@link #verify(List, org.biscuitsec.biscuit.crypto.PublicKey, Executor)}
+     *
+     * @see SignatureBatch#verify(Executor)
+     */
+    public Either<Error, Void> verify(org.biscuitsec.biscuit.crypto.PublicKey root, Executor executor) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        return batch(Collections.singletonList(this), root).verify(executor).get(0);
+    }
+
+    /**
+     * Verifies multiple tokens with the same root key, with their signatures checked concurrently on the executor
+     *
+     * @return the verification result of each token, in the same order
+     * @see SignatureBatch#verify(Executor)
+     */
+    static public List<Either<Error, Void>> verify(List<SerializedBiscuit> tokens, org.biscuitsec.biscuit.crypto.PublicKey root, Executor executor) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        return batch(tokens, root).verify(executor);
+    }
+
+    static SignatureBatch batch(List<SerializedBiscuit> tokens, org.biscuitsec.biscuit.crypto.PublicKey root) {
+        SignatureBatch batch = new SignatureBatch();
+        for (SerializedBiscuit token : tokens) {
+            token.addSignatures(root, batch);
+            batch.endToken();
+        }
+        return batch;
+    }
+
+    /**
+     * Adds the signatures of the authority block, the following blocks, their external
+     * signatures and the final proof to the batch, with the errors {@link #verify(org.biscuitsec.biscuit.crypto.PublicKey)}
+     * reports for them
+     */
+    void addSignatures(org.biscuitsec.biscuit.crypto.PublicKey root, SignatureBatch batch) {
+        org.biscuitsec.biscuit.crypto.PublicKey current_key = root;
+
+        current_key = addBlockSignatures(this.authority, current_key, batch);
+        for (SignedBlock b : this.blocks) {
+            current_key = addBlockSignatures(b, current_key, batch);
+        }
+
+        if (!this.proof.secretKey.isEmpty()) {
+            if (!this.proof.secretKey.get().public_key().equals(current_key)) {
+                batch.fail(new Error.FormatError.Signature.InvalidSignature("signature error: Verification equation was not satisfied"));
+            }
+        } else {
+            SignedBlock b;
+            if (this.blocks.isEmpty()) {
+                b = this.authority;
+            } else {
+                b = this.blocks.get(this.blocks.size() - 1);
+            }
+
+            batch.add(current_key, this.proof.signature.get(), new Error.FormatError.Signature.SealedSignature(),
+                    b.block, SignatureBatch.algorithm(b.key), b.key.toBytes(), b.signature);
+        }
+    }
+
+    static org.biscuitsec.biscuit.crypto.PublicKey addBlockSignatures(SignedBlock signedBlock, org.biscuitsec.biscuit.crypto.PublicKey publicKey,
+                                                                     SignatureBatch batch) {
+        org.biscuitsec.biscuit.crypto.PublicKey next_key = signedBlock.key;
+
+        if (signedBlock.signature.length != 64) {
+            batch.fail(new Error.FormatError.Signature.InvalidSignatureSize(signedBlock.signature.length));
+        } else if (signedBlock.externalSignature.isDefined()) {
+            ExternalSignature externalSignature = signedBlock.externalSignature.get();
+            batch.add(publicKey, signedBlock.signature,
+                    new Error.FormatError.Signature.InvalidSignature("signature error: Verification equation was not satisfied"),
+                    signedBlock.block, externalSignature.signature, SignatureBatch.algorithm(next_key), next_key.toBytes());
+            batch.add(externalSignature.key, externalSignature.signature,
+                    new Error.FormatError.Signature.InvalidSignature("external signature error: Verification equation was not satisfied"),
+                    signedBlock.block, SignatureBatch.algorithm(publicKey), publicKey.toBytes());
+        } else {
+            batch.add(publicKey, signedBlock.signature,
+                    new Error.FormatError.Signature.InvalidSignature("signature error: Verification equation was not satisfied"),
+                    signedBlock.block, SignatureBatch.algorithm(next_key), next_key.toBytes());
+        }
+
+        return next_key;
+    }
+
     static Either<Error, org.biscuitsec.biscuit.crypto.PublicKey> verifyBlockSignature(SignedBlock signedBlock, org.biscuitsec.biscuit.crypto.PublicKey publicKey)
             throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
 
@@ -419,8 +620,18 @@ public class SerializedBiscuit {
     }
 
     public Tuple2<Block, ArrayList<Block>> extractBlocks(SymbolTable symbols) throws Error {
+        return extractBlocks(symbols, null);
+    }
+
+    /**
+     * Decodes the blocks, reusing the blocks already in the cache. The decoded blocks are added to the cache,
+     * so it must only be used for tokens whose signatures were verified
+     *
+     * @param cache null to decode all the blocks
+     */
+    public Tuple2<Block, ArrayList<Block>> extractBlocks(SymbolTable symbols, BlockCache cache) throws Error {
         ArrayList<Option<org.biscuitsec.biscuit.crypto.PublicKey>> blockExternalKeys = new ArrayList<>();
-        Either<Error.FormatError, Block> authRes = Block.from_bytes(this.authority.block, Option.none());
+        Either<Error.FormatError, Block> authRes = decode(this.authority, Option.none(), cache);
         if (authRes.isLeft()) {
             throw authRes.getLeft();
         }
@@ -440,7 +651,7 @@ public class SerializedBiscuit {
             if(bdata.externalSignature.isDefined()) {
                 externalKey = Option.some(bdata.externalSignature.get().key);
             }
-            Either<Error.FormatError, Block> blockRes = Block.from_bytes(bdata.block, externalKey);
+            Either<Error.FormatError, Block> blockRes = decode(bdata, externalKey, cache);
             if (blockRes.isLeft()) {
                 throw blockRes.getLeft();
             }
@@ -466,6 +677,14 @@ public class SerializedBiscuit {
         return new Tuple2<>(authority, blocks);
     }
 
+    private static Either<Error.FormatError, Block> decode(SignedBlock signedBlock, Option<org.biscuitsec.biscuit.crypto.PublicKey> externalKey,
+                                                           BlockCache cache) {
+        if (cache == null) {
+            return Block.from_bytes(signedBlock.block, externalKey);
+        }
+        return cache.from_bytes(signedBlock, externalKey);
+    }
+
     public Either<Error, Void> seal() throws InvalidKeyException, NoSuchAlgorithmException, SignatureException {
         if (this.proof.secretKey.isEmpty()) {
             return Left(new Error.Sealed());
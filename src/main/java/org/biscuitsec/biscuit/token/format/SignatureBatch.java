@@ -0,0 +1,218 @@
+package org.biscuitsec.biscuit.token.format;
+
+import io.vavr.control.Either;
+import org.biscuitsec.biscuit.crypto.KeyPair;
+import org.biscuitsec.biscuit.crypto.PublicKey;
+import org.biscuitsec.biscuit.error.Error;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.vavr.API.Left;
+import static io.vavr.API.Right;
+
+/**
+ * Signatures collected from one or more tokens, to be verified together
+ * <p>
+ * In a token, the key verifying each block's signature is carried by the previous block, so all
+ * the signatures of a chain (authority, blocks, external signatures and the final proof) are known
+ * before verifying any of them. Each signature is added with the error reported if it is invalid,
+ * in the order {@link SerializedBiscuit#verify(PublicKey)} checks them, so the result of each token
+ * is the error of its first invalid signature, without verifying the token again.
+ * <p>
+ * The signatures are verified one by one, on the calling thread or spread over an executor given by the caller.
+ */
+public class SignatureBatch {
+    private final List<Entry> entries;
+    // end of the entries of each token, exclusive
+    private final List<Integer> ends;
+
+    public SignatureBatch() {
+        this.entries = new ArrayList<>();
+        this.ends = new ArrayList<>();
+    }
+
+    /**
+     * adds a signature of the concatenation of the message parts
+     * <p>
+     * The parts are not copied, they are given to the verifier one after the other
+     *
+     * @param error reported if the signature is invalid
+     */
+    void add(PublicKey key, byte[] signature, Error error, byte[]... message) {
+        this.entries.add(new Entry(key, message, signature, error));
+    }
+
+    /**
+     * adds a check that failed without verifying a signature
+     */
+    void fail(Error error) {
+        this.entries.add(new Entry(null, null, null, error));
+    }
+
+    /**
+     * ends the signatures of the current token
+     */
+    void endToken() {
+        this.ends.add(this.entries.size());
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Verifies the signatures on the calling thread
+     *
+     * @return the verification result of each token, in the order they were added
+     */
+    public List<Either<Error, Void>> verify() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        List<Either<Error, Void>> results = new ArrayList<>();
+        int start = 0;
+        for (int end : this.ends) {
+            Entry failed = null;
+            for (int i = start; i < end && failed == null; i++) {
+                Entry e = this.entries.get(i);
+                e.verify();
+                if (!e.valid) {
+                    failed = e;
+                }
+            }
+            results.add(result(failed));
+            start = end;
+        }
+        return results;
+    }
+
+    /**
+     * Verifies the signatures concurrently on the executor
+     * <p>
+     * The calling thread verifies signatures too, and only waits for the ones already being verified by
+     * the executor's threads, so a bounded or busy executor delays the verification but cannot block it.
+     * If the executor rejects a task, its signatures are verified on the calling thread.
+     *
+     * @return the verification result of each token, in the order they were added
+     */
+    public List<Either<Error, Void>> verify(Executor executor) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        int size = this.entries.size();
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch verified = new CountDownLatch(size);
+        Runnable worker = () -> {
+            int i;
+            while ((i = next.getAndIncrement()) < size) {
+                this.entries.get(i).verify();
+                verified.countDown();
+            }
+        };
+
+        int helpers = Math.min(size, Runtime.getRuntime().availableProcessors()) - 1;
+        for (int h = 0; h < helpers; h++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        worker.run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                verified.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Either<Error, Void>> results = new ArrayList<>();
+        int start = 0;
+        for (int end : this.ends) {
+            Entry failed = null;
+            for (int i = start; i < end && failed == null; i++) {
+                if (!this.entries.get(i).valid) {
+                    failed = this.entries.get(i);
+                }
+            }
+            results.add(result(failed));
+            start = end;
+        }
+        return results;
+    }
+
+    private static Either<Error, Void> result(Entry failed) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        if (failed == null) {
+            return Right(null);
+        }
+        if (failed.exception instanceof NoSuchAlgorithmException) {
+            throw (NoSuchAlgorithmException) failed.exception;
+        }
+        if (failed.exception instanceof InvalidKeyException) {
+            throw (InvalidKeyException) failed.exception;
+        }
+        if (failed.exception instanceof SignatureException) {
+            throw (SignatureException) failed.exception;
+        }
+        if (failed.exception != null) {
+            throw new SignatureException(failed.exception);
+        }
+        return Left(failed.error);
+    }
+
+    static byte[] algorithm(PublicKey key) {
+        ByteBuffer algo_buf = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        algo_buf.putInt(key.algorithm.getNumber());
+        return algo_buf.array();
+    }
+
+    private static final class Entry {
+        final PublicKey key;
+        final byte[][] message;
+        final byte[] signature;
+        final Error error;
+
+        // written by the verifying thread, read after the batch's latch or on the same thread
+        boolean valid;
+        GeneralSecurityException exception;
+
+        Entry(PublicKey key, byte[][] message, byte[] signature, Error error) {
+            this.key = key;
+            this.message = message;
+            this.signature = signature;
+            this.error = error;
+        }
+
+        void verify() {
+            if (this.key == null) {
+                this.valid = false;
+                return;
+            }
+            try {
+                Signature sgr = KeyPair.generateSignature(this.key.algorithm);
+                sgr.initVerify(this.key.key);
+                for (byte[] part : this.message) {
+                    sgr.update(part);
+                }
+                this.valid = sgr.verify(this.signature);
+            } catch (GeneralSecurityException e) {
+                // thrown by the serial verification too, like a signature with the wrong length
+                this.valid = false;
+                this.exception = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.biscuitsec.biscuit.token.format;
+
+import io.vavr.Tuple2;
+import org.biscuitsec.biscuit.crypto.PublicKey;
+import org.biscuitsec.biscuit.token.LruCache;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of verified signature chain prefixes, for tokens attenuated from the same parent token
+ * <p>
+ * A prefix is a root key followed by the first signed blocks of a token, starting with the authority block.
+ * It is keyed by a SHA-256 hash chained over the root key and the whole content of each block: the block
+ * itself, its next key, its signature and its external signature, so a prefix only matches tokens carrying
+ * exactly the same signed data. Once the signatures of a prefix are verified, the cache maps it to the next
+ * key of its last block, which verifies the following block. {@link SerializedBiscuit#verify(PublicKey, SignatureChainCache)}
+ * then only verifies the blocks after the longest cached prefix, and the final proof.
+ * <p>
+ * The cache is bounded and evicts the prefixes that were not used recently.
+ */
+public class SignatureChainCache {
+    private final LruCache<String, PublicKey> prefixes;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong skippedBlocks;
+
+    /**
+     * @param maxSize maximum number of prefixes kept
+     */
+    public SignatureChainCache(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("negative signature cache size: " + maxSize);
+        }
+        this.prefixes = new LruCache<>(maxSize);
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.skippedBlocks = new AtomicLong();
+    }
+
+    /**
+     * @return the hash of each prefix of the chain, the first one ending with the first block
+     */
+    static String[] hashes(PublicKey root, List<SignedBlock> chain) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        String[] hashes = new String[chain.size()];
+
+        update(digest, SignatureBatch.algorithm(root));
+        update(digest, root.toBytes());
+        byte[] previous = digest.digest();
+        for (int i = 0; i < chain.size(); i++) {
+            SignedBlock b = chain.get(i);
+            update(digest, previous);
+            update(digest, b.block);
+            update(digest, SignatureBatch.algorithm(b.key));
+            update(digest, b.key.toBytes());
+            update(digest, b.signature);
+            if (b.externalSignature.isDefined()) {
+                update(digest, SignatureBatch.algorithm(b.externalSignature.get().key));
+                update(digest, b.externalSignature.get().key.toBytes());
+                update(digest, b.externalSignature.get().signature);
+            }
+            previous = digest.digest();
+            hashes[i] = org.biscuitsec.biscuit.token.builder.Utils.byteArrayToHexString(previous);
+        }
+        return hashes;
+    }
+
+    // length prefixed, so the boundaries between fields are part of the hash
+    private static void update(MessageDigest digest, byte[] data) {
+        digest.update(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(data.length).array());
+        digest.update(data);
+    }
+
+    /**
+     * @param hashes the prefix hashes of a chain
+     * @return the number of blocks of the longest cached prefix, and the key verifying the next block
+     */
+    Tuple2<Integer, PublicKey> resume(String[] hashes) {
+        for (int i = hashes.length - 1; i >= 0; i--) {
+            PublicKey next = this.prefixes.get(hashes[i]);
+            if (next != null) {
+                this.hits.incrementAndGet();
+                this.skippedBlocks.addAndGet(i + 1);
+                return new Tuple2<>(i + 1, next);
+            }
+        }
+        this.misses.incrementAndGet();
+        return new Tuple2<>(0, null);
+    }
+
+    /**
+     * records a prefix whose signatures were all verified
+     */
+    void store(String hash, PublicKey next) {
+        this.prefixes.put(hash, next);
+    }
+
+    public void clear() {
+        this.prefixes.clear();
+    }
+
+    public int size() {
+        return this.prefixes.size();
+    }
+
+    /**
+     * @return number of verifications that started after a cached prefix
+     */
+    public long hits() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return number of verifications that started from the root key
+     */
+    public long misses() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return number of prefixes dropped because the cache was full
+     */
+    public long evictions() {
+        return this.prefixes.evictions();
+    }
+
+    /**
+     * @return number of block signatures that were not verified again thanks to the cache
+     */
+    public long skippedBlocks() {
+        return this.skippedBlocks.get();
+    }
+}
@@ -1,7 +1,9 @@
 package org.biscuitsec.biscuit.datalog;
 
+import org.biscuitsec.biscuit.datalog.expressions.CompiledExpression;
 import org.biscuitsec.biscuit.datalog.expressions.Expression;
 import org.biscuitsec.biscuit.datalog.expressions.Op;
+import org.biscuitsec.biscuit.datalog.expressions.RegexCache;
 import org.biscuitsec.biscuit.error.Error;
 import org.junit.jupiter.api.Test;
 
@@ -11,6 +13,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class ExpressionTest {
 
@@ -139,4 +142,99 @@ public class ExpressionTest {
                 e.evaluate(new HashMap<>(), new TemporarySymbolTable(symbols))
         );
     }
+
+    @Test
+    public void testRegexCache() throws Error.Execution {
+        SymbolTable symbols = new SymbolTable();
+        symbols.add("/api/v2/users");
+        symbols.add("^/api/v[0-9]+/");
+
+        Expression e = new Expression(new ArrayList<>(Arrays.asList(
+                new Op.Value(new Term.Str(SymbolTable.DEFAULT_SYMBOLS_OFFSET)),
+                new Op.Value(new Term.Str(SymbolTable.DEFAULT_SYMBOLS_OFFSET + 1)),
+                new Op.Binary(Op.BinaryOp.Regex)
+        )));
+
+        RegexCache.configure(16);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(
+                    new Term.Bool(true),
+                    e.evaluate(new HashMap<>(), new TemporarySymbolTable(symbols))
+            );
+        }
+        assertEquals(1, RegexCache.get().misses());
+        assertEquals(2, RegexCache.get().hits());
+
+        // compiled expressions keep the pattern of a string literal
+        CompiledExpression compiled = CompiledExpression.compile(e, new int[]{-1, -1, -1});
+        for (int i = 0; i < 3; i++) {
+            assertEquals(
+                    new Term.Bool(true),
+                    compiled.evaluate(new Term[0], new TemporarySymbolTable(symbols))
+            );
+        }
+        assertEquals(3, RegexCache.get().hits());
+        RegexCache.configure(RegexCache.DEFAULT_MAX_SIZE);
+
+        // least recently used patterns are evicted first
+        RegexCache cache = new RegexCache(2);
+        cache.compile("a");
+        cache.compile("b");
+        cache.compile("a");
+        cache.compile("c");
+        assertEquals(2, cache.size());
+        cache.compile("a");
+        assertEquals(2, cache.hits());
+        cache.compile("b");
+        assertEquals(4, cache.misses());
+    }
+
+    @Test
+    public void testCompiled() throws Error.Execution {
+        SymbolTable symbols = new SymbolTable();
+        long var = SymbolTable.DEFAULT_SYMBOLS_OFFSET;
+
+        // $var * 2 + 1 > 10 && !($var == 0)
+        Expression e = new Expression(new ArrayList<>(Arrays.asList(
+                new Op.Value(new Term.Variable(var)),
+                new Op.Value(new Term.Integer(2)),
+                new Op.Binary(Op.BinaryOp.Mul),
+                new Op.Value(new Term.Integer(1)),
+                new Op.Binary(Op.BinaryOp.Add),
+                new Op.Value(new Term.Integer(10)),
+                new Op.Binary(Op.BinaryOp.GreaterThan),
+                new Op.Value(new Term.Variable(var)),
+                new Op.Value(new Term.Integer(0)),
+                new Op.Binary(Op.BinaryOp.Equal),
+                new Op.Unary(Op.UnaryOp.Parens),
+                new Op.Unary(Op.UnaryOp.Negate),
+                new Op.Binary(Op.BinaryOp.And)
+        )));
+        int[] slots = new int[]{0, -1, -1, -1, -1, -1, -1, 0, -1, -1, -1, -1, -1};
+        CompiledExpression compiled = CompiledExpression.compile(e, slots);
+
+        for (Term value : Arrays.asList(new Term.Integer(0), new Term.Integer(5), new Term.Integer(6))) {
+            Term[] frame = new Term[]{value};
+            assertEquals(
+                    e.evaluate(frame, slots, new TemporarySymbolTable(symbols)),
+                    compiled.evaluate(frame, new TemporarySymbolTable(symbols))
+            );
+        }
+
+        // operands of the wrong type give the same error as the interpreter
+        Expression add = new Expression(new ArrayList<>(Arrays.asList(
+                new Op.Value(new Term.Variable(var)),
+                new Op.Value(new Term.Integer(1)),
+                new Op.Binary(Op.BinaryOp.Add)
+        )));
+        Term[] frame = new Term[]{new Term.Bool(true)};
+        assertEquals(
+                new Error.Execution(add, "execution").toString(),
+                assertThrows(Error.Execution.class, () -> CompiledExpression.compile(add, new int[]{0, -1, -1}).evaluate(frame, new TemporarySymbolTable(symbols))).toString()
+        );
+
+        Term[] overflow = new Term[]{new Term.Integer(Long.MAX_VALUE)};
+        Error.Execution error = assertThrows(Error.Execution.class, () -> compiled.evaluate(overflow, new TemporarySymbolTable(symbols)));
+        assertEquals(new Error.Execution(Error.Execution.Kind.Overflow, "overflow").toJson(), error.toJson());
+    }
 }
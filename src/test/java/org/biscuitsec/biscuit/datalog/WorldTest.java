@@ -3,14 +3,20 @@ package org.biscuitsec.biscuit.datalog;
 import org.biscuitsec.biscuit.datalog.expressions.Expression;
 import org.biscuitsec.biscuit.datalog.expressions.Op;
 import org.biscuitsec.biscuit.error.Error;
+import io.vavr.Tuple2;
 import org.junit.jupiter.api.Test;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.lang.System.out;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class WorldTest {
 
@@ -436,4 +442,493 @@ public class WorldTest {
         res.stream().forEachOrdered(fact -> out.println("\t" + syms.print_fact(fact)));
         assertEquals(0, res.size());
     }
+
+    @Test
+    public void testRecursiveRules() throws Error {
+        final World w = new World();
+        final SymbolTable syms = new SymbolTable();
+
+        final long edge = syms.insert("edge");
+        final long path = syms.insert("path");
+        final Term n0 = syms.add("n0");
+        final Term n1 = syms.add("n1");
+        final Term n2 = syms.add("n2");
+        final Term n3 = syms.add("n3");
+        final Term x = new Term.Variable(syms.insert("x"));
+        final Term y = new Term.Variable(syms.insert("y"));
+        final Term z = new Term.Variable(syms.insert("z"));
+
+        w.add_fact(new Origin(0), new Fact(new Predicate(edge, Arrays.asList(n0, n1))));
+        w.add_fact(new Origin(1), new Fact(new Predicate(edge, Arrays.asList(n1, n2))));
+        w.add_fact(new Origin(0), new Fact(new Predicate(edge, Arrays.asList(n2, n3))));
+
+        w.add_rule((long) 0, new TrustedOrigins(0, 1), new Rule(new Predicate(path, Arrays.asList(x, y)),
+                List.of(new Predicate(edge, Arrays.asList(x, y))), new ArrayList<>()));
+        w.add_rule((long) 0, new TrustedOrigins(0, 1), new Rule(new Predicate(path, Arrays.asList(x, z)),
+                Arrays.asList(new Predicate(path, Arrays.asList(x, y)), new Predicate(edge, Arrays.asList(y, z))),
+                new ArrayList<>()));
+        w.run(syms);
+
+        final Rule query = new Rule(new Predicate(path, Arrays.asList(x, y)),
+                List.of(new Predicate(path, Arrays.asList(x, y))), new ArrayList<>());
+        final FactSet res = w.query_rule(query, (long) 0, new TrustedOrigins(0, 1), syms);
+        res.stream().forEachOrdered(fact -> out.println("\t" + syms.print_fact(fact)));
+
+        final Origin o0 = new Origin(0);
+        final Origin o01 = new Origin(0);
+        o01.add(1);
+        final FactSet expected = new FactSet();
+        expected.add(o0, new Fact(new Predicate(path, Arrays.asList(n0, n1))));
+        expected.add(o01, new Fact(new Predicate(path, Arrays.asList(n1, n2))));
+        expected.add(o0, new Fact(new Predicate(path, Arrays.asList(n2, n3))));
+        expected.add(o01, new Fact(new Predicate(path, Arrays.asList(n0, n2))));
+        expected.add(o01, new Fact(new Predicate(path, Arrays.asList(n1, n3))));
+        expected.add(o01, new Fact(new Predicate(path, Arrays.asList(n0, n3))));
+        assertEquals(expected, res);
+
+        // a longer chain needs one iteration per edge and must stay within the iteration limit
+        final World chain = new World();
+        final int length = 40;
+        for (int i = 0; i < length; i++) {
+            chain.add_fact(new Origin(0), new Fact(new Predicate(edge, Arrays.asList(new Term.Integer(i), new Term.Integer(i + 1)))));
+        }
+        for (Tuple2<Long, Rule> t : w.rules().rules.values().stream().flatMap(List::stream).collect(Collectors.toList())) {
+            chain.add_rule(t._1, new TrustedOrigins(0), t._2);
+        }
+        chain.run(new RunLimits(5000, 100, Duration.ofSeconds(5)), syms);
+        assertEquals(length + length * (length + 1) / 2, chain.facts().size());
+    }
+
+    @Test
+    public void testIndexedLookup() {
+        final SymbolTable syms = new SymbolTable();
+        final long acl = syms.insert("acl");
+        final Term read = syms.add("read");
+        final Term write = syms.add("write");
+        final Term user = new Term.Variable(syms.insert("user"));
+
+        final FactSet facts = new FactSet();
+        for (int i = 0; i < 100; i++) {
+            facts.add(Origin.authorizer(), new Fact(new Predicate(acl, Arrays.asList(new Term.Integer(i), read))));
+        }
+        facts.add(Origin.authorizer(), new Fact(new Predicate(acl, Arrays.asList(new Term.Integer(7), write))));
+        facts.add(new Origin(0), new Fact(new Predicate(acl, Arrays.asList(new Term.Integer(8), write))));
+        facts.add(Origin.authorizer(), new Fact(new Predicate(acl, Arrays.asList(new Term.Integer(9)))));
+
+        final TrustedOrigins authority = new TrustedOrigins(0);
+        final TrustedOrigins all = TrustedOrigins.defaultOrigins();
+
+        // the arity is part of the lookup
+        assertEquals(102, facts.stream(all, new Predicate(acl, Arrays.asList(user, user))).count());
+        assertEquals(1, facts.stream(all, new Predicate(acl, Arrays.asList(user))).count());
+
+        // constants narrow down the candidates, and the origins are still filtered
+        assertEquals(1, facts.stream(authority, new Predicate(acl, Arrays.asList(user, write))).count());
+        assertEquals(2, facts.stream(all, new Predicate(acl, Arrays.asList(user, write))).count());
+        assertEquals(1, facts.stream(all, new Predicate(acl, Arrays.asList(new Term.Integer(7), write))).count());
+        assertEquals(0, facts.stream(all, new Predicate(syms.insert("other"), Arrays.asList(user, write))).count());
+
+        // the index is kept up to date after it was built
+        facts.add(Origin.authorizer(), new Fact(new Predicate(acl, Arrays.asList(new Term.Integer(200), write))));
+        assertEquals(3, facts.stream(all, new Predicate(acl, Arrays.asList(user, write))).count());
+    }
+
+    @Test
+    public void testHashJoinMatchesCombinator() {
+        final SymbolTable syms = new SymbolTable();
+        final long right = syms.insert("right");
+        final long member = syms.insert("member");
+        final long owner = syms.insert("owner");
+        final Term read = syms.add("read");
+        final Term write = syms.add("write");
+        final Term user = new Term.Variable(syms.insert("user"));
+        final Term group = new Term.Variable(syms.insert("group"));
+        final Term resource = new Term.Variable(syms.insert("resource"));
+        final Term op = new Term.Variable(syms.insert("op"));
+
+        final FactSet facts = new FactSet();
+        for (int i = 0; i < 50; i++) {
+            facts.add(new Origin(i % 3), new Fact(new Predicate(member, Arrays.asList(new Term.Integer(i), new Term.Integer(i % 5)))));
+            facts.add(new Origin(0), new Fact(new Predicate(right, Arrays.asList(new Term.Integer(i % 5), new Term.Integer(i), i % 2 == 0 ? read : write))));
+            facts.add(new Origin(1), new Fact(new Predicate(owner, Arrays.asList(new Term.Integer(i), new Term.Integer(i)))));
+        }
+        facts.add(new Origin(1), new Fact(new Predicate(owner, Arrays.asList(new Term.Integer(3), new Term.Integer(4)))));
+
+        final List<Predicate> body = Arrays.asList(
+                new Predicate(right, Arrays.asList(group, resource, op)),
+                new Predicate(member, Arrays.asList(user, group)),
+                new Predicate(owner, Arrays.asList(user, user)));
+        final TrustedOrigins scope = new TrustedOrigins(0, 1, 2);
+        final Function<Predicate, Stream<Tuple2<Origin, Fact>>> lookup = p -> facts.stream(scope, p);
+
+        final List<Tuple2<Origin, Map<Long, Term>>> expected = new ArrayList<>();
+        new Combinator(new MatchedVariables(new HashSet<>(Arrays.asList(
+                ((Term.Variable) user).value(), ((Term.Variable) group).value(),
+                ((Term.Variable) resource).value(), ((Term.Variable) op).value()))),
+                body, Collections.nCopies(body.size(), lookup), syms).forEachRemaining(expected::add);
+        final List<Tuple2<Origin, Map<Long, Term>>> res = new ArrayList<>();
+        new HashJoin(body, Collections.nCopies(body.size(), lookup)).forEachRemaining(res::add);
+
+        assertEquals(500, expected.size());
+        assertEquals(new HashSet<>(expected), new HashSet<>(res));
+        assertEquals(expected.size(), res.size());
+    }
+
+    @Test
+    public void testFindMatchReadsCandidatesLazily() throws Error {
+        final SymbolTable syms = new SymbolTable();
+        final long user = syms.insert("user");
+        final long right = syms.insert("right");
+        final long allowed = syms.insert("allowed");
+        final Term read = syms.add("read");
+        final Term u = new Term.Variable(syms.insert("u"));
+
+        final World w = new World();
+        for (int i = 0; i < 1000; i++) {
+            w.add_fact(new Origin(0), new Fact(new Predicate(user, Arrays.asList(new Term.Integer(i)))));
+            w.add_fact(new Origin(0), new Fact(new Predicate(right, Arrays.asList(new Term.Integer(i), read))));
+        }
+        final Rule rule = new Rule(new Predicate(allowed, Arrays.asList(u)),
+                Arrays.asList(new Predicate(user, Arrays.asList(u)), new Predicate(right, Arrays.asList(u, read))),
+                new ArrayList<>());
+        final Rule users = new Rule(new Predicate(allowed, Arrays.asList(u)),
+                Arrays.asList(new Predicate(user, Arrays.asList(u))), new ArrayList<>());
+        final TrustedOrigins scope = new TrustedOrigins(0);
+        final RunLimits limits = new RunLimits(5000, 100, Duration.ofSeconds(5));
+
+        // the first user matches, the other users are not read
+        final Budget match = new Budget(limits);
+        assertEquals(true, w.query_match(users, 0L, scope, syms, match));
+        final Budget all = new Budget(limits);
+        assertEquals(true, w.query_match_all(users, scope, syms, all));
+        assertEquals(true, match.consumed() < 10);
+        assertEquals(2000, all.consumed());
+
+        // the facts are looked up by name, even when they are all given for each predicate
+        @SuppressWarnings("deprecation")
+        final long produced = rule.apply(() -> w.facts().stream(scope), 0L, syms).count();
+        assertEquals(1000, produced);
+    }
+
+    @Test
+    public void testHashJoinOnBytesAcrossFactSets() throws Error {
+        final SymbolTable syms = new SymbolTable();
+        final long key = syms.insert("key");
+        final long signed = syms.insert("signed");
+        final long trusted = syms.insert("trusted");
+        final Term k = new Term.Variable(syms.insert("k"));
+        final Term n = new Term.Variable(syms.insert("n"));
+
+        // the byte arrays are stored in the side table of each relation, in a different order
+        final FactSet base = new FactSet();
+        for (int i = 0; i < 10; i++) {
+            base.add(new Origin(0), new Fact(new Predicate(key, Arrays.asList(new Term.Bytes(new byte[]{(byte) i}), new Term.Integer(i)))));
+        }
+        final FactSet facts = new FactSet(base);
+        facts.add(new Origin(0), new Fact(new Predicate(signed, Arrays.asList(new Term.Bytes(new byte[]{7}), new Term.Bytes(new byte[]{7})))));
+        facts.add(new Origin(0), new Fact(new Predicate(signed, Arrays.asList(new Term.Bytes(new byte[]{3}), new Term.Bytes(new byte[]{4})))));
+
+        final Rule rule = new Rule(new Predicate(trusted, Arrays.asList(n)),
+                Arrays.asList(new Predicate(signed, Arrays.asList(k, k)), new Predicate(key, Arrays.asList(k, n))),
+                new ArrayList<>());
+        final World w = new World(facts);
+        final FactSet res = w.query_rule(rule, 0L, new TrustedOrigins(0), syms);
+        assertEquals(1, res.size());
+        assertEquals(true, res.contains(new Origin(0), new Fact(new Predicate(trusted, Arrays.asList(new Term.Integer(7))))));
+    }
+
+    @Test
+    public void testOrigins() {
+        final Origin block = new Origin(3);
+        final Origin overflow = new Origin(70);
+        final Origin union = block.union(overflow).union(Origin.authorizer());
+
+        assertEquals(Arrays.asList(3L, 70L, Long.MAX_VALUE), union.blockIds());
+        assertEquals(Arrays.asList(3L), block.blockIds());
+        assertEquals(new Origin(3), block);
+
+        final Origin into = new Origin(5);
+        block.unionInto(overflow, into);
+        assertEquals(block.union(overflow), into);
+        block.unionInto(Origin.authorizer(), into);
+        assertEquals(block.union(Origin.authorizer()), into);
+
+        final Origin expected = new Origin(70);
+        expected.add(Long.MAX_VALUE);
+        expected.add(3);
+        assertEquals(expected, union);
+        assertEquals(expected.hashCode(), union.hashCode());
+
+        assertEquals(true, new TrustedOrigins(3, 70).contains(block.union(overflow)));
+        assertEquals(false, new TrustedOrigins(3).contains(block.union(overflow)));
+        assertEquals(false, new TrustedOrigins(3, 70).contains(union));
+        assertEquals(true, TrustedOrigins.defaultOrigins().contains(new Origin(0).union(Origin.authorizer())));
+        assertEquals(false, TrustedOrigins.defaultOrigins().contains(new Origin(64)));
+
+        assertThrows(IllegalArgumentException.class, () -> new Origin(-1));
+        assertThrows(IllegalArgumentException.class, () -> new Origin().add((long) Integer.MAX_VALUE + 1));
+        assertThrows(IllegalArgumentException.class, () -> new Origin().add(Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void testFactSetStorage() {
+        final SymbolTable syms = new SymbolTable();
+        final long file = syms.insert("file");
+        final Term a = syms.add("a");
+        final Term bytes = new Term.Bytes(new byte[]{1, 2, 3});
+        final Term set = new Term.Set(new HashSet<>(Arrays.asList(new Term.Integer(1), a)));
+
+        final FactSet facts = new FactSet();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(true, facts.add(new Origin(i % 2), new Fact(new Predicate(file, Arrays.asList(new Term.Integer(i), a, new Term.Bool(i % 3 == 0))))));
+        }
+        assertEquals(true, facts.add(new Origin(0), new Fact(new Predicate(file, Arrays.asList(bytes, set, new Term.Date(10))))));
+        assertEquals(true, facts.add(new Origin(1), new Fact(new Predicate(file, Arrays.asList(bytes, set, new Term.Date(10))))));
+        // equal terms built separately are deduplicated
+        assertEquals(false, facts.add(new Origin(0), new Fact(new Predicate(file, Arrays.asList(
+                new Term.Bytes(new byte[]{1, 2, 3}), new Term.Set(new HashSet<>(Arrays.asList(a, new Term.Integer(1)))), new Term.Date(10))))));
+        assertEquals(false, facts.add(new Origin(1), new Fact(new Predicate(file, Arrays.asList(new Term.Integer(1), a, new Term.Bool(false))))));
+        assertEquals(102, facts.size());
+
+        assertEquals(true, facts.contains(new Origin(0), new Fact(new Predicate(file, Arrays.asList(new Term.Integer(42), a, new Term.Bool(true))))));
+        assertEquals(false, facts.contains(new Origin(1), new Fact(new Predicate(file, Arrays.asList(new Term.Integer(42), a, new Term.Bool(true))))));
+        assertEquals(false, facts.contains(new Origin(0), new Fact(new Predicate(file, Arrays.asList(new Term.Bytes(new byte[]{4}), set, new Term.Date(10))))));
+
+        // constants of another kind with the same encoded value do not match
+        final Predicate lookup = new Predicate(file, Arrays.asList(new Term.Str(1), new Term.Variable(syms.insert("x")), new Term.Variable(syms.insert("y"))));
+        assertEquals(0, facts.stream(new TrustedOrigins(0, 1), lookup).count());
+        final Predicate bySet = new Predicate(file, Arrays.asList(new Term.Variable(syms.insert("x")), set, new Term.Variable(syms.insert("y"))));
+        assertEquals(Arrays.asList(new Origin(1)), facts.stream(new TrustedOrigins(1), bySet).map(t -> t._1).collect(Collectors.toList()));
+
+        final FactSet copy = facts.clone();
+        copy.add(new Origin(2), new Fact(new Predicate(file, Arrays.asList(a, a, a))));
+        assertEquals(102, facts.size());
+        assertEquals(103, copy.size());
+        assertEquals(51, facts.facts().get(new Origin(0)).size());
+        assertEquals(facts.byOrigin(), facts.facts());
+
+        // the deprecated map is a copy, writing to it fails instead of being lost
+        final Fact added = new Fact(new Predicate(file, Arrays.asList(a, a, a)));
+        final HashMap<Origin, HashSet<Fact>> byOrigin = facts.facts();
+        assertThrows(UnsupportedOperationException.class, () -> byOrigin.put(new Origin(2), new HashSet<>()));
+        assertThrows(UnsupportedOperationException.class, () -> byOrigin.computeIfAbsent(new Origin(2), k -> new HashSet<>()));
+        assertThrows(UnsupportedOperationException.class, () -> byOrigin.get(new Origin(0)).add(added));
+        assertThrows(UnsupportedOperationException.class, () -> byOrigin.get(new Origin(0)).iterator().remove());
+        assertThrows(UnsupportedOperationException.class, () -> byOrigin.entrySet().clear());
+        assertEquals(102, facts.size());
+    }
+
+    @Test
+    public void testStratification() throws Error {
+        final SymbolTable syms = new SymbolTable();
+        final long edge = syms.insert("edge");
+        final long path = syms.insert("path");
+        final long reachable = syms.insert("reachable");
+        final long report = syms.insert("report");
+        final Term n0 = syms.add("n0");
+        final Term x = new Term.Variable(syms.insert("x"));
+        final Term y = new Term.Variable(syms.insert("y"));
+        final Term z = new Term.Variable(syms.insert("z"));
+
+        final World w = new World();
+        for (int i = 0; i < 5; i++) {
+            w.add_fact(new Origin(0), new Fact(new Predicate(edge, Arrays.asList(new Term.Integer(i), new Term.Integer(i + 1)))));
+        }
+        // added before the rules they depend on
+        w.add_rule((long) 0, new TrustedOrigins(0), new Rule(new Predicate(report, Arrays.asList(n0, y)),
+                List.of(new Predicate(reachable, Arrays.asList(y))), new ArrayList<>()));
+        w.add_rule((long) 0, new TrustedOrigins(0), new Rule(new Predicate(reachable, Arrays.asList(y)),
+                List.of(new Predicate(path, Arrays.asList(new Term.Integer(0), y))), new ArrayList<>()));
+        w.add_rule((long) 0, new TrustedOrigins(0), new Rule(new Predicate(path, Arrays.asList(x, z)),
+                Arrays.asList(new Predicate(path, Arrays.asList(x, y)), new Predicate(edge, Arrays.asList(y, z))),
+                new ArrayList<>()));
+        w.add_rule((long) 0, new TrustedOrigins(0), new Rule(new Predicate(path, Arrays.asList(x, y)),
+                List.of(new Predicate(edge, Arrays.asList(x, y))), new ArrayList<>()));
+
+        final List<RuleGraph.Component> components = RuleGraph.components(w.rules());
+        assertEquals(3, components.size());
+        assertEquals(Arrays.asList(path, reachable, report), components.stream()
+                .map(c -> c.rules.values().iterator().next().get(0)._2.head().name())
+                .collect(Collectors.toList()));
+        assertEquals(Arrays.asList(true, false, false), components.stream().map(c -> c.recursive).collect(Collectors.toList()));
+        assertEquals(2, components.get(0).rules.values().stream().mapToInt(List::size).sum());
+
+        // the iteration limit applies to each component: the non recursive rules do not count
+        // against the iterations of the recursive one
+        w.run(new RunLimits(1000, 6, Duration.ofSeconds(5)), syms);
+        assertEquals(5 + 15 + 5 + 5, w.facts().size());
+
+        final World limited = new World(new FactSet(), w.rules());
+        for (int i = 0; i < 5; i++) {
+            limited.add_fact(new Origin(0), new Fact(new Predicate(edge, Arrays.asList(new Term.Integer(i), new Term.Integer(i + 1)))));
+        }
+        assertThrows(Error.TooManyIterations.class, () -> limited.run(new RunLimits(1000, 5, Duration.ofSeconds(5)), syms));
+    }
+
+    @Test
+    public void testParallelRun() throws Error {
+        final SymbolTable syms = new SymbolTable();
+        final long edge = syms.insert("edge");
+        final long path = syms.insert("path");
+        final Term x = new Term.Variable(syms.insert("x"));
+        final Term y = new Term.Variable(syms.insert("y"));
+        final Term z = new Term.Variable(syms.insert("z"));
+
+        final World w = new World();
+        for (int i = 0; i < 30; i++) {
+            w.add_fact(new Origin(i % 2), new Fact(new Predicate(edge, Arrays.asList(new Term.Integer(i), new Term.Integer(i + 1)))));
+        }
+        w.add_rule((long) 0, new TrustedOrigins(0, 1), new Rule(new Predicate(path, Arrays.asList(x, y)),
+                List.of(new Predicate(edge, Arrays.asList(x, y))), new ArrayList<>()));
+        w.add_rule((long) 0, new TrustedOrigins(0, 1), new Rule(new Predicate(path, Arrays.asList(x, z)),
+                Arrays.asList(new Predicate(path, Arrays.asList(x, y)), new Predicate(edge, Arrays.asList(y, z))),
+                new ArrayList<>()));
+        w.add_rule((long) 0, new TrustedOrigins(0), new Rule(new Predicate(path, Arrays.asList(x, z)),
+                Arrays.asList(new Predicate(edge, Arrays.asList(x, y)), new Predicate(path, Arrays.asList(y, z))),
+                new ArrayList<>()));
+
+        final World sequential = new World(w);
+        sequential.run(new RunLimits(5000, 100, Duration.ofSeconds(5)), syms);
+
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final World parallel = new World(w);
+            parallel.run(new RunLimits(5000, 100, Duration.ofSeconds(5)).withExecutor(pool), syms);
+            assertEquals(sequential.facts(), parallel.facts());
+
+            // each rule stops once its own new facts reach the limit
+            final World limited = new World(w);
+            assertThrows(Error.TooManyFacts.class, () -> limited.run(new RunLimits(100, 100, Duration.ofSeconds(5)).withExecutor(pool), syms));
+        } finally {
+            pool.shutdown();
+        }
+
+        // the rules rejected by the executor are applied on the calling thread
+        final World rejected = new World(w);
+        rejected.run(new RunLimits(5000, 100, Duration.ofSeconds(5)).withExecutor(pool), syms);
+        assertEquals(sequential.facts(), rejected.facts());
+    }
+
+    @Test
+    public void testIncrementalRun() throws Error {
+        final SymbolTable syms = new SymbolTable();
+        final long edge = syms.insert("edge");
+        final long path = syms.insert("path");
+        final long start = syms.insert("start");
+        final long reachable = syms.insert("reachable");
+        final Term x = new Term.Variable(syms.insert("x"));
+        final Term y = new Term.Variable(syms.insert("y"));
+        final Term z = new Term.Variable(syms.insert("z"));
+
+        final List<Rule> rules = Arrays.asList(
+                new Rule(new Predicate(path, Arrays.asList(x, y)),
+                        List.of(new Predicate(edge, Arrays.asList(x, y))), new ArrayList<>()),
+                new Rule(new Predicate(path, Arrays.asList(x, z)),
+                        Arrays.asList(new Predicate(path, Arrays.asList(x, y)), new Predicate(edge, Arrays.asList(y, z))),
+                        new ArrayList<>()));
+        final Rule reachableRule = new Rule(new Predicate(reachable, Arrays.asList(y)),
+                Arrays.asList(new Predicate(start, Arrays.asList(x)), new Predicate(path, Arrays.asList(x, y))), new ArrayList<>());
+        final Function<Integer, Fact> edgeFact = i -> new Fact(new Predicate(edge, Arrays.asList(new Term.Integer(i), new Term.Integer(i + 1))));
+
+        final RunLimits limits = new RunLimits(1000, 100, Duration.ofSeconds(5));
+        final World w = new World();
+        for (int i = 0; i < 10; i++) {
+            w.add_fact(new Origin(0), edgeFact.apply(i));
+        }
+        for (Rule rule : rules) {
+            w.add_rule((long) 0, new TrustedOrigins(0), rule);
+        }
+        w.run(limits, syms);
+        assertEquals(10 + 55, w.facts().size());
+
+        // new facts and rules are propagated from the fixpoint
+        w.add_fact(new Origin(0), edgeFact.apply(10));
+        w.add_fact(new Origin(0), new Fact(new Predicate(start, Arrays.asList(new Term.Integer(3)))));
+        w.add_rule((long) 0, new TrustedOrigins(0), reachableRule);
+        w.run(limits, syms);
+
+        final World expected = new World();
+        for (int i = 0; i < 11; i++) {
+            expected.add_fact(new Origin(0), edgeFact.apply(i));
+        }
+        expected.add_fact(new Origin(0), new Fact(new Predicate(start, Arrays.asList(new Term.Integer(3)))));
+        for (Rule rule : rules) {
+            expected.add_rule((long) 0, new TrustedOrigins(0), rule);
+        }
+        expected.add_rule((long) 0, new TrustedOrigins(0), reachableRule);
+        expected.run(limits, syms);
+        assertEquals(expected.facts(), w.facts());
+
+        // removing an edge retracts the paths going through it, but not the ones with another derivation
+        w.add_fact(new Origin(0), edgeFact.apply(20));
+        w.add_fact(new Origin(0), new Fact(new Predicate(edge, Arrays.asList(new Term.Integer(4), new Term.Integer(6)))));
+        w.remove_fact(new Origin(0), edgeFact.apply(5));
+        w.remove_fact(new Origin(0), edgeFact.apply(20));
+        w.run(limits, syms);
+        expected.add_fact(new Origin(0), new Fact(new Predicate(edge, Arrays.asList(new Term.Integer(4), new Term.Integer(6)))));
+        expected.remove_fact(new Origin(0), edgeFact.apply(5));
+        expected.run(limits, syms);
+
+        final World rebuilt = new World();
+        for (int i = 0; i < 11; i++) {
+            if (i != 5) {
+                rebuilt.add_fact(new Origin(0), edgeFact.apply(i));
+            }
+        }
+        rebuilt.add_fact(new Origin(0), new Fact(new Predicate(edge, Arrays.asList(new Term.Integer(4), new Term.Integer(6)))));
+        rebuilt.add_fact(new Origin(0), new Fact(new Predicate(start, Arrays.asList(new Term.Integer(3)))));
+        for (Rule rule : rules) {
+            rebuilt.add_rule((long) 0, new TrustedOrigins(0), rule);
+        }
+        rebuilt.add_rule((long) 0, new TrustedOrigins(0), reachableRule);
+        rebuilt.run(limits, syms);
+        assertEquals(rebuilt.facts(), w.facts());
+        assertEquals(rebuilt.facts(), expected.facts());
+        assertEquals(true, w.facts().contains(new Origin(0), new Fact(new Predicate(path, Arrays.asList(new Term.Integer(0), new Term.Integer(10))))));
+        assertEquals(false, w.facts().contains(new Origin(0), new Fact(new Predicate(path, Arrays.asList(new Term.Integer(5), new Term.Integer(6))))));
+    }
+
+    @Test
+    public void testFuel() throws Error {
+        final SymbolTable syms = new SymbolTable();
+        final long edge = syms.insert("edge");
+        final long path = syms.insert("path");
+        final Term x = new Term.Variable(syms.insert("x"));
+        final Term y = new Term.Variable(syms.insert("y"));
+        final Term z = new Term.Variable(syms.insert("z"));
+
+        final World w = new World();
+        for (int i = 0; i < 30; i++) {
+            w.add_fact(new Origin(0), new Fact(new Predicate(edge, Arrays.asList(new Term.Integer(i), new Term.Integer(i + 1)))));
+        }
+        w.add_rule((long) 0, new TrustedOrigins(0), new Rule(new Predicate(path, Arrays.asList(x, y)),
+                List.of(new Predicate(edge, Arrays.asList(x, y))), new ArrayList<>()));
+        w.add_rule((long) 0, new TrustedOrigins(0), new Rule(new Predicate(path, Arrays.asList(x, z)),
+                Arrays.asList(new Predicate(path, Arrays.asList(x, y)), new Predicate(edge, Arrays.asList(y, z))),
+                List.of(new Expression(new ArrayList<>(Arrays.asList(
+                        new Op.Value(z),
+                        new Op.Value(new Term.Integer(20)),
+                        new Op.Binary(Op.BinaryOp.LessThan)
+                ))))));
+
+        final RunLimits limits = new RunLimits(5000, 100, Duration.ofSeconds(5));
+        final Budget first = new Budget(limits);
+        new World(w).run(limits, first, syms);
+        final Budget second = new Budget(limits);
+        new World(w).run(limits, second, syms);
+        assertEquals(first.consumed(), second.consumed());
+
+        // the run fails as soon as it needs more fuel than allowed
+        new World(w).run(limits.withMaxFuel(first.consumed()), syms);
+        final Budget exhausted = new Budget(limits.withMaxFuel(first.consumed() - 1));
+        assertThrows(Error.OutOfFuel.class, () -> new World(w).run(limits, exhausted, syms));
+        assertEquals(first.consumed(), exhausted.consumed());
+
+        final RunLimits expired = new RunLimits(5000, 100, Duration.ZERO);
+        assertThrows(Error.Timeout.class, () -> new World(w).run(expired, syms));
+
+        final Budget cancelled = new Budget(new RunLimits(5000, 100, Duration.ofSeconds(5)));
+        cancelled.cancel();
+        assertThrows(Error.Timeout.class, () -> new World(w).run(limits, cancelled, syms));
+    }
 }
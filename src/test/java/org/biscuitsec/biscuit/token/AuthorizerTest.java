@@ -1,18 +1,29 @@
 package org.biscuitsec.biscuit.token;
 
 import org.biscuitsec.biscuit.crypto.KeyPair;
+import org.biscuitsec.biscuit.datalog.RunLimits;
 import org.biscuitsec.biscuit.error.Error;
 import org.biscuitsec.biscuit.error.Error.Parser;
 import org.biscuitsec.biscuit.token.builder.Expression;
 import org.biscuitsec.biscuit.token.builder.Term;
+import io.vavr.control.Try;
 import org.junit.jupiter.api.Test;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.biscuitsec.biscuit.token.builder.Utils.constrained_rule;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class AuthorizerTest {
@@ -72,6 +83,272 @@ public class AuthorizerTest {
         );
     }
 
+    @Test
+    public void testPreparedAuthorizer() throws Exception {
+        KeyPair keypair = new KeyPair();
+
+        Biscuit token = Biscuit.builder(keypair)
+                .add_authority_fact("user(\"alice\")")
+                .build();
+
+        Authorizer template = new Authorizer();
+        template.add_fact("acl(\"alice\", \"file1\", \"read\")");
+        template.add_fact("acl(\"bob\", \"file2\", \"read\")");
+        template.add_rule("can_read($user, $file) <- acl($user, $file, \"read\")");
+        template.add_check("check if operation(\"read\")");
+        template.add_policy("allow if user($user), resource($file), can_read($user, $file)");
+        RunLimits limits = new RunLimits(5000, 100, Duration.ofSeconds(5));
+        PreparedAuthorizer prepared = template.prepare(limits);
+        int preparedFacts = prepared.authorizer().facts().size();
+        assertEquals(4, preparedFacts);
+
+        // changes to the template are not seen by the prepared authorizer
+        template.add_fact("acl(\"alice\", \"file2\", \"read\")");
+
+        Authorizer allowed = prepared.authorizer(token);
+        allowed.add_fact("resource(\"file1\")");
+        allowed.add_fact("operation(\"read\")");
+        assertEquals(0, allowed.authorize(limits).longValue());
+
+        Authorizer denied = prepared.authorizer(token);
+        denied.add_fact("resource(\"file2\")");
+        denied.add_fact("operation(\"read\")");
+        assertTrue(Try.of(() -> denied.authorize(limits)).isFailure());
+        assertTrue(denied.query("data($file) <- resource($file)", limits).stream()
+                .noneMatch(f -> f.terms().get(0).equals(new Term.Str("file1"))));
+
+        Authorizer failedCheck = prepared.authorizer(token).clone();
+        failedCheck.add_fact("resource(\"file1\")");
+        failedCheck.add_fact("operation(\"write\")");
+        assertTrue(Try.of(() -> failedCheck.authorize(limits)).isFailure());
+
+        assertEquals(preparedFacts, prepared.authorizer().facts().size());
+    }
+
+    @Test
+    public void testPreparedAuthorizerRulesNotReevaluated() throws Exception {
+        Authorizer template = new Authorizer();
+        Authorizer fresh = new Authorizer();
+        for (Authorizer a : List.of(template, fresh)) {
+            for (int i = 0; i < 30; i++) {
+                a.add_fact("edge(\"g" + i + "\", \"g" + (i + 1) + "\")");
+            }
+            a.add_rule("parent($x, $y) <- edge($x, $y)");
+            a.add_rule("parent($x, $z) <- parent($x, $y), edge($y, $z)");
+            a.add_policy("allow if true");
+        }
+        RunLimits limits = new RunLimits(5000, 100, Duration.ofSeconds(5));
+        PreparedAuthorizer prepared = template.prepare(limits);
+
+        // without new facts, the fuel is only consumed by the policy
+        Authorizer policyOnly = new Authorizer();
+        policyOnly.add_policy("allow if true");
+        policyOnly.authorize(limits);
+        Authorizer request = prepared.authorizer();
+        request.authorize(limits);
+        assertEquals(policyOnly.fuel(), request.fuel());
+
+        // a new fact is only joined with the prepared facts
+        Authorizer extended = prepared.authorizer();
+        extended.add_fact("edge(\"g30\", \"g31\")");
+        fresh.add_fact("edge(\"g30\", \"g31\")");
+        assertEquals(fresh.query("path($y) <- parent(\"g0\", $y)", limits), extended.query("path($y) <- parent(\"g0\", $y)", limits));
+        assertTrue(extended.fuel() < fresh.fuel());
+
+        // the facts derived by the prepared authorizer are retracted with the fact they come from
+        Authorizer removed = prepared.authorizer();
+        removed.remove_fact("edge(\"g10\", \"g11\")");
+        assertEquals(10, removed.query("path($y) <- parent(\"g0\", $y)", limits).size());
+        assertEquals(30, prepared.authorizer().query("path($y) <- parent(\"g0\", $y)", limits).size());
+    }
+
+    @Test
+    public void testGoalDirected() throws Exception {
+        KeyPair keypair = new KeyPair();
+
+        Biscuit token = Biscuit.builder(keypair)
+                .add_authority_fact("member(\"alice\", \"team\")")
+                .add_authority_check("check if parent(\"team\", \"g10\")")
+                .build();
+
+        Authorizer authorizer = Biscuit.from_b64url(token.serialize_b64url(), keypair.public_key())
+                .verify(keypair.public_key())
+                .authorizer();
+        authorizer.add_fact("edge(\"team\", \"g0\")");
+        for (int i = 0; i < 50; i++) {
+            authorizer.add_fact("edge(\"g" + i + "\", \"g" + (i + 1) + "\")");
+        }
+        authorizer.add_rule("parent($x, $y) <- edge($x, $y)");
+        authorizer.add_rule("parent($x, $z) <- parent($x, $y), edge($y, $z)");
+        authorizer.add_check("check if parent(\"g20\", \"g30\")");
+        authorizer.add_check("check if parent(\"g30\", \"g20\")");
+
+        Authorizer allowed = authorizer.clone();
+        allowed.add_policy("allow if member($user, $team), parent($team, \"g50\")");
+        Authorizer denied = authorizer.clone();
+        denied.add_policy("allow if parent(\"g50\", $x)");
+        denied.add_policy("deny if true");
+
+        for (Authorizer a : List.of(allowed, denied)) {
+            RunLimits full = new RunLimits(5000, 100, Duration.ofSeconds(1));
+            RunLimits goalDirected = new RunLimits(5000, 100, Duration.ofSeconds(1)).withGoalDirected(true);
+
+            Authorizer rewritten = a.clone();
+            Error.FailedLogic expected = assertThrows(Error.FailedLogic.class, () -> a.clone().authorize(full));
+            assertEquals(expected, assertThrows(Error.FailedLogic.class, () -> rewritten.authorize(goalDirected)));
+        }
+        // only the paths starting from the constants of the checks and policies are derived, not the whole closure
+        Authorizer rewritten = denied.clone();
+        RunLimits limits = new RunLimits(200, 100, Duration.ofSeconds(1)).withGoalDirected(true);
+        assertThrows(Error.FailedLogic.class, () -> rewritten.authorize(limits));
+        assertThrows(Error.TooManyFacts.class, () -> denied.clone().authorize(new RunLimits(200, 100, Duration.ofSeconds(1))));
+    }
+
+    @Test
+    public void testGoalDirectedAfterRemovedFact() throws Exception {
+        RunLimits full = new RunLimits(5000, 100, Duration.ofSeconds(5));
+        RunLimits goalDirected = full.withGoalDirected(true);
+
+        Authorizer authorizer = new Authorizer();
+        authorizer.add_fact("admin(\"alice\")");
+        authorizer.add_rule("allowed($u) <- admin($u)");
+        authorizer.add_policy("allow if allowed(\"alice\")");
+        assertEquals(0, authorizer.authorize(full).longValue());
+
+        // allowed("alice") is only retracted by the next run of the authorizer's world
+        authorizer.remove_fact("admin(\"alice\")");
+        String expected = assertThrows(Error.FailedLogic.class, () -> authorizer.clone().authorize(full)).toString();
+        assertEquals(expected, assertThrows(Error.FailedLogic.class, () -> authorizer.authorize(goalDirected)).toString());
+        assertEquals(expected, assertThrows(Error.FailedLogic.class, () -> authorizer.authorize(full)).toString());
+
+        // the facts derived by a prepared authorizer too
+        Authorizer template = new Authorizer();
+        template.add_fact("admin(\"alice\")");
+        template.add_rule("allowed($u) <- admin($u)");
+        template.add_policy("allow if allowed(\"alice\")");
+        PreparedAuthorizer prepared = template.prepare(full);
+        assertEquals(0, prepared.authorizer().authorize(goalDirected).longValue());
+        Authorizer removed = prepared.authorizer();
+        removed.remove_fact("admin(\"alice\")");
+        assertEquals(expected, assertThrows(Error.FailedLogic.class, () -> removed.authorize(goalDirected)).toString());
+    }
+
+    @Test
+    public void testPreparedGoalDirected() throws Exception {
+        KeyPair keypair = new KeyPair();
+        RunLimits full = new RunLimits(5000, 100, Duration.ofSeconds(5));
+        RunLimits goalDirected = full.withGoalDirected(true);
+
+        Authorizer template = new Authorizer();
+        for (int i = 0; i < 30; i++) {
+            template.add_fact("edge(\"g" + i + "\", \"g" + (i + 1) + "\")");
+        }
+        template.add_rule("parent($x, $y) <- edge($x, $y)");
+        template.add_rule("parent($x, $z) <- parent($x, $y), edge($y, $z)");
+        template.add_check("check if parent(\"g0\", \"g10\")");
+        template.add_check("check if allowed(\"alice\")");
+        template.add_policy("allow if user($u), owner($u, $g), parent(\"g0\", $g)");
+        PreparedAuthorizer prepared = template.prepare(full);
+        assertSame(prepared.rewriting(), prepared.rewriting());
+
+        Biscuit facts = Biscuit.builder(keypair)
+                .add_authority_fact("user(\"alice\")")
+                .add_authority_fact("owner(\"alice\", \"g20\")")
+                .add_authority_fact("allowed(\"alice\")")
+                .build();
+        // produces a predicate that the prepared rewriting did not find rules for
+        Biscuit allowedRule = Biscuit.builder(keypair)
+                .add_authority_fact("user(\"alice\")")
+                .add_authority_fact("owner(\"alice\", \"g20\")")
+                .add_authority_rule("allowed($u) <- user($u)")
+                .build();
+        // produces a predicate rewritten by the prepared rewriting, and queries it
+        Biscuit parentRule = Biscuit.builder(keypair)
+                .add_authority_fact("user(\"alice\")")
+                .add_authority_fact("allowed(\"alice\")")
+                .add_authority_fact("owner(\"alice\", \"g40\")")
+                .add_authority_fact("shortcut(\"g0\", \"g40\")")
+                .add_authority_rule("parent($x, $y) <- shortcut($x, $y)")
+                .add_authority_check("check if parent(\"g0\", \"g40\")")
+                .build();
+
+        assertNotNull(prepared.rewriting().extend(prepared.authorizer(facts).world.rules(), List.of()));
+        assertNull(prepared.rewriting().extend(prepared.authorizer(allowedRule).world.rules(), List.of()));
+        assertNotNull(prepared.rewriting().extend(prepared.authorizer(parentRule).world.rules(), List.of()));
+
+        for (Biscuit token : List.of(facts, allowedRule, parentRule)) {
+            assertEquals(Try.of(() -> prepared.authorizer(token).authorize(full)).toString(),
+                    Try.of(() -> prepared.authorizer(token).authorize(goalDirected)).toString());
+        }
+        assertEquals(0, prepared.authorizer(allowedRule).authorize(goalDirected).longValue());
+        assertEquals(0, prepared.authorizer(parentRule).authorize(goalDirected).longValue());
+    }
+
+    @Test
+    public void testFuel() throws Exception {
+        Authorizer authorizer = new Authorizer();
+        for (int i = 0; i < 30; i++) {
+            authorizer.add_fact("edge(\"g" + i + "\", \"g" + (i + 1) + "\")");
+        }
+        authorizer.add_rule("parent($x, $y) <- edge($x, $y)");
+        authorizer.add_rule("parent($x, $z) <- parent($x, $y), edge($y, $z)");
+        authorizer.add_check("check if parent(\"g0\", \"g20\")");
+        authorizer.add_policy("allow if parent($x, \"g30\"), $x != \"g0\"");
+
+        Authorizer first = authorizer.clone();
+        first.authorize(new RunLimits(5000, 100, Duration.ofSeconds(5)));
+        Authorizer second = authorizer.clone();
+        second.authorize(new RunLimits(5000, 100, Duration.ofSeconds(5)));
+        assertEquals(first.fuel(), second.fuel());
+
+        RunLimits limits = new RunLimits(5000, 100, Duration.ofSeconds(5));
+        authorizer.clone().authorize(limits.withMaxFuel(first.fuel()));
+        RunLimits exhaustedLimits = limits.withMaxFuel(first.fuel() - 1);
+        Authorizer exhausted = authorizer.clone();
+        assertThrows(Error.OutOfFuel.class, () -> exhausted.authorize(exhaustedLimits));
+        assertEquals(first.fuel(), exhausted.fuel());
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        Authorizer authorizer = new Authorizer();
+        for (int i = 0; i < 30; i++) {
+            authorizer.add_fact("edge(\"g" + i + "\", \"g" + (i + 1) + "\")");
+        }
+        authorizer.add_rule("parent($x, $y) <- edge($x, $y)");
+        authorizer.add_rule("parent($x, $z) <- parent($x, $y), edge($y, $z)");
+        authorizer.add_policy("deny if parent(\"g0\", \"g40\")");
+        authorizer.add_policy("allow if parent(\"g0\", \"g30\")");
+
+        RunLimits limits = new RunLimits(5000, 100, Duration.ofSeconds(5));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Authorizer async = authorizer.clone();
+            assertEquals(authorizer.clone().authorize(limits), async.authorize_async(limits, executor).get());
+            assertTrue(async.fuel() > 0);
+
+            // the rules can run on the executor running the authorization, even with a single thread
+            RunLimits shared = limits.withExecutor(executor);
+            assertEquals(authorizer.clone().authorize(limits), authorizer.clone().authorize_async(shared, executor).get());
+
+            Authorizer denied = new Authorizer();
+            denied.add_policy("deny if true");
+            ExecutionException e = assertThrows(ExecutionException.class, () -> denied.authorize_async(limits, executor).get());
+            assertTrue(e.getCause() instanceof Error.FailedLogic);
+        } finally {
+            executor.shutdown();
+        }
+
+        // a cancelled authorization does not start
+        List<Runnable> pending = new ArrayList<>();
+        Authorizer cancelled = authorizer.clone();
+        CompletableFuture<Long> result = cancelled.authorize_async(limits, pending::add);
+        result.cancel(false);
+        pending.forEach(Runnable::run);
+        assertTrue(result.isCancelled());
+        assertEquals(0, cancelled.fuel());
+    }
+
     private static Term queryFirstResult(Authorizer authorizer, String query) throws Error {
         return authorizer.query(query)
                 .iterator()
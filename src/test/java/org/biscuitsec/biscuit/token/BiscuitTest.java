@@ -1,24 +1,42 @@
 package org.biscuitsec.biscuit.token;
 
+import biscuit.format.schema.Schema;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.vavr.control.Either;
 import io.vavr.control.Option;
 import io.vavr.control.Try;
+import org.biscuitsec.biscuit.crypto.KeyDelegate;
 import org.biscuitsec.biscuit.crypto.KeyPair;
+import org.biscuitsec.biscuit.crypto.PublicKey;
 import org.biscuitsec.biscuit.datalog.RunLimits;
 import org.biscuitsec.biscuit.error.Error;
 import org.biscuitsec.biscuit.error.FailedCheck;
 import org.biscuitsec.biscuit.error.LogicError;
 import org.biscuitsec.biscuit.token.builder.Block;
+import org.biscuitsec.biscuit.token.format.SerializedBiscuit;
+import org.biscuitsec.biscuit.token.format.SignatureChainCache;
+import org.biscuitsec.biscuit.token.format.SignedBlock;
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.SignatureException;
+import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import static java.lang.System.out;
 import static org.biscuitsec.biscuit.crypto.TokenSignature.hex;
@@ -314,6 +332,305 @@ public class BiscuitTest {
                 e);
     }
 
+    @Test
+    public void testBatchVerification() throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
+        byte[] seed = {0, 0, 0, 0};
+        SecureRandom rng = new SecureRandom(seed);
+
+        KeyPair root = new KeyPair(rng);
+        KeyPair otherRoot = new KeyPair(rng);
+
+        Biscuit b = Biscuit.builder(rng, root).add_right("/folder1/file1", "read").build();
+        Block block = b.create_block();
+        block.check_right("read");
+        Biscuit b2 = b.attenuate(rng, new KeyPair(rng), block);
+        Biscuit other = Biscuit.builder(rng, otherRoot).add_right("/folder1/file1", "read").build();
+
+        SerializedBiscuit tampered = SerializedBiscuit.unsafe_deserialize(b2.serialize());
+        tampered.blocks.get(0).signature[5] ^= 1;
+        Either<Error, Void> tamperedError = tampered.verify(root.public_key());
+        assertTrue(tamperedError.isLeft());
+
+        List<byte[]> tokens = Arrays.asList(b.serialize(), b2.serialize(), other.serialize(), new byte[]{1, 2, 3}, tampered.serialize());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Executor rejecting = r -> {
+                throw new RejectedExecutionException();
+            };
+            for (List<Either<Error, Biscuit>> res : Arrays.asList(
+                    Biscuit.from_bytes(tokens, root.public_key()),
+                    Biscuit.from_bytes(tokens, root.public_key(), executor),
+                    Biscuit.from_bytes(tokens, root.public_key(), rejecting))) {
+                assertEquals(5, res.size());
+                assertTrue(res.get(0).isRight());
+                assertTrue(res.get(1).isRight());
+                assertEquals(1, res.get(1).get().blocks().size());
+                assertTrue(res.get(2).isLeft());
+                assertEquals(other.serializedBiscuit.verify(root.public_key()).getLeft().toString(), res.get(2).getLeft().toString());
+                assertTrue(res.get(3).isLeft());
+                // same error as the serial verification, found in the same pass
+                assertEquals(tamperedError.getLeft().toString(), res.get(4).getLeft().toString());
+            }
+
+            assertEquals(Either.right(null), b2.serializedBiscuit.verify(root.public_key(), executor));
+            assertEquals(tamperedError.getLeft().toString(), tampered.verify(root.public_key(), executor).getLeft().toString());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testVerifiedBiscuitCache() throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
+        byte[] seed = {0, 0, 0, 0};
+        SecureRandom rng = new SecureRandom(seed);
+
+        KeyPair root = new KeyPair(rng);
+        KeyPair newRoot = new KeyPair(rng);
+        byte[] data = Biscuit.builder(rng, root, Option.some(1)).add_right("/folder1/file1", "read").build().serialize();
+
+        Instant[] now = {Instant.now()};
+        Clock clock = new Clock() {
+            @Override
+            public ZoneId getZone() {
+                return ZoneOffset.UTC;
+            }
+
+            @Override
+            public Clock withZone(ZoneId zone) {
+                return this;
+            }
+
+            @Override
+            public Instant instant() {
+                return now[0];
+            }
+        };
+        VerifiedBiscuitCache cache = new VerifiedBiscuitCache(10, Duration.ofMinutes(1), clock);
+
+        Biscuit b = cache.from_bytes(data, root.public_key());
+        assertSame(b, cache.from_bytes(data, root.public_key()));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+
+        // verified with another root key
+        assertThrows(Error.class, () -> cache.from_bytes(data, newRoot.public_key()));
+        assertEquals(2, cache.misses());
+
+        now[0] = now[0].plus(Duration.ofMinutes(2));
+        assertNotSame(b, cache.from_bytes(data, root.public_key()));
+        assertEquals(1, cache.expirations());
+
+        // the key delegate rotated the key with id 1
+        PublicKey[] current = {root.public_key()};
+        KeyDelegate delegate = id -> id.equals(Option.some(1)) ? Option.some(current[0]) : Option.none();
+        Biscuit fromDelegate = cache.from_bytes(data, delegate);
+        assertSame(fromDelegate, cache.from_bytes(data, delegate));
+        current[0] = newRoot.public_key();
+        assertThrows(Error.class, () -> cache.from_bytes(data, delegate));
+
+        cache.invalidate(Option.some(1));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.invalidations());
+    }
+
+    @Test
+    public void testSignatureChainCache() throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
+        byte[] seed = {0, 0, 0, 0};
+        SecureRandom rng = new SecureRandom(seed);
+
+        KeyPair root = new KeyPair(rng);
+        Biscuit parent = Biscuit.builder(rng, root).add_right("/folder1/file1", "read").build();
+        Block block = parent.create_block();
+        block.add_check("check if operation(\"read\")");
+        parent = parent.attenuate(rng, new KeyPair(rng), block);
+
+        Block first = parent.create_block();
+        first.add_check("check if resource(\"/folder1/file1\")");
+        byte[] a = parent.attenuate(rng, new KeyPair(rng), first).serialize();
+        Block second = parent.create_block();
+        second.add_check("check if time($time), $time < 2030-01-01T00:00:00Z");
+        byte[] b = parent.attenuate(rng, new KeyPair(rng), second).serialize();
+
+        SignatureChainCache cache = new SignatureChainCache(10);
+        Biscuit fromA = Biscuit.from_bytes(a, root.public_key(), cache);
+        assertEquals(Biscuit.from_bytes(a, root.public_key()).print(), fromA.print());
+        assertEquals(1, cache.misses());
+        assertEquals(3, cache.size());
+
+        // only the last block of the second token is verified
+        Biscuit fromB = Biscuit.from_bytes(b, root.public_key(), cache);
+        assertEquals(Biscuit.from_bytes(b, root.public_key()).print(), fromB.print());
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.skippedBlocks());
+        assertEquals(4, cache.size());
+
+        // the prefixes verified with a root key do not match another root key
+        assertThrows(Error.class, () -> Biscuit.from_bytes(b, new KeyPair(rng).public_key(), cache));
+        assertEquals(1, cache.hits());
+
+        SignatureChainCache small = new SignatureChainCache(2);
+        Biscuit.from_bytes(a, root.public_key(), small);
+        assertEquals(2, small.size());
+        assertEquals(1, small.evictions());
+    }
+
+    @Test
+    public void testBlockCache() throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
+        byte[] seed = {0, 0, 0, 0};
+        SecureRandom rng = new SecureRandom(seed);
+
+        KeyPair root = new KeyPair(rng);
+        Biscuit token = Biscuit.builder(rng, root).add_right("/folder1/file1", "read").build();
+        SignedBlock authority = token.serializedBiscuit.authority;
+
+        BlockCache cache = new BlockCache(10);
+        org.biscuitsec.biscuit.token.Block block = cache.from_bytes(authority, Option.none()).get();
+        org.biscuitsec.biscuit.token.Block cached = cache.from_bytes(authority, Option.none()).get();
+        assertNotSame(block, cached);
+        assertEquals(block, cached);
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+
+        // the blocks handed out are copies, modifying one does not change the cache
+        cached.facts.clear();
+        cached.symbols.add("modified");
+        assertEquals(block, cache.from_bytes(authority, Option.none()).get());
+
+        // same signature with other block bytes
+        Biscuit other = Biscuit.builder(rng, root).add_right("/folder2/file1", "read").build();
+        SignedBlock forged = new SignedBlock(other.serializedBiscuit.authority.block, authority.key, authority.signature, Option.none());
+        org.biscuitsec.biscuit.token.Block otherBlock = cache.from_bytes(forged, Option.none()).get();
+        assertNotSame(block, otherBlock);
+        assertNotEquals(block, otherBlock);
+        assertEquals(2, cache.misses());
+
+        // the shared cache is disabled until configured, and only filled by verified tokens
+        assertEquals(0, BlockCache.shared().size());
+        BlockCache.configure(10);
+        try {
+            UnverifiedBiscuit.from_bytes(token.serialize()).authority();
+            assertEquals(0, BlockCache.shared().size());
+
+            // tokens sharing the cached authority block authorize like before
+            Authorizer authorizer = Biscuit.from_bytes(token.serialize(), root.public_key()).authorizer();
+            authorizer.add_fact("resource(\"/folder1/file1\")");
+            authorizer.add_fact("operation(\"read\")");
+            authorizer.add_policy("allow if right(\"/folder1/file1\", \"read\")");
+            authorizer.authorize();
+            assertEquals(1, BlockCache.shared().size());
+            assertEquals(Biscuit.from_bytes(token.serialize(), root.public_key()).authority(),
+                    Biscuit.from_bytes(token.serialize(), root.public_key()).authority());
+            assertEquals(2, BlockCache.shared().hits());
+        } finally {
+            BlockCache.configure(0);
+        }
+    }
+
+    @Test
+    public void testByteBuffer() throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error {
+        byte[] seed = {0, 0, 0, 0};
+        SecureRandom rng = new SecureRandom(seed);
+
+        KeyPair root = new KeyPair(rng);
+        Biscuit token = Biscuit.builder(rng, root).add_right("/folder1/file1", "read").build();
+        Block builder = token.create_block();
+        builder.add_check("check if operation(\"read\")");
+        Biscuit attenuated = token.attenuate(builder);
+        byte[] data = attenuated.serialize();
+
+        // the token is in the middle of a direct buffer
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + 8);
+        buffer.position(4);
+        buffer.put(data);
+        buffer.flip();
+        buffer.position(4);
+
+        Biscuit deser = Biscuit.from_bytes(buffer, root.public_key());
+        assertEquals(4, buffer.position());
+        assertArrayEquals(data, deser.serialize());
+        assertEquals(attenuated.print(), deser.print());
+        assertArrayEquals(data, UnverifiedBiscuit.from_bytes(buffer).serialize());
+        assertEquals(4, buffer.position());
+
+        KeyPair other = new KeyPair(rng);
+        assertThrows(Error.FormatError.Signature.InvalidSignature.class, () -> Biscuit.from_bytes(buffer, other.public_key()));
+
+        byte[] b64 = attenuated.serialize_b64url().getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer b64Buffer = ByteBuffer.allocateDirect(b64.length);
+        b64Buffer.put(b64);
+        b64Buffer.flip();
+        assertArrayEquals(data, Biscuit.from_b64url(b64Buffer, root.public_key()).serialize());
+        assertArrayEquals(data, UnverifiedBiscuit.from_b64url(b64Buffer).serialize());
+        assertEquals(0, b64Buffer.position());
+    }
+
+    @Test
+    public void testLazyBlocks() throws NoSuchAlgorithmException, SignatureException, InvalidKeyException, Error, InvalidProtocolBufferException {
+        byte[] seed = {0, 0, 0, 0};
+        SecureRandom rng = new SecureRandom(seed);
+
+        KeyPair root = new KeyPair(rng);
+        Biscuit token = Biscuit.builder(rng, root)
+                .add_authority_fact("user(\"alice\")")
+                .set_context("authority")
+                .build();
+        Block builder = token.create_block();
+        builder.set_context("block");
+        builder.add_check("check if operation(\"read\")");
+        Biscuit attenuated = token.attenuate(builder);
+
+        // the other methods decode the blocks when deserializing
+        assertNotNull(Biscuit.from_bytes(attenuated.serialize(), root.public_key()).contents);
+        assertNotNull(UnverifiedBiscuit.from_bytes(attenuated.serialize()).contents);
+
+        Biscuit deser = Biscuit.from_bytes_lazy(attenuated.serialize(), root.public_key());
+        assertNull(deser.contents);
+        assertEquals(2, deser.revocation_identifiers().size());
+        assertEquals(Option.none(), deser.root_key_id());
+        assertNull(deser.contents);
+
+        assertEquals(Arrays.asList(Option.some("authority"), Option.some("block")), deser.context());
+        assertSame(deser.contents(), deser.contents());
+        assertEquals(attenuated.print(), deser.print());
+
+        // a correctly signed token whose authority block cannot be decoded
+        KeyPair next = new KeyPair(rng);
+        byte[] block = new byte[]{(byte) 0xff, (byte) 0xff};
+        java.security.Signature sgr = KeyPair.generateSignature(root.public_key().algorithm);
+        sgr.initSign(root.private_key);
+        sgr.update(block);
+        sgr.update(ByteBuffer.allocate(4).order(java.nio.ByteOrder.LITTLE_ENDIAN).putInt(next.public_key().algorithm.getNumber()).array());
+        sgr.update(next.public_key().toBytes());
+        byte[] invalid = Schema.Biscuit.newBuilder()
+                .setAuthority(Schema.SignedBlock.newBuilder()
+                        .setBlock(ByteString.copyFrom(block))
+                        .setNextKey(next.public_key().serialize())
+                        .setSignature(ByteString.copyFrom(sgr.sign())))
+                .setProof(Schema.Proof.newBuilder().setNextSecret(ByteString.copyFrom(next.toBytes())))
+                .build()
+                .toByteArray();
+
+        // it is rejected when deserializing
+        assertThrows(Error.FormatError.DeserializationError.class, () -> Biscuit.from_bytes(invalid, root.public_key()));
+        assertThrows(Error.FormatError.DeserializationError.class, () -> UnverifiedBiscuit.from_bytes(invalid));
+
+        // or on first access to its blocks, when they are decoded lazily
+        UnverifiedBiscuit unverified = UnverifiedBiscuit.from_bytes_lazy(invalid);
+        assertEquals(1, unverified.revocation_identifiers().size());
+        assertThrows(IllegalStateException.class, unverified::context);
+        assertThrows(IllegalStateException.class, unverified::checks);
+        assertNull(unverified.contents);
+        assertThrows(Error.FormatError.DeserializationError.class, unverified::decode_blocks);
+
+        Biscuit signed = Biscuit.from_bytes_lazy(invalid, root.public_key());
+        assertThrows(Error.FormatError.DeserializationError.class, signed::decode_blocks);
+        // an authorizer reports the malformed block as a logic error, like an invalid block rule
+        Error.FailedLogic failed = assertThrows(Error.FailedLogic.class, signed::authorizer);
+        assertEquals(LogicError.InvalidBlockFormat.class, failed.error.getClass());
+        assertEquals(Error.FormatError.DeserializationError.class, failed.getCause().getClass());
+        assertThrows(Error.FailedLogic.class, () -> Authorizer.make(signed));
+    }
+
     @Test
     public void testEmptyAuthorizer() throws Error {
         byte[] seed = {0, 0, 0, 0};
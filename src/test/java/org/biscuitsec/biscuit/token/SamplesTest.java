@@ -5,6 +5,7 @@ import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.protobuf.InvalidProtocolBufferException;
 import io.vavr.Tuple2;
 import io.vavr.control.Either;
 import io.vavr.control.Option;
@@ -17,6 +18,9 @@ import org.biscuitsec.biscuit.datalog.SymbolTable;
 import org.biscuitsec.biscuit.error.Error;
 import org.biscuitsec.biscuit.token.builder.Check;
 import org.biscuitsec.biscuit.token.builder.parser.Parser;
+import org.biscuitsec.biscuit.token.format.BiscuitDecoder;
+import org.biscuitsec.biscuit.token.format.ExternalSignature;
+import org.biscuitsec.biscuit.token.format.SerializedBiscuit;
 import org.biscuitsec.biscuit.token.format.SignedBlock;
 import org.junit.jupiter.api.DynamicTest;
 import org.junit.jupiter.api.TestFactory;
@@ -25,6 +29,7 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.time.Duration;
 import java.util.*;
@@ -46,6 +51,29 @@ class SamplesTest {
 
     @TestFactory
     Stream<DynamicTest> jsonTest() {
+        Sample sample = loadSample();
+        PublicKey publicKey = new PublicKey(Schema.PublicKey.Algorithm.Ed25519, sample.root_public_key);
+        KeyPair keyPair = new KeyPair(sample.root_private_key);
+        return sample.testcases.stream().map(t -> processTestCase(t, publicKey, keyPair));
+    }
+
+    @TestFactory
+    Stream<DynamicTest> decoderTest() {
+        Sample sample = loadSample();
+        return sample.testcases.stream().map(t -> DynamicTest.dynamicTest("decoder: " + t.filename, () -> {
+            byte[] data;
+            try (InputStream inputStream = currentThread().getContextClassLoader().getResourceAsStream("samples/" + t.filename)) {
+                data = requireNonNull(inputStream, "InputStream cannot be null").readAllBytes();
+            }
+
+            compareDecodedToken(data, true);
+            for (int length = 0; length < data.length; length++) {
+                compareDecodedToken(Arrays.copyOf(data, length), false);
+            }
+        }));
+    }
+
+    private static Sample loadSample() {
         Sample sample = null;
         // Using try-with-resources block automatically closes InputStream after try-catch block.
         try (InputStream inputStream = currentThread().getContextClassLoader().getResourceAsStream("samples/samples.json")) {
@@ -55,9 +83,88 @@ class SamplesTest {
         } catch (IOException e) {
             fail(e);
         }
-        PublicKey publicKey = new PublicKey(Schema.PublicKey.Algorithm.Ed25519, sample.root_public_key);
-        KeyPair keyPair = new KeyPair(sample.root_private_key);
-        return sample.testcases.stream().map(t -> processTestCase(t, publicKey, keyPair));
+        return sample;
+    }
+
+    /**
+     * compares the decoder with the generated parser, field by field
+     *
+     * @param mutateBlocks also compare them on copies of each block with one byte modified
+     */
+    private static void compareDecodedToken(byte[] data, boolean mutateBlocks) throws Exception {
+        Schema.Biscuit expected;
+        try {
+            expected = Schema.Biscuit.parseFrom(data);
+        } catch (InvalidProtocolBufferException e) {
+            Error.FormatError.DeserializationError error = assertThrows(Error.FormatError.DeserializationError.class,
+                    () -> BiscuitDecoder.decode(ByteBuffer.wrap(data)));
+            assertEquals(new Error.FormatError.DeserializationError(e.toString()), error);
+            return;
+        }
+
+        SerializedBiscuit decoded = BiscuitDecoder.decode(ByteBuffer.wrap(data));
+        assertEquals(expected.hasRootKeyId() ? Option.some(expected.getRootKeyId()) : Option.none(), decoded.root_key_id);
+        compareSignedBlock(expected.getAuthority(), decoded.authority, mutateBlocks);
+        assertEquals(expected.getBlocksCount(), decoded.blocks.size());
+        for (int i = 0; i < decoded.blocks.size(); i++) {
+            compareSignedBlock(expected.getBlocks(i), decoded.blocks.get(i), mutateBlocks);
+        }
+
+        Schema.Proof proof = expected.getProof();
+        assertEquals(proof.hasNextSecret(), decoded.proof.secretKey.isDefined());
+        if (proof.hasNextSecret()) {
+            assertArrayEquals(proof.getNextSecret().toByteArray(), decoded.proof.secretKey.get().toBytes());
+        }
+        assertEquals(proof.hasFinalSignature(), decoded.proof.signature.isDefined());
+        if (proof.hasFinalSignature()) {
+            assertArrayEquals(proof.getFinalSignature().toByteArray(), decoded.proof.signature.get());
+        }
+    }
+
+    private static void compareSignedBlock(Schema.SignedBlock expected, SignedBlock decoded, boolean mutateBlocks) throws Error {
+        assertArrayEquals(expected.getBlock().toByteArray(), decoded.block);
+        assertEquals(PublicKey.deserialize(expected.getNextKey()), decoded.key);
+        assertArrayEquals(expected.getSignature().toByteArray(), decoded.signature);
+
+        Option<PublicKey> externalKey = Option.none();
+        assertEquals(expected.hasExternalSignature(), decoded.externalSignature.isDefined());
+        if (expected.hasExternalSignature()) {
+            ExternalSignature external = decoded.externalSignature.get();
+            assertEquals(PublicKey.deserialize(expected.getExternalSignature().getPublicKey()), external.key);
+            assertArrayEquals(expected.getExternalSignature().getSignature().toByteArray(), external.signature);
+            externalKey = Option.some(external.key);
+        }
+
+        compareDecodedBlock(decoded.block, externalKey);
+        if (mutateBlocks) {
+            for (int i = 0; i < decoded.block.length; i++) {
+                for (int mask : new int[]{0x01, 0x80, 0xff}) {
+                    byte[] mutated = decoded.block.clone();
+                    mutated[i] ^= (byte) mask;
+                    compareDecodedBlock(mutated, externalKey);
+                }
+            }
+        }
+    }
+
+    private static void compareDecodedBlock(byte[] data, Option<PublicKey> externalKey) {
+        Try<Either<Error.FormatError, org.biscuitsec.biscuit.token.Block>> expected = Try.of(() -> parseBlock(data, externalKey));
+        Try<Either<Error.FormatError, org.biscuitsec.biscuit.token.Block>> decoded = Try.of(() -> BiscuitDecoder.decode_block(data, externalKey));
+
+        assertEquals(expected.isSuccess(), decoded.isSuccess(), () -> "block " + Arrays.toString(data));
+        if (expected.isSuccess()) {
+            assertEquals(expected.get(), decoded.get(), () -> "block " + Arrays.toString(data));
+        } else {
+            assertEquals(expected.getCause().toString(), decoded.getCause().toString());
+        }
+    }
+
+    private static Either<Error.FormatError, org.biscuitsec.biscuit.token.Block> parseBlock(byte[] data, Option<PublicKey> externalKey) {
+        try {
+            return org.biscuitsec.biscuit.token.Block.deserialize(Schema.Block.parseFrom(data), externalKey);
+        } catch (InvalidProtocolBufferException e) {
+            return Either.left(new Error.FormatError.DeserializationError(e.toString()));
+        }
     }
 
     private DynamicTest processTestCase(final TestCase testCase, final PublicKey publicKey, final KeyPair privateKey) {
@@ -105,13 +212,13 @@ class SamplesTest {
     }
 
     private void compareBlocks(KeyPair root, List<Block> sampleBlocks, Biscuit token) throws Error {
-        assertEquals(sampleBlocks.size(), 1 + token.blocks.size());
+        assertEquals(sampleBlocks.size(), 1 + token.blocks().size());
         Option<Biscuit> sampleToken = Option.none();
-        Biscuit b = compareBlock(root, sampleToken, 0, sampleBlocks.get(0), token.authority, token.symbols);
+        Biscuit b = compareBlock(root, sampleToken, 0, sampleBlocks.get(0), token.authority(), token.symbols());
         sampleToken = Option.some(b);
 
-        for (int i = 0; i < token.blocks.size(); i++) {
-            b = compareBlock(root, sampleToken, i + 1, sampleBlocks.get(i + 1), token.blocks.get(i), token.symbols);
+        for (int i = 0; i < token.blocks().size(); i++) {
+            b = compareBlock(root, sampleToken, i + 1, sampleBlocks.get(i + 1), token.blocks().get(i), token.symbols());
             sampleToken = Option.some(b);
         }
     }
@@ -141,17 +248,17 @@ class SamplesTest {
 
         org.biscuitsec.biscuit.token.Block generatedSampleBlock;
         if (!sampleToken.isDefined()) {
-            generatedSampleBlock = newSampleToken.authority;
+            generatedSampleBlock = newSampleToken.authority();
         } else {
-            generatedSampleBlock = newSampleToken.blocks.get((int) sampleBlockIndex - 1);
+            generatedSampleBlock = newSampleToken.blocks().get((int) sampleBlockIndex - 1);
         }
 
         out.println("generated block: ");
-        out.println(generatedSampleBlock.print(newSampleToken.symbols));
+        out.println(generatedSampleBlock.print(newSampleToken.symbols()));
         out.println("deserialized block: ");
-        out.println(tokenBlock.print(newSampleToken.symbols));
+        out.println(tokenBlock.print(newSampleToken.symbols()));
 
-        SymbolTable generatedBlockSymbols = newSampleToken.symbols;
+        SymbolTable generatedBlockSymbols = newSampleToken.symbols();
         assertEquals(generatedSampleBlock.printCode(generatedBlockSymbols), tokenBlock.printCode(tokenSymbols));
 
         /* FIXME: to generate the same sample block, we need the samples to provide the external private key
@@ -218,12 +325,14 @@ class SamplesTest {
         out.println(authorizer.print_world());
     }
 
-    private void checkAuthorityBlockSerialization(Biscuit token) {
-        byte[] serBlockAuthority = token.authority.to_bytes().get();
+    private void checkAuthorityBlockSerialization(Biscuit token) throws Error {
+        org.biscuitsec.biscuit.token.Block authority = token.authority();
+        SymbolTable symbols = token.symbols();
+        byte[] serBlockAuthority = authority.to_bytes().get();
         out.println(Arrays.toString(serBlockAuthority));
         out.println(Arrays.toString(token.serializedBiscuit.authority.block));
-        org.biscuitsec.biscuit.token.Block deserBlockAuthority = from_bytes(serBlockAuthority, token.authority.externalKey).get();
-        assertEquals(token.authority.print(token.symbols), deserBlockAuthority.print(token.symbols));
+        org.biscuitsec.biscuit.token.Block deserBlockAuthority = from_bytes(serBlockAuthority, authority.externalKey).get();
+        assertEquals(authority.print(symbols), deserBlockAuthority.print(symbols));
         assertArrayEquals(serBlockAuthority, token.serializedBiscuit.authority.block);
     }
 
@@ -235,13 +344,15 @@ class SamplesTest {
                 assertEquals(validationRevocationIds.get(idx).getAsString(), revocationIds.get(idx).toHex()));
     }
 
-    private void checkTokenBlockSerialization(Biscuit token) {
-        IntStream.range(0, token.blocks.size()).forEach(idx -> {
-            org.biscuitsec.biscuit.token.Block block = token.blocks.get(idx);
+    private void checkTokenBlockSerialization(Biscuit token) throws Error {
+        List<org.biscuitsec.biscuit.token.Block> blocks = token.blocks();
+        SymbolTable symbols = token.symbols();
+        IntStream.range(0, blocks.size()).forEach(idx -> {
+            org.biscuitsec.biscuit.token.Block block = blocks.get(idx);
             SignedBlock signedBlock = token.serializedBiscuit.blocks.get(idx);
             byte[] serBlock = block.to_bytes().get();
             org.biscuitsec.biscuit.token.Block deserBlock = from_bytes(serBlock, block.externalKey).get();
-            assertEquals(block.print(token.symbols), deserBlock.print(token.symbols));
+            assertEquals(block.print(symbols), deserBlock.print(symbols));
             assertArrayEquals(serBlock, signedBlock.block);
         });
     }
@@ -316,7 +427,7 @@ class SamplesTest {
 
         public World(Authorizer authorizer) {
             this.facts = authorizer.facts().facts().entrySet().stream().map(entry -> {
-                ArrayList<Long> origin = new ArrayList<>(entry.getKey().inner);
+                ArrayList<Long> origin = new ArrayList<>(entry.getKey().blockIds());
                 sort(origin);
                 ArrayList<String> facts = entry.getValue().stream()
                         .map(f -> authorizer.symbols.print_fact(f))